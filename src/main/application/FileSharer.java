@@ -21,7 +21,6 @@
 package main.application;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 import main.event.OptimisticUnchoke;
 import main.network.Circuit;
@@ -85,10 +84,9 @@ public class FileSharer extends TorApplication {
 	 * seconds.
 	 */
 	public void doOptimisticUnchoke(long time) {
-		HashMap<Server, Circuit> circuits = getClient().getCircuits();
 		Circuit slowest = null;
 		for (Server peer : peers) {
-			Circuit c = circuits.get(peer);
+			Circuit c = getClient().getCircuit(peer);
 			if (c != null) {
 				if ((slowest == null)
 						|| (c.getDatagramCount() < slowest.getDatagramCount())) {
@@ -101,7 +99,7 @@ public class FileSharer extends TorApplication {
 
 		if (slowest != null) {
 			// this causes an updated server and a new path
-			client.refreshCircuit(slowest);
+			client.refreshCircuit(time, slowest);
 			// this is a new connection
 			Driver.getInstance().incrementFSConnectionCount();
 		}
@@ -26,6 +26,7 @@ import main.network.Reply;
 import main.network.Request;
 import main.node.Client;
 import main.node.Directory;
+import main.node.NodeRegistry.Phase;
 import main.node.Server;
 import main.resource.Configuration;
 import main.resource.Distribution;
@@ -117,6 +118,7 @@ public class WebBrowser extends TorApplication {
 		// start a new page request
 		// initialize variables
 		reinitialize();
+		client.setPhase(Phase.ACTIVE);
 
 		// assume every top level request is on a new connection
 		Driver.getInstance().incrementWebConnectionCount();
@@ -183,6 +185,8 @@ public class WebBrowser extends TorApplication {
 						.sample(DistributionType.IDLE_TIME)
 						* SimulationClock.getInstance().getOneMillisecond() * Configuration.THINKTIME_ADJUSTMENT);
 				Server server = reply.getServer();
+				client.setPhase(Phase.THINKING);
+				client.hibernate(time);
 				Driver.getInstance().addEvent(
 						new GenerateRequest(time + delay, this, server));
 			}
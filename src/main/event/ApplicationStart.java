@@ -22,6 +22,7 @@ package main.event;
 
 import main.application.TorApplication;
 import main.node.Node;
+import main.node.NodeRegistry.Phase;
 
 /**
  * An event that starts an application upon execution.
@@ -49,13 +50,15 @@ public class ApplicationStart extends Event {
 	}
 
 	/**
-	 * Calls the applications start method.
+	 * Marks the client of the application as active and calls the
+	 * applications start method.
 	 * 
 	 * @see main.event.Event#run()
 	 * @see main.application.TorApplication#start()
 	 */
 	@Override
 	public void run() {
+		application.getClient().setPhase(Phase.ACTIVE);
 		application.start(getTime());
 	}
 
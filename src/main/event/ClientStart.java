@@ -0,0 +1,82 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.event;
+
+import main.node.Directory;
+import main.node.Node;
+import main.scheduling.SchedulerFactory;
+
+/**
+ * An event that creates a lazy client and its application upon execution.
+ * Until then, this event and the slot of the client in the NodeRegistry are
+ * all that exist of the client.
+ * 
+ * @author agent
+ */
+public class ClientStart extends Event {
+
+	private Directory directory;
+
+	/**
+	 * The id reserved for the client
+	 */
+	private int id;
+
+	/**
+	 * The factory of the scheduler the client will use
+	 */
+	private SchedulerFactory scheduler;
+
+	/**
+	 * Create the event at the time the application of the client starts.
+	 * 
+	 * @param directory
+	 *            the directory creating the client
+	 * @param id
+	 *            the id reserved for the client
+	 * @param scheduler
+	 *            the factory of the scheduler the client will use
+	 */
+	public ClientStart(long runTime, Directory directory, int id,
+			SchedulerFactory scheduler) {
+		super(runTime);
+		this.directory = directory;
+		this.id = id;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Calls the directory's client start method.
+	 * 
+	 * @see main.event.Event#run()
+	 * @see main.node.Directory#startClient(long, int, SchedulerFactory)
+	 */
+	@Override
+	public void run() {
+		directory.startClient(getTime(), id, scheduler);
+	}
+
+	@Override
+	public Node getOwner() {
+		return null;
+	}
+
+}
@@ -65,12 +65,12 @@ public class NetworkReceive extends Event {
 	 */
 	@Override
 	public void run() {
-		data.getChannel().getReceiver().getNetwork().receive(getTime(), data, senderDelay);
+		data.getReceiver().getNetwork().receive(getTime(), data, senderDelay);
 	}
 	
 	@Override
 	public Node getOwner() {
-		return data.getChannel().getReceiver();
+		return data.getReceiver();
 	}
 
 }
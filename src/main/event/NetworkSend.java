@@ -57,12 +57,12 @@ public class NetworkSend extends Event {
 	 */
 	@Override
 	public void run() {
-		data.getChannel().getSender().getNetwork().notifyFinishedSending(getTime(), data);
+		data.getSender().getNetwork().notifyFinishedSending(getTime(), data);
 	}
 
 	@Override
 	public Node getOwner() {
-		return data.getChannel().getSender();
+		return data.getSender();
 	}
 
 }
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.event;
+
+import main.network.CellTrain;
+import main.node.Node;
+
+/**
+ * An event that notifies a node when it has finished sending a cell train upon
+ * execution.
+ * 
+ * @author agent
+ */
+public class NetworkTrainSend extends Event {
+	/**
+	 * The train being sent.
+	 */
+	private CellTrain train;
+
+	/**
+	 * Create the event after the delay.
+	 * 
+	 * @param train
+	 *            the train being sent
+	 * @param timeDelay
+	 *            the simulation time to delay execution
+	 */
+	public NetworkTrainSend(long runTime, CellTrain train) {
+		super(runTime);
+		this.train = train;
+	}
+
+	/**
+	 * The sender of the train is notified that it has completed its part of
+	 * the transmission for the entire train, which means it can schedule the
+	 * next outgoing datagram on the network.
+	 * 
+	 * @see main.event.Event#run()
+	 * @see main.network.Network#notifyFinishedSending(long, CellTrain)
+	 */
+	@Override
+	public void run() {
+		train.getSender().notifyFinishedSending(getTime(), train);
+	}
+
+	@Override
+	public Node getOwner() {
+		return train.getSender().getNode();
+	}
+
+}
@@ -22,6 +22,7 @@ package main.event;
 
 import main.network.Datagram;
 import main.node.Node;
+import main.system.Driver;
 
 /**
  * An event that notifies a node that it has finished receiving a datagram upon
@@ -53,7 +54,7 @@ public class NodeReceive extends Event {
 	/**
 	 * Notifies the receiver of the datagram that its network has finished
 	 * receiving this datagram and tranfers the message up to the nodes receive
-	 * method.
+	 * method. Data of a reclaimed circuit is dropped instead.
 	 * 
 	 * @see main.event.Event#run()
 	 * @see main.network.Network#notifyFinishedReceiving(Datagram)
@@ -61,14 +62,20 @@ public class NodeReceive extends Event {
 	 */
 	@Override
 	public void run() {
-		Node receiver = data.getChannel().getReceiver();
+		Node receiver = data.getReceiver();
 		receiver.getNetwork().notifyFinishedReceiving(data);
+		if (data.getMessage().getCircuit().isReclaimed()) {
+			// the circuit was reclaimed while this data was in the network
+			Driver.getInstance().decrementDataCount(
+					data.getMessage().getPriority());
+			return;
+		}
 		receiver.receive(getTime(), data);
 	}
 	
 	@Override
 	public Node getOwner() {
-		return data.getChannel().getReceiver();
+		return data.getReceiver();
 	}
 
 }
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.event;
+
+import main.network.Circuit;
+import main.node.Client;
+import main.node.Node;
+
+/**
+ * An event that reclaims a zombie circuit upon execution, if it still waits
+ * for outstanding data.
+ * 
+ * @author agent
+ */
+public class ReclaimZombie extends Event {
+
+	private Circuit circuit;
+	private Client client;
+
+	/**
+	 * Create the event at the end of the lifetime of the zombie.
+	 * 
+	 * @param client
+	 *            the client of the circuit
+	 * @param circuit
+	 *            the zombie circuit to reclaim
+	 */
+	public ReclaimZombie(long runTime, Client client, Circuit circuit) {
+		super(runTime);
+		this.client = client;
+		this.circuit = circuit;
+	}
+
+	/**
+	 * Calls reclaim for the given circuit.
+	 * 
+	 * @see main.event.Event#run()
+	 * @see main.network.Circuit#reclaim(long)
+	 */
+	@Override
+	public void run() {
+		circuit.reclaim(getTime());
+	}
+
+	@Override
+	public Node getOwner() {
+		return client;
+	}
+
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.event;
+
+import main.node.Client;
+import main.node.Node;
+
+/**
+ * An event that builds preemptive circuits for a client upon execution.
+ * 
+ * @author agent
+ */
+public class RefillCircuitPool extends Event {
+
+	private Client client;
+
+	/**
+	 * Create the event at the given time.
+	 * 
+	 * @param client
+	 *            the client that will refill its circuit pool
+	 */
+	public RefillCircuitPool(long runTime, Client client) {
+		super(runTime);
+		this.client = client;
+	}
+
+	/**
+	 * Call refill circuit pool for the given client
+	 * 
+	 * @see main.event.Event#run()
+	 * @see main.node.Client#refillCircuitPool(long)
+	 */
+	@Override
+	public void run() {
+		client.refillCircuitPool(getTime());
+	}
+
+	@Override
+	public Node getOwner() {
+		return client;
+	}
+
+}
@@ -54,11 +54,11 @@ public class RefreshCircuit extends Event {
 	 * Call refresh circuit for the given client and circuit
 	 * 
 	 * @see main.event.Event#run()
-	 * @see main.node.Client#refreshCircuit(Circuit)
+	 * @see main.node.Client#refreshCircuit(long, Circuit)
 	 */
 	@Override
 	public void run() {
-		client.refreshCircuit(circuit);
+		client.refreshCircuit(getTime(), circuit);
 	}
 
 	@Override
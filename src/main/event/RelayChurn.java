@@ -0,0 +1,62 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.event;
+
+import main.node.Directory;
+import main.node.Node;
+
+/**
+ * An event that changes the relay population upon execution.
+ * 
+ * @author agent
+ */
+public class RelayChurn extends Event {
+
+	private Directory directory;
+
+	/**
+	 * Create the event at the given time.
+	 * 
+	 * @param directory
+	 *            the directory listing the relays
+	 */
+	public RelayChurn(long runTime, Directory directory) {
+		super(runTime);
+		this.directory = directory;
+	}
+
+	/**
+	 * Calls the directory's churn method.
+	 * 
+	 * @see main.event.Event#run()
+	 * @see main.node.Directory#churnRelays(long)
+	 */
+	@Override
+	public void run() {
+		directory.churnRelays(getTime());
+	}
+
+	@Override
+	public Node getOwner() {
+		return null;
+	}
+
+}
@@ -20,39 +20,51 @@
  */
 package main.network;
 
-import java.util.LinkedList;
-
 import main.node.Node;
 import main.resource.Configuration;
 import main.scheduling.Scheduler.Priority;
-import main.scheduling.Scheduler.SchedulingAlgorithm;
 import main.system.Driver;
 import main.util.Identifiable;
 
 /**
- * A buffer that holds data for a node. For the RoundRobin scheduler, Buffers
- * can be configured to be dynamic. Dynamic buffers add themselves to their
- * assigned Scheduling ring when they become non-empty, and remove themselves
- * when they become empty. To make sure the relative order of buffers in the
- * scheduling ring is preserved among dynamic adding and removing, buffers
- * extend Identifiable (which means they have an ID), and their ID is used to
- * order them in the scheduling ring. The addInOrder method is used when a
- * dynamic buffer adds itself to the ring.
+ * A buffer that holds data for a node. The buffer policy of the scheduling
+ * algorithm decides if buffers are dynamic. Dynamic buffers add themselves to
+ * their assigned Scheduling ring when they become non-empty, and remove
+ * themselves when they become empty. To make sure the relative order of
+ * buffers in the scheduling ring is preserved among dynamic adding and
+ * removing, buffers extend Identifiable (which means they have an ID), and
+ * their ID is used to order them in the scheduling ring. The addInOrder method
+ * is used when a dynamic buffer adds itself to the ring.
+ * <p>
+ * Relays keep a buffer for each circuit, so this class only holds what every
+ * buffer needs. Subclasses hold the state of their scheduler, the links of
+ * buffers that are scanned in a ring (see RingBuffer), and the positions of
+ * buffers that are indexed in a BufferHeap. The SchedulingRing still counts
+ * the data of every buffer assigned to it.
  * 
  * @see main.resource.Configuration#NETWORK_DYNAMIC_BUFFERS
+ * @see main.node.BufferPolicy
+ * @see main.network.BufferFactory
+ * @see main.network.RingBuffer
  * 
  * @author Rob Jansen
  */
-public class Buffer extends Identifiable {
+public abstract class Buffer extends Identifiable {
 	/**
 	 * Used to distribute IDs to buffers, since buffers need to be ordered
 	 */
 	private static int BUFFER_ID_COUNTER = 0;
 
+	/**
+	 * Stands in for the queue of every empty buffer whose storage was
+	 * released. It is never written to.
+	 */
+	private static final DatagramQueue RELEASED = new DatagramRing();
+
 	/**
 	 * The main structure to actually store the data
 	 */
-	private LinkedList<Datagram> data;
+	private DatagramQueue data;
 	/**
 	 * This buffer's ID
 	 */
@@ -71,60 +83,44 @@ public class Buffer extends Identifiable {
 	private SchedulingRing ring;
 
 	/**
-	 * Current counter for exponential weighted moving average
-	 */
-	private double ewma;
-
-	/**
-	 * Last interval exponential weighted moving average was computed
-	 */
-	private long ewmaLastAdjustedInterval;
-
-	/**
-	 * Used in HPD scheduling - the sum of delay for packets sent from this
-	 * buffer, in milliseconds
-	 */
-	private long hpdTotalSentPacketDelay;
-
-	/**
-	 * Used in HPD scheduling - the sum of packets sent
-	 */
-	private long hpdTotalSentPackets;
-
-	private long wfqSent;
-	private double wfqWeight;
-
-	/**
-	 * Create a new buffer, assigning itself the next ID in the counter and
-	 * creating the underlying linked list that stores the data.
+	 * Create a new buffer and the underlying queue that stores the data. The
+	 * queue is kept off-heap if configured.
 	 * 
+	 * @param id
+	 *            the ID of the buffer, which orders it in the ring
 	 * @param p
 	 *            the priority of data stored in this buffer
 	 * @param node
 	 *            the node that owns the buffer
 	 * @param ring
-	 *            the SchedulingRing assigned to this buffer
+	 *            the SchedulingRing assigned to this buffer, which counts its
+	 *            data
 	 */
-	public Buffer(Priority p, Node node, SchedulingRing ring) {
+	protected Buffer(int id, Priority p, Node node, SchedulingRing ring) {
 		super();
-		id = BUFFER_ID_COUNTER++;
+		this.id = id;
 		this.network = node.getNetwork();
 		priority = p;
 		this.ring = ring;
-		data = new LinkedList<Datagram>();
-		ewma = 0;
-		ewmaLastAdjustedInterval = 0;
-		hpdTotalSentPacketDelay = 0;
-		// avoid division by 0 error
-		hpdTotalSentPackets = 1;
-		wfqWeight = 1.0;
-		wfqSent = 0;
+		data = createQueue();
+	}
+
+	/**
+	 * @return a new queue for the data of this buffer, off-heap if configured
+	 */
+	private static DatagramQueue createQueue() {
+		if (Configuration.NETWORK_OFF_HEAP_BUFFERS) {
+			return new OffHeapDatagramQueue();
+		} else {
+			return new DatagramRing();
+		}
 	}
 
 	/**
 	 * Removes the data at the front of the queue. Updates the SchedulingRing
 	 * size. If dynamic and the buffer is empty after the dequeue, it will be
-	 * removed from the ring.
+	 * removed from the ring. The scheduler and the node are notified when the
+	 * buffer becomes empty.
 	 * 
 	 * @return the datagram that was dequeued
 	 */
@@ -133,20 +129,14 @@ public class Buffer extends Identifiable {
 
 		// the ring lost an item
 		ring.changedDataCount(-1);
-		// do we need to remove this buffer from the ring
-		if ((Configuration.SCHEDULER == SchedulingAlgorithm.ROUND_ROBIN
-				|| Configuration.SCHEDULER == SchedulingAlgorithm.EXPONENTIAL_WEIGHTED_MOVING_AVERAGE || (Configuration.SCHEDULER == SchedulingAlgorithm.HYBRID_PROPORTIONAL_DELAY && !Configuration.NETWORK_PRIORITY))
-				&& Configuration.NETWORK_DYNAMIC_BUFFERS && data.isEmpty()) {
-			// remove the will-be empty buffer from the ring
-			ring.remove(this);
-		}
-
-		if (Configuration.SCHEDULER == SchedulingAlgorithm.HYBRID_PROPORTIONAL_DELAY) {
-			hpdTotalSentPacketDelay += time / 1000000;
-			hpdTotalSentPackets += 1;
-			if (hpdTotalSentPacketDelay < 0) {
-				Driver.log.warning("HPD total packet delay overflowed long!");
+		if (data.isEmpty()) {
+			if (isDynamic()) {
+				// remove the will-be empty buffer from the ring
+				ring.remove(this);
 			}
+			network.getNode().getScheduler().notifyBufferDeactivated(time,
+					this);
+			network.getNode().notifyBufferDrained(this, d);
 		}
 
 		return d;
@@ -155,18 +145,21 @@ public class Buffer extends Identifiable {
 	/**
 	 * Adds the data to the end of the queue. Updates the SchedulingRing size.
 	 * If dynamic and the buffer was empty before the enqueue, it will be added
-	 * to the ring.
+	 * to the ring. The scheduler of the node is notified when the buffer
+	 * becomes non-empty.
 	 * 
 	 * @param d
 	 *            the datagram enqueued
 	 */
 	public void enqueue(long time, Datagram d) {
+		// let a cell train in progress finish what departed before this data
+		network.notifyEnqueued(time, this);
+
 		d.setQueueArrivalTime(time);
+		boolean wasEmpty = data.isEmpty();
 
 		// do we need to add this buffer to the ring
-		if ((Configuration.SCHEDULER == SchedulingAlgorithm.ROUND_ROBIN
-				|| Configuration.SCHEDULER == SchedulingAlgorithm.EXPONENTIAL_WEIGHTED_MOVING_AVERAGE || (Configuration.SCHEDULER == SchedulingAlgorithm.HYBRID_PROPORTIONAL_DELAY && !Configuration.NETWORK_PRIORITY))
-				&& Configuration.NETWORK_DYNAMIC_BUFFERS && data.isEmpty()) {
+		if (isDynamic() && wasEmpty) {
 			// add this to the ring dynamically for quicker scheduling
 			// decisions
 			ring.addInOrder(this);
@@ -174,7 +167,44 @@ public class Buffer extends Identifiable {
 		// the ring will gain an item
 		ring.changedDataCount(1);
 
+		if (data == RELEASED) {
+			data = createQueue();
+		}
 		data.addLast(d);
+		if (wasEmpty) {
+			network.getNode().getScheduler().notifyBufferActivated(time, this);
+		}
+	}
+
+	/**
+	 * Drops the data of this buffer without sending it, and removes the data
+	 * from the datagram counters of the Driver. The scheduler must already be
+	 * notified that the buffer is no longer active, and the buffer removed
+	 * from its ring, which removes the data from the count of the ring.
+	 */
+	public void discard() {
+		while (!data.isEmpty()) {
+			Driver.getInstance().decrementDataCount(
+					data.peekMessage(0).getPriority());
+			data.removeFirst();
+		}
+	}
+
+	/**
+	 * Drops the queue of this buffer if it is empty, keeping the buffer and
+	 * its scheduler state. A new queue is created when data is enqueued.
+	 */
+	public void releaseStorage() {
+		if (data.isEmpty()) {
+			data = RELEASED;
+		}
+	}
+
+	/**
+	 * @return the next ID in the counter
+	 */
+	public static int nextId() {
+		return BUFFER_ID_COUNTER++;
 	}
 
 	/**
@@ -185,6 +215,17 @@ public class Buffer extends Identifiable {
 		return id;
 	}
 
+	/**
+	 * @param slot
+	 *            the slot of the heap
+	 * @return the position of this buffer in the BufferHeap of the given slot,
+	 *         or -1 if it is not in that heap. Buffers that are never indexed
+	 *         in a heap are never in one.
+	 */
+	int getHeapIndex(int slot) {
+		return -1;
+	}
+
 	/**
 	 * @return the node this buffer belongs to
 	 */
@@ -199,6 +240,30 @@ public class Buffer extends Identifiable {
 		return priority;
 	}
 
+	/**
+	 * @return the SchedulingRing this buffer is assigned to
+	 */
+	public SchedulingRing getRing() {
+		return ring;
+	}
+
+	/**
+	 * @return the buffer following this one in the ring, or null if this
+	 *         buffer is not in the ring. Buffers that are never scanned in a
+	 *         ring are never in one.
+	 */
+	Buffer getRingNext() {
+		return null;
+	}
+
+	/**
+	 * @return the buffer preceding this one in the ring, or null if this
+	 *         buffer is not in the ring
+	 */
+	Buffer getRingPrevious() {
+		return null;
+	}
+
 	/**
 	 * @return the number of datagrams in the buffer
 	 */
@@ -207,101 +272,115 @@ public class Buffer extends Identifiable {
 	}
 
 	/**
-	 * @return true if the buffer is empty, false otherwise
+	 * @return true if the buffer adds itself to the ring while it holds data
 	 */
-	public boolean isEmpty() {
-		return data.isEmpty();
+	boolean isDynamic() {
+		return false;
 	}
 
 	/**
-	 * @return the head of the queue, without removing it
+	 * @return true if the buffer is empty, false otherwise
 	 */
-	public Datagram peekFirst() {
-		return data.peekFirst();
+	public boolean isEmpty() {
+		return data.isEmpty();
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see java.lang.Object#toString()
+	/**
+	 * @param slot
+	 *            the slot of the heap
+	 * @param heapIndex
+	 *            the position of this buffer in the BufferHeap of the given
+	 *            slot, or -1 if it is not in that heap
 	 */
-	@Override
-	public String toString() {
-		return priority + "_Buffer" + data.toString();
+	void setHeapIndex(int slot, int heapIndex) {
+		throw new RuntimeException("buffer " + id + " has no heap slot "
+				+ slot);
 	}
 
 	/**
-	 * @return the ewma
+	 * @param ringNext
+	 *            the buffer following this one in the ring
 	 */
-	public double getEwma() {
-		return ewma;
+	void setRingNext(Buffer ringNext) {
+		throw new RuntimeException("buffer " + id + " is never in a ring");
 	}
 
 	/**
-	 * @param ewma
-	 *            the ewma to set
+	 * @param ringPrevious
+	 *            the buffer preceding this one in the ring
 	 */
-	public void setEwma(double ewma) {
-		this.ewma = ewma;
+	void setRingPrevious(Buffer ringPrevious) {
+		throw new RuntimeException("buffer " + id + " is never in a ring");
 	}
 
 	/**
-	 * @return the ewmaLastAdjustedInterval
+	 * @return the head of the queue, without removing it
 	 */
-	public long getEwmaLastAdjustedInterval() {
-		return ewmaLastAdjustedInterval;
+	public Datagram peekFirst() {
+		return data.peekFirst();
 	}
 
 	/**
-	 * @param ewmaLastAdjustedInterval
-	 *            the ewmaLastAdjustedInterval to set
+	 * @return the time the head of the queue arrived in this buffer. The buffer
+	 *         must not be empty.
 	 */
-	public void setEwmaLastAdjustedInterval(long ewmaLastAdjustedInterval) {
-		this.ewmaLastAdjustedInterval = ewmaLastAdjustedInterval;
+	public long peekFirstArrivalTime() {
+		return data.peekFirstArrivalTime();
 	}
 
 	/**
-	 * @return the hpdTotalSentPacketDelay
+	 * @param index
+	 *            the position in the queue
+	 * @return the datagram at the given position, without removing it
 	 */
-	public long getHpdTotalSentPacketDelay() {
-		return hpdTotalSentPacketDelay;
+	public Datagram peek(int index) {
+		return data.peek(index);
 	}
 
 	/**
-	 * @return the hpdTotalSentPackets
+	 * @param index
+	 *            the position in the queue
+	 * @return the hop index of the datagram at the given position
 	 */
-	public long getHpdTotalSentPackets() {
-		return hpdTotalSentPackets;
+	public int peekHop(int index) {
+		return data.peekHop(index);
 	}
 
 	/**
-	 * @return the wfqSent
+	 * @param index
+	 *            the position in the queue
+	 * @return the message of the datagram at the given position
 	 */
-	public long getWfqSent() {
-		return wfqSent;
+	public Message peekMessage(int index) {
+		return data.peekMessage(index);
 	}
 
 	/**
-	 * @param wfqSent
-	 *            the wfqSent to set
+	 * @param index
+	 *            the position in the queue
+	 * @return true if the datagram at the given position is phantom data
 	 */
-	public void setWfqSent(long wfqSent) {
-		this.wfqSent = wfqSent;
+	public boolean peekPhantom(int index) {
+		return data.peekPhantom(index);
 	}
 
 	/**
-	 * @return the wfqQuota
+	 * @param index
+	 *            the position in the queue
+	 * @return the size of the datagram at the given position
 	 */
-	public double getWfqWeight() {
-		return wfqWeight;
+	public int peekSize(int index) {
+		return data.peekSize(index);
 	}
 
-	/**
-	 * @param wfqWeight
-	 *            the wfqQuota to set
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
 	 */
-	public void setWfqWeight(double wfqWeight) {
-		this.wfqWeight = wfqWeight;
+	@Override
+	public String toString() {
+		return priority + "_Buffer" + data.toString();
 	}
 
 }
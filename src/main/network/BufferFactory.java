@@ -0,0 +1,65 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.network;
+
+import main.node.Node;
+import main.scheduling.Scheduler.Priority;
+
+/**
+ * Creates the buffers of a scheduling algorithm, so each buffer only carries
+ * the state its scheduler needs.
+ * 
+ * @see main.node.BufferPolicy
+ * 
+ * @author agent
+ */
+public abstract class BufferFactory {
+
+	/**
+	 * @param id
+	 *            the ID of the buffer, which orders it in the ring
+	 * @param p
+	 *            the priority of data stored in the buffer
+	 * @param node
+	 *            the node that owns the buffer
+	 * @param ring
+	 *            the SchedulingRing assigned to the buffer
+	 * @param dynamic
+	 *            true if the buffer adds itself to the ring while it holds
+	 *            data. Ignored by factories of buffers that are never in a
+	 *            ring.
+	 * @return a new buffer
+	 * @see main.network.RingBuffer#RingBuffer(int, Priority, Node,
+	 *      SchedulingRing, boolean)
+	 */
+	public abstract Buffer createBuffer(int id, Priority p, Node node,
+			SchedulingRing ring, boolean dynamic);
+
+	/**
+	 * @return true if the buffers this factory creates keep scheduler state
+	 *         while they are empty, in which case a buffer may not be replaced
+	 *         by a new one when it drains. By default, true.
+	 */
+	public boolean keepsStateWhileEmpty() {
+		return true;
+	}
+
+}
@@ -0,0 +1,332 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.network;
+
+/**
+ * A binary min-heap of buffers ordered by a key held in the heap. Each buffer
+ * stores its own position in the heap, so a buffer can be found, removed or
+ * have its key changed in O(log n) time without searching. Buffers with equal
+ * keys are ordered by their ID. Every heap uses one of SLOTS position fields
+ * of the buffer, so a buffer can be contained in one heap per slot.
+ * <p>
+ * The smallest buffers can also be visited in key order without removing
+ * them. Visiting the k smallest buffers costs O(k log k), independent of the
+ * size of the heap.
+ * 
+ * @author agent
+ */
+public class BufferHeap {
+	/**
+	 * The number of heaps a buffer can be contained in at the same time
+	 */
+	public static final int SLOTS = 2;
+
+	/**
+	 * The initial number of slots in the heap
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * The buffers in heap order
+	 */
+	private Buffer[] buffers;
+
+	/**
+	 * The key of the buffer in each slot
+	 */
+	private double[] keys;
+
+	/**
+	 * The number of buffers in the heap
+	 */
+	private int size;
+
+	/**
+	 * The position field of the buffers this heap uses
+	 */
+	private int slot;
+
+	/**
+	 * The positions that may hold the next buffer of the ordered walk
+	 */
+	private int[] walk;
+
+	/**
+	 * The number of positions in the walk
+	 */
+	private int walkSize;
+
+	/**
+	 * Create an empty heap.
+	 * 
+	 * @param slot
+	 *            the position field of the buffers this heap uses, less than
+	 *            SLOTS
+	 */
+	public BufferHeap(int slot) {
+		this.slot = slot;
+		buffers = new Buffer[INITIAL_CAPACITY];
+		keys = new double[INITIAL_CAPACITY];
+		size = 0;
+		walk = new int[INITIAL_CAPACITY];
+		walkSize = 0;
+	}
+
+	/**
+	 * Adds a buffer that is not yet contained in the heap.
+	 * 
+	 * @param buffer
+	 *            the buffer to add
+	 * @param key
+	 *            the key to order the buffer by
+	 */
+	public void add(Buffer buffer, double key) {
+		if (size == buffers.length) {
+			Buffer[] newBuffers = new Buffer[size << 1];
+			double[] newKeys = new double[size << 1];
+			System.arraycopy(buffers, 0, newBuffers, 0, size);
+			System.arraycopy(keys, 0, newKeys, 0, size);
+			buffers = newBuffers;
+			keys = newKeys;
+		}
+		place(size, buffer, key);
+		siftUp(size++);
+	}
+
+	/**
+	 * @param buffer
+	 *            the buffer to check
+	 * @return true if the buffer is contained in this heap, false otherwise
+	 */
+	public boolean contains(Buffer buffer) {
+		int i = buffer.getHeapIndex(slot);
+		return (i >= 0) && (i < size) && (buffers[i] == buffer);
+	}
+
+	/**
+	 * @param buffer
+	 *            a buffer contained in the heap
+	 * @return the key of the buffer
+	 */
+	public double getKey(Buffer buffer) {
+		return keys[buffer.getHeapIndex(slot)];
+	}
+
+	/**
+	 * @return true if the heap contains no buffers, false otherwise
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the buffer with the smallest key, or null if the heap is empty
+	 */
+	public Buffer peek() {
+		if (size == 0) {
+			return null;
+		}
+		return buffers[0];
+	}
+
+	/**
+	 * @return the smallest key. The heap must not be empty.
+	 */
+	public double peekKey() {
+		return keys[0];
+	}
+
+	/**
+	 * Visits the next buffer of the walk started by startWalk(), in key
+	 * order. The heap must not be changed during a walk.
+	 * 
+	 * @return the next buffer, or null if all buffers were visited
+	 */
+	public Buffer nextInWalk() {
+		if (walkSize == 0) {
+			return null;
+		}
+		// the smallest candidate is next, its children become candidates
+		int best = 0;
+		for (int i = 1; i < walkSize; i++) {
+			if (less(walk[i], walk[best])) {
+				best = i;
+			}
+		}
+		int position = walk[best];
+		walk[best] = walk[--walkSize];
+		int child = (position << 1) + 1;
+		for (int c = child; (c < child + 2) && (c < size); c++) {
+			if (walkSize == walk.length) {
+				int[] newWalk = new int[walkSize << 1];
+				System.arraycopy(walk, 0, newWalk, 0, walkSize);
+				walk = newWalk;
+			}
+			walk[walkSize++] = c;
+		}
+		return buffers[position];
+	}
+
+	/**
+	 * Removes a buffer from the heap.
+	 * 
+	 * @param buffer
+	 *            the buffer to remove
+	 * @return the key the buffer had
+	 */
+	public double remove(Buffer buffer) {
+		int i = buffer.getHeapIndex(slot);
+		double key = keys[i];
+		buffer.setHeapIndex(slot, -1);
+		size--;
+		if (i < size) {
+			// fill the gap with the last buffer and restore the order
+			Buffer last = buffers[size];
+			place(i, last, keys[size]);
+			buffers[size] = null;
+			siftUp(i);
+			if (buffers[i] == last) {
+				siftDown(i);
+			}
+		} else {
+			buffers[size] = null;
+		}
+		return key;
+	}
+
+	/**
+	 * Multiplies the key of every buffer by the given positive factor, which
+	 * preserves the order of the heap.
+	 * 
+	 * @param factor
+	 *            the positive factor to scale keys by
+	 */
+	public void scaleKeys(double factor) {
+		for (int i = 0; i < size; i++) {
+			keys[i] *= factor;
+		}
+	}
+
+	/**
+	 * @return the number of buffers in the heap
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Starts a walk over the buffers in key order, beginning with the smallest.
+	 * 
+	 * @see main.network.BufferHeap#nextInWalk()
+	 */
+	public void startWalk() {
+		walkSize = 0;
+		if (size > 0) {
+			walk[walkSize++] = 0;
+		}
+	}
+
+	/**
+	 * Changes the key of a buffer contained in the heap and restores the heap
+	 * order.
+	 * 
+	 * @param buffer
+	 *            the buffer to update
+	 * @param key
+	 *            the new key of the buffer
+	 */
+	public void update(Buffer buffer, double key) {
+		int i = buffer.getHeapIndex(slot);
+		double old = keys[i];
+		keys[i] = key;
+		if (key < old) {
+			siftUp(i);
+		} else {
+			siftDown(i);
+		}
+	}
+
+	/**
+	 * @return true if the buffer in slot i is ordered before the buffer in
+	 *         slot j
+	 */
+	private boolean less(int i, int j) {
+		return (keys[i] < keys[j])
+				|| ((keys[i] == keys[j]) && (buffers[i].getId() < buffers[j]
+						.getId()));
+	}
+
+	/**
+	 * Stores the given buffer and key in the given slot.
+	 */
+	private void place(int i, Buffer buffer, double key) {
+		buffers[i] = buffer;
+		keys[i] = key;
+		buffer.setHeapIndex(slot, i);
+	}
+
+	/**
+	 * Moves the buffer in the given slot down until its children are ordered
+	 * after it.
+	 */
+	private void siftDown(int i) {
+		while (true) {
+			int child = (i << 1) + 1;
+			if (child >= size) {
+				return;
+			}
+			if ((child + 1 < size) && less(child + 1, child)) {
+				child++;
+			}
+			if (!less(child, i)) {
+				return;
+			}
+			swap(i, child);
+			i = child;
+		}
+	}
+
+	/**
+	 * Moves the buffer in the given slot up until its parent is ordered before
+	 * it.
+	 */
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >> 1;
+			if (!less(i, parent)) {
+				return;
+			}
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	/**
+	 * Exchanges the buffers and keys of two slots.
+	 */
+	private void swap(int i, int j) {
+		Buffer b = buffers[i];
+		double k = keys[i];
+		place(i, buffers[j], keys[j]);
+		place(j, b, k);
+	}
+
+}
@@ -0,0 +1,256 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.network;
+
+import java.util.ArrayList;
+
+import main.node.Node;
+
+/**
+ * A train of consecutive datagrams from a single buffer that a network
+ * transmits back-to-back to the same receiver. A train is planned when its
+ * first datagram is sent: the departure time of each following datagram is
+ * computed exactly as the per-datagram path would, i.e. each datagram leaves
+ * when the previous one finished sending. The datagrams themselves are only
+ * scheduled and dequeued once their departure time has passed, so scheduling
+ * decisions and buffer bookkeeping are identical to the per-datagram path.
+ * <p>
+ * If another buffer becomes active before the train finished, the train is
+ * truncated after the datagram currently on the wire and the network returns
+ * to per-datagram sending. Trains never last longer than the network latency,
+ * so the receiver processes the complete train in a single event.
+ * <p>
+ * Sender timing is exact. On the receiving side the delivery delay of each
+ * datagram is computed from the bytes of its own train still in transit plus
+ * the bytes of other flows in transit when the head of the train arrived. The
+ * delivery time of a datagram may therefore deviate from the per-datagram path
+ * by at most the time needed to receive the bytes of other flows that arrive
+ * or drain during the train, which is bounded by one latency period.
+ * 
+ * @see main.resource.Configuration#NETWORK_CELL_TRAINS
+ * 
+ * @author agent
+ */
+public class CellTrain {
+	/**
+	 * The datagrams of this train that have departed, in order
+	 */
+	private ArrayList<Datagram> cells;
+
+	/**
+	 * The circuit shared by all datagrams in this train
+	 */
+	private Circuit circuit;
+
+	/**
+	 * The hop in the circuit shared by all datagrams in this train
+	 */
+	private int hop;
+
+	/**
+	 * The planned departure time of each datagram in the train, in nanoseconds
+	 */
+	private long[] departureTimes;
+
+	/**
+	 * The time the last datagram of this train finishes sending
+	 */
+	private long endTime;
+
+	/**
+	 * The number of datagrams planned for this train
+	 */
+	private int plannedLength;
+
+	/**
+	 * The network sending this train
+	 */
+	private Network sender;
+
+	/**
+	 * The buffer this train is drawing datagrams from
+	 */
+	private Buffer source;
+
+	/**
+	 * Plans a train starting with the given head datagram, which has already
+	 * been dequeued from the source buffer. Following datagrams are planned
+	 * while they are still in the source buffer, go to the same receiver, and
+	 * depart within the given latency.
+	 * 
+	 * @param sender
+	 *            the network sending the train
+	 * @param source
+	 *            the buffer the head was dequeued from
+	 * @param head
+	 *            the first datagram of the train
+	 * @param time
+	 *            the departure time of the head, in nanoseconds
+	 * @param timeToSendOneByte
+	 *            the upstream speed of the sender, in nanoseconds per byte
+	 * @param latency
+	 *            the network latency, in nanoseconds
+	 * @param maxLength
+	 *            the maximum number of datagrams in this train
+	 */
+	public CellTrain(Network sender, Buffer source, Datagram head, long time,
+			int timeToSendOneByte, long latency, int maxLength) {
+		this.sender = sender;
+		this.source = source;
+		circuit = head.getMessage().getCircuit();
+		hop = head.getHop();
+		departureTimes = new long[maxLength];
+		cells = new ArrayList<Datagram>(maxLength);
+		cells.add(head);
+
+		// each datagram leaves when the previous one finished sending
+		departureTimes[0] = time;
+		long next = time + (head.getSize() * timeToSendOneByte);
+		plannedLength = 1;
+		while (plannedLength < maxLength && plannedLength <= source.getSize()
+				&& next - time < latency) {
+			int index = plannedLength - 1;
+			if (source.peekHop(index) != hop
+					|| source.peekMessage(index).getCircuit() != circuit
+					|| source.peekPhantom(index)) {
+				break;
+			}
+			departureTimes[plannedLength++] = next;
+			next += source.peekSize(index) * timeToSendOneByte;
+		}
+		endTime = next;
+	}
+
+	/**
+	 * Appends a departed datagram to this train.
+	 * 
+	 * @param data
+	 *            the datagram that departed
+	 * @return false if the datagram does not belong to this train
+	 */
+	public boolean add(Datagram data) {
+		if (!hasPlannedDepartures() || !isOnTrainHop(data)) {
+			return false;
+		}
+		cells.add(data);
+		return true;
+	}
+
+	/**
+	 * @param data
+	 *            the datagram to check
+	 * @return true if the datagram travels the same hop as this train
+	 */
+	private boolean isOnTrainHop(Datagram data) {
+		return data.getHop() == hop && data.getMessage().getCircuit() == circuit;
+	}
+
+	/**
+	 * @return the node receiving this train
+	 */
+	public Node getReceiver() {
+		return circuit.getNode(hop + 1);
+	}
+
+	/**
+	 * @return the datagrams of this train that have departed
+	 */
+	public ArrayList<Datagram> getCells() {
+		return cells;
+	}
+
+	/**
+	 * @param index
+	 *            the position of a datagram in the train
+	 * @return the departure time of the datagram at the given position
+	 */
+	public long getDepartureTime(int index) {
+		return departureTimes[index];
+	}
+
+	/**
+	 * @return the time the last datagram of this train finishes sending
+	 */
+	public long getEndTime() {
+		return endTime;
+	}
+
+	/**
+	 * @return the last datagram that departed
+	 */
+	public Datagram getLast() {
+		return cells.get(cells.size() - 1);
+	}
+
+	/**
+	 * @return the departure time of the next planned datagram
+	 */
+	public long getNextDepartureTime() {
+		return departureTimes[cells.size()];
+	}
+
+	/**
+	 * @return the network sending this train
+	 */
+	public Network getSender() {
+		return sender;
+	}
+
+	/**
+	 * @return the buffer this train draws datagrams from
+	 */
+	public Buffer getSource() {
+		return source;
+	}
+
+	/**
+	 * @return true if planned datagrams still have to depart
+	 */
+	public boolean hasPlannedDepartures() {
+		return cells.size() < plannedLength;
+	}
+
+	/**
+	 * @return the number of datagrams in this train
+	 */
+	public int size() {
+		return cells.size();
+	}
+
+	/**
+	 * Cancels all planned datagrams that have not departed yet. The train will
+	 * end as soon as the datagram currently on the wire finished sending.
+	 * 
+	 * @param timeToSendOneByte
+	 *            the upstream speed of the sender, in nanoseconds per byte
+	 * @return true if the end time of this train changed
+	 */
+	public boolean truncate(int timeToSendOneByte) {
+		if (!hasPlannedDepartures()) {
+			return false;
+		}
+		plannedLength = cells.size();
+		endTime = departureTimes[plannedLength - 1]
+				+ (getLast().getSize() * timeToSendOneByte);
+		return true;
+	}
+
+}
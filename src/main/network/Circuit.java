@@ -21,22 +21,63 @@
 package main.network;
 
 import java.util.ArrayList;
+import java.util.LinkedList;
 
+import main.event.ReclaimZombie;
+import main.network.Datagram.SendmeType;
 import main.node.Client;
 import main.node.Directory;
 import main.node.Node;
+import main.node.NodeRegistry;
 import main.node.Relay;
 import main.node.Server;
+import main.resource.Configuration;
+import main.scheduling.Scheduler.Priority;
 import main.system.Driver;
+import main.util.SimulationClock;
 
 /**
  * A circuit consisting of a client, 3 relays, and a server. Circuits keep track
  * of the number of outstanding requests they are transferring and do not get
  * toredown until all data is cleared.
+ * <p>
+ * A zombie circuit whose data never clears, for example because a reply was
+ * lost, is reclaimed by force after the configured maximum zombie lifetime.
+ * <p>
+ * If flow control is enabled, the circuit also holds the SENDME windows of
+ * both directions and the messages its edges have not completely packaged yet.
+ * The client packages requests, and the exit packages replies as it reads them
+ * from the server. Since the connection from the server to the exit is
+ * flow-controlled by the exit, the server only produces as much reply data as
+ * the exit is able to package.
+ * 
+ * @see main.network.FlowControlWindow
  * 
  * @author Rob Jansen
  */
 public class Circuit {
+	/**
+	 * The hop index of the channel from the client to the first relay
+	 */
+	public static final int ENTRY_HOP = 0;
+	/**
+	 * The hop index of the channel from the second relay to the exit
+	 */
+	public static final int TO_EXIT_HOP = 2;
+	/**
+	 * The hop index of the channel from the server to the exit
+	 */
+	public static final int SERVER_HOP = 4;
+	/**
+	 * The hop index of the channel from the exit back towards the client
+	 */
+	public static final int EXIT_HOP = 5;
+	/**
+	 * The number of channels data follows from the client to the server and
+	 * back
+	 */
+	public static final int PATH_LENGTH = 8;
+
 	/**
 	 * The client that created the circuit
 	 */
@@ -46,10 +87,33 @@ public class Circuit {
 	 */
 	private Directory directory;
 	/**
-	 * The first channel in the circuit. Channels are linked so each hop knows
-	 * where to forward data.
+	 * The nodes of the circuit in path order, from the client to the server
+	 * and back. Data at a hop is sent by the node at that index and received
+	 * by the node at the next index, so forwarding only increments the hop.
+	 */
+	private Node[] path;
+	/**
+	 * The flow control window for cells from the client to the exit, or null
+	 * if flow control is disabled
+	 */
+	private FlowControlWindow upstreamWindow;
+	/**
+	 * The flow control window for cells from the exit to the client, or null
+	 * if flow control is disabled
+	 */
+	private FlowControlWindow downstreamWindow;
+	/**
+	 * Requests the client has not completely packaged, in order
 	 */
-	private HalfDuplexChannel entryLink;
+	private LinkedList<Request> unpackagedRequests;
+	/**
+	 * Replies the exit has not completely packaged, in order
+	 */
+	private LinkedList<Reply> unpackagedReplies;
+	/**
+	 * The number of SENDME cells currently in transit in this circuit
+	 */
+	private int outstandingSendmes;
 	/**
 	 * A relay in the path.
 	 */
@@ -59,9 +123,23 @@ public class Circuit {
 	 */
 	private boolean isZombie;
 	/**
-	 * The number of requests currently in transit in this circuit
+	 * The number of requests currently in transit in this circuit, indexed by
+	 * the ordinal of their priority
+	 */
+	private int[] outstandingRequests;
+	/**
+	 * The bytes of the requests in transit and their replies
+	 */
+	private long bytesInFlight;
+	/**
+	 * The time this circuit became a zombie, in nanoseconds
+	 */
+	private long zombieTime;
+	/**
+	 * A flag indicating this circuit was reclaimed by force, so its data still
+	 * in the network is dropped
 	 */
-	private int outstandingRequests;
+	private boolean isReclaimed;
 	/**
 	 * Keeps track of the total number of datagrams the client received from this circuit.
 	 */
@@ -70,6 +148,12 @@ public class Circuit {
 	 * The client's communication partner
 	 */
 	private Server server;
+	/**
+	 * The ID of the buffers of this circuit on its nodes. A buffer created
+	 * again after it drained keeps the position of the circuit in the
+	 * scheduling ring.
+	 */
+	private int bufferId;
 
 	/**
 	 * Create a new circuit with the given client, server, and relays selected
@@ -83,42 +167,97 @@ public class Circuit {
 	 *            the directory from which relays are selected
 	 */
 	public Circuit(Client client, Server server, Directory directory) {
+		this(client, directory);
+		attach(server);
+	}
+
+	/**
+	 * Create a new preemptive circuit with the given client and relays
+	 * selected from the directory. The circuit can not carry data until it is
+	 * attached to a server.
+	 * 
+	 * @param client
+	 *            the circuit creator
+	 * @param directory
+	 *            the directory from which relays are selected
+	 * @see main.network.Circuit#attach(Server)
+	 */
+	public Circuit(Client client, Directory directory) {
 		this.client = client;
-		this.server = server;
+		this.server = null;
 		this.directory = directory;
+		bufferId = Buffer.nextId();
 		build();
 		isZombie = false;
-		outstandingRequests = 0;
+		isReclaimed = false;
+		outstandingRequests = new int[Priority.values().length];
+		bytesInFlight = 0;
+		outstandingSendmes = 0;
 		datagramCount = 0;
+		if (Configuration.NETWORK_FLOW_CONTROL) {
+			upstreamWindow = new FlowControlWindow(
+					Configuration.CIRCUIT_WINDOW,
+					Configuration.CIRCUIT_SENDME_INCREMENT);
+			downstreamWindow = new FlowControlWindow(
+					Configuration.CIRCUIT_WINDOW,
+					Configuration.CIRCUIT_SENDME_INCREMENT);
+			unpackagedRequests = new LinkedList<Request>();
+			unpackagedReplies = new LinkedList<Reply>();
+		}
+	}
+
+	/**
+	 * Queues a request the client will package as the flow control windows
+	 * allow.
+	 * 
+	 * @param request
+	 *            the request to package
+	 */
+	public void addUnpackagedRequest(Request request) {
+		unpackagedRequests.add(request);
 	}
 
 	/**
-	 * Builds a circuit by creating the necessary connections between randomly
-	 * selected relays. After building the circuit, data can flow in the circuit
-	 * in a single direction by following the entry link. Each Tor node in the
-	 * path will be notified of the circuit creation.
+	 * Queues a reply the exit will package as the flow control windows allow.
+	 * 
+	 * @param reply
+	 *            the reply to package
+	 */
+	public void addUnpackagedReply(Reply reply) {
+		unpackagedReplies.add(reply);
+	}
+
+	/**
+	 * Extends the circuit from its exit to the given server. After this call,
+	 * data can flow in the circuit in a single direction by following the
+	 * path from the entry hop.
+	 * 
+	 * @param server
+	 *            the communication partner
+	 */
+	public void attach(Server server) {
+		this.server = server;
+		path[SERVER_HOP] = server;
+	}
+
+	/**
+	 * Builds a circuit by selecting its relays and laying out its path. The
+	 * server is added to the path when the circuit is attached to a server.
+	 * Each Tor node in the path will be notified of the circuit creation.
 	 */
 	private void build() {
 		// get non-intersecting relays - tor does not select the same relay
 		// twice in any circuit
 		ArrayList<Relay> excludeList = new ArrayList<Relay>();
-		firstHop = directory.pathSelectRelay(client, excludeList);
+		firstHop = directory.pathSelectGuard(client, excludeList);
 		excludeList.add(firstHop);
 		secondHop = directory.pathSelectRelay(client, excludeList);
 		excludeList.add(secondHop);
 		thirdHop = directory.pathSelectExit(client, excludeList);
 
-		// create first connection and save pointer
-		HalfDuplexChannel channel = new HalfDuplexChannel(client, firstHop);
-		entryLink = channel;
-		// create remaining channels
-		channel = createNextChannel(channel, secondHop);
-		channel = createNextChannel(channel, thirdHop);
-		channel = createNextChannel(channel, server);
-		channel = createNextChannel(channel, thirdHop);
-		channel = createNextChannel(channel, secondHop);
-		channel = createNextChannel(channel, firstHop);
-		channel = createNextChannel(channel, client);
+		// the server is not known until the circuit is attached
+		path = new Node[] { client, firstHop, secondHop, thirdHop, null,
+				thirdHop, secondHop, firstHop, client };
 
 		client.notifyCircuitBuilt(this);
 		firstHop.notifyCircuitBuilt(this);
@@ -131,9 +270,13 @@ public class Circuit {
 
 	/**
 	 * Increment the number of outstanding requests.
+	 * 
+	 * @param request
+	 *            the request the client sent
 	 */
-	public void clientAddedRequest() {
-		outstandingRequests++;
+	public void clientAddedRequest(Request request) {
+		outstandingRequests[request.getPriority().ordinal()]++;
+		bytesInFlight += request.getSize() + request.getRequestedDataSize();
 	}
 
 	/**
@@ -141,41 +284,85 @@ public class Circuit {
 	 * zombie, i.e. the client is finished with it, and it has no more
 	 * outstanding requests, it is tore-down.
 	 */
-	public void clientRemovedRequest() {
-		outstandingRequests--;
+	public void clientRemovedRequest(long time, Reply reply) {
+		outstandingRequests[reply.getPriority().ordinal()]--;
+		bytesInFlight -= reply.getRequest().getSize() + reply.getSize();
 		// teardown if no more outstanding requests and is a zombie
-		if (isZombie && (outstandingRequests <= 0)) {
-			teardown();
+		if (isZombie && !hasOutstandingData()) {
+			teardown(time);
 		}
 	}
 
 	/**
-	 * Links the given previous channel to a new channel to the given receiver.
+	 * Creates a SENDME cell the client sends to the exit, acknowledging cells
+	 * of the circuit or of the given reply.
 	 * 
-	 * @param previousChannel
-	 *            the previous channel in the linked path
-	 * @param nextReceiver
-	 *            the receiver of the next channel in the linked path
-	 * @return the new linked channel
-	 */
-	private HalfDuplexChannel createNextChannel(
-			HalfDuplexChannel previousChannel, Node nextReceiver) {
-		Node nextSender = null;
-		if (previousChannel != null) {
-			nextSender = previousChannel.getReceiver();
+	 * @param reply
+	 *            the reply the client delivered cells of
+	 * @param type
+	 *            the flow control level to acknowledge
+	 * @return the SENDME cell, ready to be sent by the client
+	 */
+	public Datagram createClientSendme(Reply reply, SendmeType type) {
+		Datagram sendme = new Datagram(reply.getRequest(),
+				type == SendmeType.STREAM ? reply : null, type);
+		sendme.setHop(ENTRY_HOP);
+		outstandingSendmes++;
+		return sendme;
+	}
+
+	/**
+	 * Creates a SENDME cell the exit sends to the client, acknowledging cells
+	 * of the circuit or of the given request.
+	 * 
+	 * @param request
+	 *            the request the exit delivered cells of
+	 * @param type
+	 *            the flow control level to acknowledge
+	 * @return the SENDME cell, ready to be sent by the exit
+	 */
+	public Datagram createExitSendme(Request request, SendmeType type) {
+		Datagram sendme = new Datagram(request, null, type);
+		sendme.setHop(EXIT_HOP);
+		outstandingSendmes++;
+		return sendme;
+	}
+
+	/**
+	 * @param position
+	 *            the position of a node in the path, where the node at the
+	 *            position of a hop sends the data at that hop
+	 * @return the node at the given position, or null if this circuit was tore
+	 *         down
+	 */
+	public Node getNode(int position) {
+		if (path == null) {
+			return null;
 		}
-		HalfDuplexChannel nextChannel = new HalfDuplexChannel(nextSender,
-				nextReceiver);
-		previousChannel.setNextChannel(nextChannel);
-		return nextChannel;
+		return path[position];
 	}
 
 	/**
-	 * @return the first channel constructing the circuit. This link can be
-	 *         followed to send data to the server and back.
+	 * @return the ID of the buffers of this circuit on its nodes
 	 */
-	public HalfDuplexChannel getEntryLink() {
-		return entryLink;
+	public int getBufferId() {
+		return bufferId;
+	}
+
+	/**
+	 * @return the flow control window for cells from the exit to the client,
+	 *         or null if flow control is disabled
+	 */
+	public FlowControlWindow getDownstreamWindow() {
+		return downstreamWindow;
+	}
+
+	/**
+	 * @return the flow control window for cells from the client to the exit,
+	 *         or null if flow control is disabled
+	 */
+	public FlowControlWindow getUpstreamWindow() {
+		return upstreamWindow;
 	}
 
 	/**
@@ -196,6 +383,49 @@ public class Circuit {
 		return thirdHop.equals(relay);
 	}
 
+	/**
+	 * @return true if the circuit is attached to a server and can carry data
+	 */
+	public boolean isAttached() {
+		return server != null;
+	}
+
+	/**
+	 * @return the bytes of the requests in transit in this circuit and their
+	 *         replies
+	 */
+	public long getBytesInFlight() {
+		return bytesInFlight;
+	}
+
+	/**
+	 * @return the time this circuit became a zombie, in nanoseconds
+	 */
+	public long getZombieTime() {
+		return zombieTime;
+	}
+
+	/**
+	 * @return true if this circuit was reclaimed by force, so data of this
+	 *         circuit arriving at a node is dropped
+	 */
+	public boolean isReclaimed() {
+		return isReclaimed;
+	}
+
+	/**
+	 * @return true if requests or SENDME cells of this circuit are still in
+	 *         transit
+	 */
+	public boolean hasOutstandingData() {
+		for (int requests : outstandingRequests) {
+			if (requests > 0) {
+				return true;
+			}
+		}
+		return outstandingSendmes > 0;
+	}
+
 	/**
 	 * @return the zombie status of this circuit
 	 */
@@ -204,37 +434,178 @@ public class Circuit {
 	}
 
 	/**
+	 * Finds the next queued message to package from, if the given circuit
+	 * window is open. Messages are packaged in order, skipping those with a
+	 * closed stream window.
+	 * 
+	 * @param window
+	 *            the circuit window of the packaging direction
+	 * @param unpackaged
+	 *            the queued messages of the packaging direction
+	 * @return the message to package next, or null if nothing may be packaged
+	 */
+	private Message nextPackageable(FlowControlWindow window,
+			LinkedList<? extends Message> unpackaged) {
+		if (window.canPackage()) {
+			for (Message message : unpackaged) {
+				if (message.getStreamWindow().canPackage()) {
+					return message;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Packages the next piece of the given message, closing the circuit and
+	 * stream windows by one cell. The message is removed from the queue once
+	 * it is completely packaged.
+	 * 
+	 * @return the size of the packaged piece
+	 */
+	private int packagePart(FlowControlWindow window,
+			LinkedList<? extends Message> unpackaged, Message message) {
+		int length = Math.min(message.getSize() - message.getPackagedBytes(),
+				Datagram.MAX_PAYLOAD_LENGTH);
+		message.packagedPart(length);
+		message.getStreamWindow().packaged();
+		window.packaged();
+		if (message.isPackaged()) {
+			unpackaged.remove(message);
+		}
+		return length;
+	}
+
+	/**
+	 * Packages the next cell of the queued requests, as the client would.
+	 * 
+	 * @return a cell to send into the circuit, or null if the windows are
+	 *         closed or there is nothing to package
+	 */
+	public Datagram packageRequestData() {
+		Request request = (Request) nextPackageable(upstreamWindow,
+				unpackagedRequests);
+		if (request == null) {
+			return null;
+		}
+		int length = packagePart(upstreamWindow, unpackagedRequests, request);
+		Datagram cell = new Datagram(request, true, length);
+		cell.setHop(ENTRY_HOP);
+		return cell;
+	}
+
+	/**
+	 * Packages the next piece of the queued replies, as the server would
+	 * provide it to the exit.
+	 * 
+	 * @return the data the server sends to the exit, or null if the windows
+	 *         are closed or there is nothing to package
+	 */
+	public Datagram packageReplyData() {
+		Reply reply = (Reply) nextPackageable(downstreamWindow,
+				unpackagedReplies);
+		if (reply == null) {
+			return null;
+		}
+		int length = packagePart(downstreamWindow, unpackagedReplies, reply);
+		Datagram data = new Datagram(reply.getRequest(), reply, false, length);
+		data.setHop(SERVER_HOP);
+		return data;
+	}
+
+	/**
+	 * Decrement the number of SENDME cells in transit. If this circuit is a
+	 * zombie and has no more outstanding requests, it is tore-down.
+	 */
+	public void sendmeArrived(long time) {
+		outstandingSendmes--;
+		if (isZombie && !hasOutstandingData()) {
+			teardown(time);
+		}
+	}
+
+	/**
+	 * Sets the zombie status of this circuit. A zombie with no outstanding
+	 * data is tore-down immediately. Otherwise it is tracked by the Driver
+	 * until it is tore-down, and reclaimed by force if it outlives the
+	 * configured maximum zombie lifetime.
+	 * 
 	 * @param isZombie
 	 *            the zombie status to set for this circuit
 	 */
-	public void setZombie(boolean isZombie) {
+	public void setZombie(long time, boolean isZombie) {
 		this.isZombie = isZombie;
-		if (outstandingRequests <= 0) {
-			teardown();
+		if (!hasOutstandingData()) {
+			teardown(time);
+			return;
+		}
+		zombieTime = time;
+		Driver.getInstance().addZombie(this);
+		if (Configuration.MAX_ZOMBIE_LIFETIME > 0) {
+			long lifetime = SimulationClock.getInstance().getOneSecond()
+					* Configuration.MAX_ZOMBIE_LIFETIME;
+			Driver.getInstance().addEvent(
+					new ReclaimZombie(time + lifetime, client, this));
 		}
 	}
 
 	/**
-	 * Destroys a circuit by dropping the connections between nodes. This
-	 * effectively removes the forwarding links for this circuit. Each Tor node
-	 * in the circuit is notified of the teardown. All references to nodes in
-	 * the path are removed, and the circuit is unusable after this call.
+	 * Reclaims this zombie circuit by force if it is not tore-down yet. Each
+	 * Tor node in the circuit releases the buffer of the circuit, and queued
+	 * messages are dropped. The path is kept, so data of this circuit that is
+	 * still in the network reaches the next node, where it is dropped, and
+	 * nothing is left in transit.
+	 * Outstanding requests are never completed, so they are removed from the
+	 * message counters of the Driver.
 	 */
-	private void teardown() {
-		HalfDuplexChannel link = entryLink;
+	public void reclaim(long time) {
+		if (path == null || isReclaimed) {
+			return;
+		}
+		Driver.log.fine("circuit " + toString() + " reclaimed after "
+				+ (time - zombieTime)
+				/ SimulationClock.getInstance().getOneSecond()
+				+ " seconds with " + bytesInFlight + " bytes in flight");
 
-		while (link != null) {
-			HalfDuplexChannel next = link.getNextChannel();
-			link.setNextChannel(null);
-			link = next;
+		isReclaimed = true;
+		Driver.getInstance().removeZombie(this, true);
+		NodeRegistry.getInstance().addBytesInFlight(client.getId(),
+				-bytesInFlight);
+		bytesInFlight = 0;
+		for (Priority p : Priority.values()) {
+			for (int i = 0; i < outstandingRequests[p.ordinal()]; i++) {
+				Driver.getInstance().decrementMessageCount(p);
+			}
+			outstandingRequests[p.ordinal()] = 0;
 		}
+		outstandingSendmes = 0;
+		if (Configuration.NETWORK_FLOW_CONTROL) {
+			unpackagedRequests.clear();
+			unpackagedReplies.clear();
+		}
+
+		client.notifyCircuitTordown(time, this);
+		firstHop.notifyCircuitTordown(time, this);
+		secondHop.notifyCircuitTordown(time, this);
+		thirdHop.notifyCircuitTordown(time, this);
+	}
 
-		client.notifyCircuitTordown(this);
-		firstHop.notifyCircuitTordown(this);
-		secondHop.notifyCircuitTordown(this);
-		thirdHop.notifyCircuitTordown(this);
+	/**
+	 * Destroys a circuit by dropping its path between nodes. This effectively
+	 * removes the forwarding hops for this circuit. Each Tor node
+	 * in the circuit is notified of the teardown. All references to nodes in
+	 * the path are removed, and the circuit is unusable after this call.
+	 */
+	private void teardown(long time) {
+		if (isZombie) {
+			Driver.getInstance().removeZombie(this, false);
+		}
+		client.notifyCircuitTordown(time, this);
+		firstHop.notifyCircuitTordown(time, this);
+		secondHop.notifyCircuitTordown(time, this);
+		thirdHop.notifyCircuitTordown(time, this);
 
-		entryLink = null;
+		path = null;
 
 		Driver.log.fine("circuit " + toString() + " tore down");
 
@@ -254,7 +625,7 @@ public class Circuit {
 	public String toString() {
 		return "[" + client.toString() + "]-->[" + firstHop.toString()
 				+ "]-->[" + secondHop.toString() + "]-->["
-				+ thirdHop.toString() + "]-->[" + server.toString();
+				+ thirdHop.toString() + "]-->[" + server;
 	}
 	
 	/**
@@ -20,15 +20,32 @@
  */
 package main.network;
 
+import main.node.Node;
 import main.system.Driver;
 
 /**
  * The most generic kind of data an application can generate.
+ * <p>
+ * Since millions of datagrams may be in flight, a datagram is kept compact: its
+ * flags, hop index and piece size are packed into a single int, it refers to
+ * its channel by its hop index in the circuit of its message, and it holds a
+ * single message reference from which both request and reply are derived.
  * 
  * @author Rob Jansen
  */
 public class Datagram {
 
+	/**
+	 * Defines the flow control level a SENDME cell acknowledges.
+	 * 
+	 * @see main.network.FlowControlWindow
+	 * 
+	 * @author agent
+	 */
+	public enum SendmeType {
+		CIRCUIT, STREAM;
+	}
+
 	/**
 	 * The cell size will be padded to this length if data is too small.
 	 */
@@ -40,43 +57,54 @@ public class Datagram {
 	public static final int MAX_PAYLOAD_LENGTH = CELL_LENGTH - 14;
 
 	/**
-	 * The channel transporting the data. This is updated as each hop "fowards"
-	 * the data along the path.
+	 * Bits of the packed field holding the unencrypted piece size
 	 */
-	private HalfDuplexChannel channel;
+	private static final int PIECE_SIZE_MASK = 0xFFF;
 
 	/**
-	 * If this data is currently encrypted in a cell
+	 * Flag set if this data is currently encrypted in a cell
 	 */
-	private boolean isCell;
+	private static final int IS_CELL = 1 << 12;
 
 	/**
-	 * The unencrypted (non-cell) size of this data piece in bytes.
+	 * Flag set if this is phantom data
 	 */
-	private int pieceSize;
+	private static final int IS_PHANTOM = 1 << 13;
 
 	/**
-	 * The time the data arrived in the most recent buffer it was stored.
+	 * Flag set if this is a circuit level SENDME cell
 	 */
-	private long queueArrivalTime;
+	private static final int IS_CIRCUIT_SENDME = 1 << 14;
+
+	/**
+	 * Flag set if this is a stream level SENDME cell
+	 */
+	private static final int IS_STREAM_SENDME = 1 << 15;
+
+	/**
+	 * The offset of the hop index in the packed field
+	 */
+	private static final int HOP_SHIFT = 16;
 
 	/**
-	 * The server's reply this data is part of, which may be null if the data is
-	 * being transferred from the client to the server.
+	 * The flags, the hop index in the circuit of the message and the
+	 * unencrypted (non-cell) size of this data piece in bytes. A phantom
+	 * datagram does nothing but take up bandwidth, causing the link to be idle
+	 * for a sending period. It has no destination or useful information.
 	 */
-	private Reply reply;
+	private int bits;
 
 	/**
-	 * The client's request this data is a part of.
+	 * The reply this data is part of if it is travelling from the server to
+	 * the client, otherwise the client's request this data is part of. A
+	 * stream level SENDME refers to the message it acknowledges.
 	 */
-	private Request request;
+	private Message message;
 
 	/**
-	 * A phantom datagram does nothing but take up bandwidth, causing the link
-	 * to be idle for a sending period. It has no destination or useful
-	 * information.
+	 * The time the data arrived in the most recent buffer it was stored.
 	 */
-	private boolean isPhantom;
+	private long queueArrivalTime;
 
 	/**
 	 * Constructs a datagram associated with the given request, with the given
@@ -95,10 +123,9 @@ public class Datagram {
 			Driver.log
 					.severe("Attempting to create a cell with a payload that is too large");
 		}
-		this.pieceSize = pieceSize;
-		this.request = request;
-		this.isCell = isCell;
-		isPhantom = false;
+		message = request;
+		bits = pieceSize & PIECE_SIZE_MASK;
+		setCell(isCell);
 		queueArrivalTime = 0;
 	}
 
@@ -110,7 +137,8 @@ public class Datagram {
 	 * @param request
 	 *            the request associated with this data
 	 * @param reply
-	 *            the reply associated with this data
+	 *            the reply associated with this data, which must reply to the
+	 *            given request if it is not null
 	 * @param isCell
 	 *            if this data should be a cell
 	 * @param pieceSize
@@ -121,34 +149,69 @@ public class Datagram {
 			Driver.log
 					.severe("Attempting to create a reply data with a payload that is too large");
 		}
-		this.pieceSize = pieceSize;
-		this.request = request;
-		this.reply = reply;
+		if (reply != null) {
+			message = reply;
+		} else {
+			message = request;
+		}
+		bits = pieceSize & PIECE_SIZE_MASK;
+		setCell(isCell);
+	}
+
+	/**
+	 * Constructs an empty SENDME cell for the circuit of the given request. A
+	 * stream level SENDME acknowledges cells of the given reply if it is not
+	 * null, otherwise cells of the request.
+	 * 
+	 * @param request
+	 *            the request associated with this cell
+	 * @param reply
+	 *            the reply associated with this cell, may be null
+	 * @param sendme
+	 *            the flow control level this SENDME acknowledges
+	 */
+	public Datagram(Request request, Reply reply, SendmeType sendme) {
+		this(request, reply, true, 0);
+		if (sendme == SendmeType.CIRCUIT) {
+			bits |= IS_CIRCUIT_SENDME;
+		} else if (sendme == SendmeType.STREAM) {
+			bits |= IS_STREAM_SENDME;
+		}
+	}
+
+	/**
+	 * @return the node receiving this data at the current hop in its circuit
+	 */
+	public Node getReceiver() {
+		return message.getCircuit().getNode(getHop() + 1);
+	}
+
+	/**
+	 * @return the node sending this data at the current hop in its circuit
+	 */
+	public Node getSender() {
+		return message.getCircuit().getNode(getHop());
 	}
 
 	/**
-	 * @return the nextHop
+	 * @return the position of the current channel in the circuit
 	 */
-	public HalfDuplexChannel getChannel() {
-		return channel;
+	public int getHop() {
+		return bits >>> HOP_SHIFT;
 	}
 
 	/**
 	 * @return the reply if it is not null, otherwise the request
 	 */
 	public Message getMessage() {
-		if (reply != null) {
-			return reply;
-		} else {
-			return request;
-		}
+		return message;
 	}
 
 	/**
 	 * @return the pieceSize
 	 */
 	public int getPieceSize() {
-		return pieceSize;
+		return bits & PIECE_SIZE_MASK;
 	}
 
 	/**
@@ -159,24 +222,46 @@ public class Datagram {
 	}
 
 	/**
-	 * @return the reply
+	 * @return the reply, or null if this data is part of a request
 	 */
 	public Reply getReply() {
-		return reply;
+		if (message instanceof Reply) {
+			return (Reply) message;
+		} else {
+			return null;
+		}
 	}
 
 	/**
 	 * @return the request
 	 */
 	public Request getRequest() {
-		return request;
+		if (message instanceof Reply) {
+			return ((Reply) message).getRequest();
+		} else {
+			return (Request) message;
+		}
 	}
 
 	public int getSize() {
-		if (isCell) {
+		if (isCell()) {
 			return CELL_LENGTH;
 		} else {
-			return pieceSize;
+			return getPieceSize();
+		}
+	}
+
+	/**
+	 * @return the flow control level of this SENDME cell, or null if this is
+	 *         not a SENDME
+	 */
+	public SendmeType getSendme() {
+		if ((bits & IS_CIRCUIT_SENDME) != 0) {
+			return SendmeType.CIRCUIT;
+		} else if ((bits & IS_STREAM_SENDME) != 0) {
+			return SendmeType.STREAM;
+		} else {
+			return null;
 		}
 	}
 
@@ -184,7 +269,7 @@ public class Datagram {
 	 * @return the isCell
 	 */
 	public boolean isCell() {
-		return isCell;
+		return (bits & IS_CELL) != 0;
 	}
 
 	/**
@@ -192,15 +277,19 @@ public class Datagram {
 	 *            the isCell to set
 	 */
 	public void setCell(boolean isCell) {
-		this.isCell = isCell;
+		if (isCell) {
+			bits |= IS_CELL;
+		} else {
+			bits &= ~IS_CELL;
+		}
 	}
 
 	/**
-	 * @param nextHop
-	 *            the nextHop to set
+	 * @param hop
+	 *            the position of the next channel in the circuit
 	 */
-	public void setChannel(HalfDuplexChannel nextHop) {
-		channel = nextHop;
+	public void setHop(int hop) {
+		bits = (bits & ((1 << HOP_SHIFT) - 1)) | (hop << HOP_SHIFT);
 	}
 
 	/**
@@ -221,11 +310,18 @@ public class Datagram {
 		return getMessage().toString();
 	}
 
+	/**
+	 * @return true if this is a SENDME cell, false otherwise
+	 */
+	public boolean isSendme() {
+		return (bits & (IS_CIRCUIT_SENDME | IS_STREAM_SENDME)) != 0;
+	}
+
 	/**
 	 * @return true if this is phantom data, false otherwise
 	 */
 	public boolean isPhantom() {
-		return isPhantom;
+		return (bits & IS_PHANTOM) != 0;
 	}
 
 	/**
@@ -233,7 +329,7 @@ public class Datagram {
 	 * the sender, but not be received by anyone.
 	 */
 	public void setPhantom() {
-		this.isPhantom = true;
+		bits |= IS_PHANTOM;
 	}
 
 }
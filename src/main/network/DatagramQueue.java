@@ -0,0 +1,141 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.network;
+
+/**
+ * A first-in first-out queue of datagrams used by a Buffer. Along with each
+ * datagram, the queue keeps the time it arrived in the queue so schedulers can
+ * read the arrival time of the head without touching the datagram. Single
+ * fields of a queued datagram can be peeked, which queues that do not keep
+ * datagram objects answer without creating one.
+ * 
+ * @see main.network.Buffer
+ * 
+ * @author agent
+ */
+public abstract class DatagramQueue {
+
+	/**
+	 * Adds the given datagram to the end of the queue. The queue arrival time
+	 * of the datagram must already be set.
+	 * 
+	 * @param d
+	 *            the datagram to add
+	 */
+	public abstract void addLast(Datagram d);
+
+	/**
+	 * @return true if the queue holds no datagrams, false otherwise
+	 */
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @param index
+	 *            the position in the queue
+	 * @return the datagram at the given position, without removing it
+	 */
+	public abstract Datagram peek(int index);
+
+	/**
+	 * @return the head of the queue without removing it, or null if the queue
+	 *         is empty
+	 */
+	public Datagram peekFirst() {
+		if (isEmpty()) {
+			return null;
+		}
+		return peek(0);
+	}
+
+	/**
+	 * @return the time the head of the queue arrived in the queue. The queue
+	 *         must not be empty.
+	 */
+	public abstract long peekFirstArrivalTime();
+
+	/**
+	 * @param index
+	 *            the position in the queue
+	 * @return the hop index of the datagram at the given position
+	 */
+	public int peekHop(int index) {
+		return peek(index).getHop();
+	}
+
+	/**
+	 * @param index
+	 *            the position in the queue
+	 * @return the message of the datagram at the given position
+	 */
+	public Message peekMessage(int index) {
+		return peek(index).getMessage();
+	}
+
+	/**
+	 * @param index
+	 *            the position in the queue
+	 * @return true if the datagram at the given position is phantom data
+	 */
+	public boolean peekPhantom(int index) {
+		return peek(index).isPhantom();
+	}
+
+	/**
+	 * @param index
+	 *            the position in the queue
+	 * @return the size of the datagram at the given position
+	 */
+	public int peekSize(int index) {
+		return peek(index).getSize();
+	}
+
+	/**
+	 * Removes the head of the queue. The queue must not be empty.
+	 * 
+	 * @return the datagram that was removed
+	 */
+	public abstract Datagram removeFirst();
+
+	/**
+	 * @return the number of datagrams in the queue
+	 */
+	public abstract int size();
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < size(); i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(peek(i));
+		}
+		return sb.append("]").toString();
+	}
+
+}
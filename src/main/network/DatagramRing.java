@@ -0,0 +1,163 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.network;
+
+/**
+ * A growable circular array of datagrams. The queue arrival times are kept in
+ * a parallel primitive array, so the arrival time of the head is read without
+ * dereferencing the datagram. The arrays double when full and halve when less
+ * than a quarter is used, but never shrink below the initial capacity.
+ * 
+ * @author agent
+ */
+public class DatagramRing extends DatagramQueue {
+	/**
+	 * The smallest number of slots in the ring, must be a power of two
+	 */
+	private static final int INITIAL_CAPACITY = 8;
+
+	/**
+	 * The queue arrival time of the datagram in each slot
+	 */
+	private long[] arrivalTimes;
+
+	/**
+	 * The slots of the ring
+	 */
+	private Datagram[] datagrams;
+
+	/**
+	 * The slot of the head of the queue
+	 */
+	private int head;
+
+	/**
+	 * The number of datagrams in the ring
+	 */
+	private int size;
+
+	/**
+	 * Create an empty ring with the initial capacity.
+	 */
+	public DatagramRing() {
+		datagrams = new Datagram[INITIAL_CAPACITY];
+		arrivalTimes = new long[INITIAL_CAPACITY];
+		head = 0;
+		size = 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.network.DatagramQueue#addLast(main.network.Datagram)
+	 */
+	@Override
+	public void addLast(Datagram d) {
+		if (size == datagrams.length) {
+			resize(datagrams.length << 1);
+		}
+		int tail = (head + size) & (datagrams.length - 1);
+		datagrams[tail] = d;
+		arrivalTimes[tail] = d.getQueueArrivalTime();
+		size++;
+	}
+
+	/**
+	 * @return the number of slots in the ring
+	 */
+	public int getCapacity() {
+		return datagrams.length;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.network.DatagramQueue#peek(int)
+	 */
+	@Override
+	public Datagram peek(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ size);
+		}
+		return datagrams[(head + index) & (datagrams.length - 1)];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.network.DatagramQueue#peekFirstArrivalTime()
+	 */
+	@Override
+	public long peekFirstArrivalTime() {
+		return arrivalTimes[head];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.network.DatagramQueue#removeFirst()
+	 */
+	@Override
+	public Datagram removeFirst() {
+		Datagram d = datagrams[head];
+		// let the datagram be collected once it leaves the network
+		datagrams[head] = null;
+		head = (head + 1) & (datagrams.length - 1);
+		size--;
+		if (datagrams.length > INITIAL_CAPACITY
+				&& size < (datagrams.length >> 2)) {
+			resize(datagrams.length >> 1);
+		}
+		return d;
+	}
+
+	/**
+	 * Copies the queue to arrays of the given capacity, moving the head to the
+	 * first slot.
+	 * 
+	 * @param capacity
+	 *            the new number of slots, a power of two
+	 */
+	private void resize(int capacity) {
+		Datagram[] newDatagrams = new Datagram[capacity];
+		long[] newArrivalTimes = new long[capacity];
+		int mask = datagrams.length - 1;
+		for (int i = 0; i < size; i++) {
+			newDatagrams[i] = datagrams[(head + i) & mask];
+			newArrivalTimes[i] = arrivalTimes[(head + i) & mask];
+		}
+		datagrams = newDatagrams;
+		arrivalTimes = newArrivalTimes;
+		head = 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.network.DatagramQueue#size()
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.network;
+
+import main.node.Node;
+import main.scheduling.Scheduler.Priority;
+
+/**
+ * A buffer with the state of the deficit round robin scheduler.
+ * 
+ * @see main.scheduling.DeficitRoundRobinScheduler
+ * 
+ * @author agent
+ */
+public class DrrBuffer extends Buffer {
+	/**
+	 * Creates DRR buffers
+	 */
+	public static final BufferFactory FACTORY = new BufferFactory() {
+		@Override
+		public Buffer createBuffer(int id, Priority p, Node node,
+				SchedulingRing ring, boolean dynamic) {
+			return new DrrBuffer(id, p, node, ring);
+		}
+
+		@Override
+		public boolean keepsStateWhileEmpty() {
+			return false;
+		}
+	};
+
+	/**
+	 * The number of bytes this buffer may still send in the current round
+	 */
+	private int drrDeficit;
+
+	/**
+	 * @see main.network.Buffer#Buffer(int, Priority, Node, SchedulingRing)
+	 */
+	public DrrBuffer(int id, Priority p, Node node, SchedulingRing ring) {
+		super(id, p, node, ring);
+		drrDeficit = 0;
+	}
+
+	/**
+	 * @return the drrDeficit
+	 */
+	public int getDrrDeficit() {
+		return drrDeficit;
+	}
+
+	/**
+	 * @param drrDeficit
+	 *            the drrDeficit to set
+	 */
+	public void setDrrDeficit(int drrDeficit) {
+		this.drrDeficit = drrDeficit;
+	}
+
+}
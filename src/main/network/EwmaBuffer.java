@@ -0,0 +1,120 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.network;
+
+import main.node.Node;
+import main.scheduling.Scheduler.Priority;
+
+/**
+ * A buffer with the state of the exponential weighted moving average
+ * scheduler.
+ * 
+ * @see main.scheduling.ExponentialWeightedMovingAverageScheduler
+ * 
+ * @author agent
+ */
+public class EwmaBuffer extends Buffer {
+	/**
+	 * Creates EWMA buffers
+	 */
+	public static final BufferFactory FACTORY = new BufferFactory() {
+		@Override
+		public Buffer createBuffer(int id, Priority p, Node node,
+				SchedulingRing ring, boolean dynamic) {
+			return new EwmaBuffer(id, p, node, ring);
+		}
+	};
+
+	/**
+	 * Current counter for exponential weighted moving average
+	 */
+	private double ewma;
+
+	/**
+	 * Last interval exponential weighted moving average was computed
+	 */
+	private long ewmaLastAdjustedInterval;
+
+	/**
+	 * The position of this buffer in the BufferHeap of the scheduler, or -1 if
+	 * it is not in the heap
+	 */
+	private int heapIndex;
+
+	/**
+	 * @see main.network.Buffer#Buffer(int, Priority, Node, SchedulingRing)
+	 */
+	public EwmaBuffer(int id, Priority p, Node node, SchedulingRing ring) {
+		super(id, p, node, ring);
+		ewma = 0;
+		ewmaLastAdjustedInterval = 0;
+		heapIndex = -1;
+	}
+
+	@Override
+	int getHeapIndex(int slot) {
+		if (slot == 0) {
+			return heapIndex;
+		} else {
+			return super.getHeapIndex(slot);
+		}
+	}
+
+	@Override
+	void setHeapIndex(int slot, int heapIndex) {
+		if (slot == 0) {
+			this.heapIndex = heapIndex;
+		} else {
+			super.setHeapIndex(slot, heapIndex);
+		}
+	}
+
+	/**
+	 * @return the ewma
+	 */
+	public double getEwma() {
+		return ewma;
+	}
+
+	/**
+	 * @param ewma
+	 *            the ewma to set
+	 */
+	public void setEwma(double ewma) {
+		this.ewma = ewma;
+	}
+
+	/**
+	 * @return the ewmaLastAdjustedInterval
+	 */
+	public long getEwmaLastAdjustedInterval() {
+		return ewmaLastAdjustedInterval;
+	}
+
+	/**
+	 * @param ewmaLastAdjustedInterval
+	 *            the ewmaLastAdjustedInterval to set
+	 */
+	public void setEwmaLastAdjustedInterval(long ewmaLastAdjustedInterval) {
+		this.ewmaLastAdjustedInterval = ewmaLastAdjustedInterval;
+	}
+
+}
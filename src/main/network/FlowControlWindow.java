@@ -0,0 +1,113 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.network;
+
+/**
+ * Tor's SENDME flow control for a single direction of a circuit or stream. The
+ * packaging edge may only package a cell while its package window is open.
+ * The delivering edge counts delivered cells in its deliver window and sends a
+ * SENDME back to the packaging edge every increment cells, which opens the
+ * package window by the same increment. At most a window of cells is therefore
+ * in transit in this direction at any time.
+ * 
+ * @see main.resource.Configuration#NETWORK_FLOW_CONTROL
+ * 
+ * @author agent
+ */
+public class FlowControlWindow {
+	/**
+	 * The number of cells delivered before a SENDME is due
+	 */
+	private int deliverWindow;
+
+	/**
+	 * The number of cells a SENDME acknowledges
+	 */
+	private int increment;
+
+	/**
+	 * The number of cells that may still be packaged
+	 */
+	private int packageWindow;
+
+	/**
+	 * The size of the window when it is created
+	 */
+	private int start;
+
+	/**
+	 * Create a window with both edges at the given start size.
+	 * 
+	 * @param start
+	 *            the initial window size, in cells
+	 * @param increment
+	 *            the number of cells acknowledged by a SENDME
+	 */
+	public FlowControlWindow(int start, int increment) {
+		this.start = start;
+		this.increment = increment;
+		packageWindow = start;
+		deliverWindow = start;
+	}
+
+	/**
+	 * @return true if the packaging edge may package another cell
+	 */
+	public boolean canPackage() {
+		return packageWindow > 0;
+	}
+
+	/**
+	 * Counts a cell delivered by the delivering edge.
+	 * 
+	 * @return true if the delivering edge should send a SENDME now
+	 */
+	public boolean delivered() {
+		deliverWindow--;
+		if (deliverWindow <= start - increment) {
+			deliverWindow += increment;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of cells that may still be packaged
+	 */
+	public int getPackageWindow() {
+		return packageWindow;
+	}
+
+	/**
+	 * Counts a cell packaged by the packaging edge.
+	 */
+	public void packaged() {
+		packageWindow--;
+	}
+
+	/**
+	 * Opens the package window after the packaging edge received a SENDME.
+	 */
+	public void receivedSendme() {
+		packageWindow += increment;
+	}
+
+}
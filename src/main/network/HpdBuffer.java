@@ -0,0 +1,125 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.network;
+
+import main.node.Node;
+import main.scheduling.Scheduler.Priority;
+import main.system.Driver;
+
+/**
+ * A buffer with the state of the hybrid proportional delay scheduler.
+ * 
+ * @see main.scheduling.HybridProportionalDelayScheduler
+ * 
+ * @author agent
+ */
+public class HpdBuffer extends RingBuffer {
+	/**
+	 * Creates HPD buffers
+	 */
+	public static final BufferFactory FACTORY = new BufferFactory() {
+		@Override
+		public Buffer createBuffer(int id, Priority p, Node node,
+				SchedulingRing ring, boolean dynamic) {
+			return new HpdBuffer(id, p, node, ring, dynamic);
+		}
+	};
+
+	/**
+	 * The sum of delay for packets sent from this buffer, in milliseconds
+	 */
+	private long hpdTotalSentPacketDelay;
+
+	/**
+	 * The sum of packets sent
+	 */
+	private long hpdTotalSentPackets;
+
+	/**
+	 * The position of this buffer in the BufferHeap of the first slot of the
+	 * scheduler, or -1 if it is not in that heap
+	 */
+	private int firstHeapIndex;
+
+	/**
+	 * The position of this buffer in the BufferHeap of the second slot of the
+	 * scheduler, or -1 if it is not in that heap
+	 */
+	private int secondHeapIndex;
+
+	/**
+	 * @see main.network.RingBuffer#RingBuffer(int, Priority, Node,
+	 *      SchedulingRing, boolean)
+	 */
+	public HpdBuffer(int id, Priority p, Node node, SchedulingRing ring,
+			boolean dynamic) {
+		super(id, p, node, ring, dynamic);
+		hpdTotalSentPacketDelay = 0;
+		// avoid division by 0 error
+		hpdTotalSentPackets = 1;
+		firstHeapIndex = -1;
+		secondHeapIndex = -1;
+	}
+
+	@Override
+	int getHeapIndex(int slot) {
+		if (slot == 0) {
+			return firstHeapIndex;
+		} else {
+			return secondHeapIndex;
+		}
+	}
+
+	@Override
+	void setHeapIndex(int slot, int heapIndex) {
+		if (slot == 0) {
+			firstHeapIndex = heapIndex;
+		} else {
+			secondHeapIndex = heapIndex;
+		}
+	}
+
+	/**
+	 * @return the hpdTotalSentPacketDelay
+	 */
+	public long getHpdTotalSentPacketDelay() {
+		return hpdTotalSentPacketDelay;
+	}
+
+	/**
+	 * @return the hpdTotalSentPackets
+	 */
+	public long getHpdTotalSentPackets() {
+		return hpdTotalSentPackets;
+	}
+
+	/**
+	 * Counts a packet sent from this buffer at the given time.
+	 */
+	public void hpdSentPacket(long time) {
+		hpdTotalSentPacketDelay += time / 1000000;
+		hpdTotalSentPackets += 1;
+		if (hpdTotalSentPacketDelay < 0) {
+			Driver.log.warning("HPD total packet delay overflowed long!");
+		}
+	}
+
+}
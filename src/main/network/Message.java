@@ -22,6 +22,7 @@ package main.network;
 
 import main.application.TorApplication;
 import main.node.Server;
+import main.resource.Configuration;
 import main.scheduling.Scheduler.Priority;
 
 /**
@@ -46,6 +47,11 @@ public abstract class Message {
 	 * The number of bytes of this message that have made it to the destination
 	 */
 	private int deliveredBytes;
+	/**
+	 * The number of bytes of this message that have been packaged into the
+	 * circuit by the sending edge
+	 */
+	private int packagedBytes;
 	/**
 	 * The priority of this message
 	 */
@@ -58,6 +64,11 @@ public abstract class Message {
 	 * The total size of the message, in bytes
 	 */
 	private int size;
+	/**
+	 * The stream level flow control window for this message, or null if flow
+	 * control is disabled
+	 */
+	private FlowControlWindow streamWindow;
 
 	/**
 	 * Create the message, setting the timestamp to now and delivered bytes to 0
@@ -75,6 +86,11 @@ public abstract class Message {
 		this.application = application;
 		creationTimestamp = time;
 		deliveredBytes = 0;
+		packagedBytes = 0;
+		if (Configuration.NETWORK_FLOW_CONTROL) {
+			streamWindow = new FlowControlWindow(Configuration.STREAM_WINDOW,
+					Configuration.STREAM_SENDME_INCREMENT);
+		}
 	}
 
 	/**
@@ -105,6 +121,13 @@ public abstract class Message {
 		return deliveredBytes;
 	}
 
+	/**
+	 * @return the number of bytes of this message that have been packaged
+	 */
+	public int getPackagedBytes() {
+		return packagedBytes;
+	}
+
 	/**
 	 * @return the priority of this message
 	 */
@@ -126,6 +149,14 @@ public abstract class Message {
 		return size;
 	}
 
+	/**
+	 * @return the stream level flow control window, or null if flow control is
+	 *         disabled
+	 */
+	public FlowControlWindow getStreamWindow() {
+		return streamWindow;
+	}
+
 	/**
 	 * @return true if the bytes delivered equals the size of the message, false
 	 *         otherwise
@@ -134,6 +165,23 @@ public abstract class Message {
 		return deliveredBytes == size;
 	}
 
+	/**
+	 * @return true if every byte of this message has been packaged
+	 */
+	public boolean isPackaged() {
+		return packagedBytes >= size;
+	}
+
+	/**
+	 * Increment the counter of packaged bytes
+	 * 
+	 * @param size
+	 *            the number of bytes of this message that has been packaged
+	 */
+	public void packagedPart(int size) {
+		packagedBytes += size;
+	}
+
 	/**
 	 * Increment the counter of delivered bytes
 	 * 
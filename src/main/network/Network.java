@@ -20,11 +20,17 @@
  */
 package main.network;
 
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
 import main.event.NetworkReceive;
 import main.event.NetworkSend;
+import main.event.NetworkTrainReceive;
+import main.event.NetworkTrainSend;
 import main.event.NodeReceive;
 import main.node.Directory;
 import main.node.Node;
+import main.resource.Configuration;
 import main.system.Driver;
 
 public class Network {
@@ -39,6 +45,36 @@ public class Network {
 	 */
 	private int bytesOutgoing;
 
+	/**
+	 * The number of bytes written by the current or last scheduling quantum
+	 * that have not been released yet, or 0 if sending single datagrams
+	 */
+	private int batchBytes;
+
+	/**
+	 * The time the last datagram of the current scheduling quantum finishes
+	 * sending
+	 */
+	private long batchEndTime;
+
+	/**
+	 * The last datagram written by the current scheduling quantum, or null if
+	 * no quantum is in progress
+	 */
+	private Datagram batchLast;
+
+	/**
+	 * True while the scheduler is called repeatedly for a single scheduling
+	 * quantum
+	 */
+	private boolean batching;
+
+	/**
+	 * In hop transfer mode, the deliveries of datagrams counted in
+	 * bytesIncomming, ordered by delivery time
+	 */
+	private PriorityQueue<Delivery> deliveries;
+
 	/**
 	 * Downstream bandwidth of incoming data in kbps
 	 */
@@ -49,6 +85,12 @@ public class Network {
 	 */
 	private Node node;
 
+	/**
+	 * The maximum number of bytes a scheduling quantum writes, estimated from
+	 * the upstream bandwidth and the socket budget interval
+	 */
+	private long socketBudget;
+
 	/**
 	 * The number of nanoseconds it takes to receive one byte
 	 */
@@ -59,6 +101,29 @@ public class Network {
 	 */
 	private int timeToSendOneByte;
 
+	/**
+	 * The cell train currently being sent, or null if sending single datagrams
+	 */
+	private CellTrain train;
+
+	/**
+	 * In hop transfer mode, the last datagram sent while no other data was
+	 * waiting. Its NetworkSend event is only created if new data is enqueued
+	 * before it finished sending.
+	 */
+	private Datagram unfinished;
+
+	/**
+	 * The time the unfinished datagram finishes sending
+	 */
+	private long unfinishedEndTime;
+
+	/**
+	 * The size the unfinished datagram was sent with. The datagram may have
+	 * been converted by the next hop when it is finished.
+	 */
+	private int unfinishedSize;
+
 	/**
 	 * Upstream bandwidth of outgoing data in kbps
 	 */
@@ -81,6 +146,10 @@ public class Network {
 		this.downstreamBandwidth = downstreamBandwidth;
 		timeToReceiveOneByte = kilobitsPerSecondToNanosecondsPerByte(downstreamBandwidth);
 		this.node = node;
+		// kbps times ms gives bits
+		socketBudget = Configuration.SOCKET_BUDGET_INTERVAL > 0 ? (long) upstreamBandwidth
+				* Configuration.SOCKET_BUDGET_INTERVAL / 8
+				: Long.MAX_VALUE;
 	}
 
 	/**
@@ -90,6 +159,37 @@ public class Network {
 		return node;
 	}
 
+	/**
+	 * Checks if this network is idle at the given time. In hop transfer mode,
+	 * the bytes of deliveries due by then and an unfinished datagram sent
+	 * completely by then are released first, exactly as the next datagram
+	 * received ahead or enqueued would release them.
+	 * 
+	 * @return true if this network is neither sending nor receiving, and
+	 *         holds no reference to a datagram or buffer of its node
+	 */
+	public boolean isIdle(long time) {
+		if (deliveries != null) {
+			releaseDeliveries(time);
+		}
+		if (unfinished != null && unfinishedEndTime <= time) {
+			bytesOutgoing -= unfinishedSize;
+			batchBytes = 0;
+			unfinished = null;
+		}
+		return bytesOutgoing <= 0 && bytesIncomming <= 0 && train == null
+				&& unfinished == null && batchLast == null
+				&& (deliveries == null || deliveries.isEmpty());
+	}
+
+	/**
+	 * Drops the queue of hop transfer deliveries of an idle network. It is
+	 * created again when the next datagram arrives.
+	 */
+	public void compact() {
+		deliveries = null;
+	}
+
 	/**
 	 * @return the conversion value
 	 */
@@ -105,8 +205,11 @@ public class Network {
 	 *            the data this network finished receiving
 	 */
 	public void notifyFinishedReceiving(Datagram data) {
-		// the network received the entire cell
-		bytesIncomming -= data.getSize();
+		// in hop transfer mode the bytes are released by receiveAhead
+		if (!Configuration.NETWORK_HOP_TRANSFERS) {
+			// the network received the entire cell
+			bytesIncomming -= data.getSize();
+		}
 	}
 
 	/**
@@ -118,26 +221,151 @@ public class Network {
 	 *            the data this network finished receiving
 	 */
 	public void notifyFinishedSending(long time, Datagram data) {
-		// the network received the entire cell
-		bytesOutgoing -= data.getSize();
+		// the network received the entire cell, or quantum of cells
+		bytesOutgoing -= (batchBytes > 0) ? batchBytes : data.getSize();
+		batchBytes = 0;
 		// we want to attempt to schedule another data
 		notifyReadyToSend(time);
 	}
 
+	/**
+	 * Finishes sending the given train. Any remaining datagrams of the train
+	 * are sent first, then this network is ready to send more data. Nothing
+	 * happens if the train was truncated and no longer ends at the given time.
+	 * 
+	 * @param train
+	 *            the train this network finished sending
+	 */
+	public void notifyFinishedSending(long time, CellTrain train) {
+		if (this.train != train || train.getEndTime() != time) {
+			// stale event of a truncated train
+			return;
+		}
+		catchUpTrain(time);
+		bytesOutgoing -= train.getLast().getSize();
+		this.train = null;
+		notifyReadyToSend(time);
+	}
+
+	/**
+	 * Notifies this network that data is about to be enqueued in the given
+	 * buffer. Datagrams of the current train that departed by now are sent
+	 * before the new data may affect scheduling decisions. If the data goes to
+	 * a buffer other than the source of the train, another buffer is becoming
+	 * active and the train is truncated after the datagram on the wire.
+	 * <p>
+	 * In hop transfer mode, an unfinished datagram is finished now if it was
+	 * sent completely by this time, otherwise its NetworkSend event is
+	 * created.
+	 * 
+	 * @param buffer
+	 *            the buffer receiving new data
+	 */
+	public void notifyEnqueued(long time, Buffer buffer) {
+		if (unfinished != null) {
+			if (unfinishedEndTime <= time) {
+				bytesOutgoing -= unfinishedSize;
+				batchBytes = 0;
+			} else {
+				Driver.getInstance().addEvent(
+						new NetworkSend(unfinishedEndTime, unfinished));
+			}
+			unfinished = null;
+		}
+		if (train == null) {
+			return;
+		}
+		catchUpTrain(time);
+		if (buffer != train.getSource()
+				&& train.truncate(timeToSendOneByte)) {
+			Driver.getInstance().addEvent(
+					new NetworkTrainSend(train.getEndTime(), train));
+		}
+	}
+
+	/**
+	 * Sends every planned datagram of the current train whose departure time
+	 * is not after the given time. Each datagram is scheduled at its own
+	 * departure time, exactly as if the previous datagram just finished
+	 * sending.
+	 */
+	public void catchUpTrain(long time) {
+		SchedulingRing ring = node.getSchedulingRing();
+		while (train != null && train.hasPlannedDepartures()
+				&& train.getNextDepartureTime() <= time) {
+			int size = train.size();
+			long departure = train.getNextDepartureTime();
+			// the previous datagram finished sending
+			bytesOutgoing -= train.getLast().getSize();
+			node.getScheduler().schedule(departure, ring);
+			if (train != null && train.size() == size) {
+				// nothing was sent, so the train is over
+				train.truncate(timeToSendOneByte);
+				bytesOutgoing += train.getLast().getSize();
+				break;
+			}
+		}
+	}
+
 	/**
 	 * Tells the network to check if it can schedule more data. The scheduler is
 	 * called if there are currently no bytes going out.
+	 * <p>
+	 * With a scheduling quantum of more than one cell, the scheduler is called
+	 * repeatedly until the quantum or the socket budget is used up, or nothing
+	 * is left to send. The datagrams are written back-to-back, and a single
+	 * NetworkSend event fires once the last of them finished sending.
+	 * 
+	 * @see main.resource.Configuration#SCHEDULING_QUANTUM
 	 */
 	public void notifyReadyToSend(long time) {
 		// if we are not sending, invoke the scheduler
 		if (bytesOutgoing <= 0) {
 			SchedulingRing ring = node.getSchedulingRing();
 			if (ring != null) {
-				node.getScheduler().schedule(time, ring);
+				if (Configuration.SCHEDULING_QUANTUM > 1) {
+					scheduleQuantum(time, ring);
+				} else {
+					node.getScheduler().schedule(time, ring);
+				}
 			}
 		}
 	}
 
+	/**
+	 * Writes up to a quantum of datagrams chosen by the scheduler, stopping
+	 * early when the bytes written exceed the socket budget. Every datagram
+	 * is received by the next hop as if sent on its own, but only the last one
+	 * finishing creates an event for this network.
+	 */
+	private void scheduleQuantum(long time, SchedulingRing ring) {
+		batching = true;
+		for (int cells = 0; cells < Configuration.SCHEDULING_QUANTUM
+				&& batchBytes < socketBudget; cells++) {
+			int bytes = batchBytes;
+			node.getScheduler().schedule(time, ring);
+			if (batchBytes == bytes) {
+				// nothing left to send
+				break;
+			}
+		}
+		batching = false;
+
+		if (batchLast == null) {
+			return;
+		}
+		if (Configuration.NETWORK_HOP_TRANSFERS && ring.hasNoData()) {
+			// nothing to schedule when finished unless new data is enqueued
+			unfinished = batchLast;
+			unfinishedEndTime = batchEndTime;
+			unfinishedSize = batchBytes;
+		} else {
+			Driver.getInstance().addEvent(
+					new NetworkSend(batchEndTime, batchLast));
+		}
+		batchLast = null;
+	}
+
 	/**
 	 * Receive data into this network, incrementing the number of incoming
 	 * bytes. At the point this method is called, latency should have been
@@ -165,26 +393,196 @@ public class Network {
 		Driver.getInstance().addEvent(new NodeReceive(time + delay, data));
 	}
 
+	/**
+	 * Releases the bytes of the deliveries due by the given time, including
+	 * those due exactly at that time.
+	 */
+	private void releaseDeliveries(long time) {
+		// the network finished receiving these cells by now
+		while (!deliveries.isEmpty() && deliveries.peek().time <= time) {
+			bytesIncomming -= deliveries.poll().size;
+		}
+	}
+
+	/**
+	 * Receive data into this network ahead of time. This is the hop transfer
+	 * counterpart of receive(long, Datagram, long), called by the sender at
+	 * send time with the arrival time of the data at this network. Since every
+	 * hop has the same latency, datagrams are received ahead in order of
+	 * arrival, and all data arriving before this one was already received
+	 * ahead. Bytes of datagrams delivered by the arrival time, including those
+	 * delivered exactly at the arrival time, are released first, so
+	 * bytesIncomming holds the bytes being received at the arrival time, and
+	 * the delay is computed exactly as in receive(long, Datagram,
+	 * long). A NodeReceive event is scheduled for the delivery.
+	 * 
+	 * @param arrival
+	 *            the time the data arrives, including latency
+	 * @param data
+	 *            the data received
+	 * @param senderDelay
+	 *            the time, in nanoseconds, it would take the sender to send
+	 *            this data
+	 * @see main.resource.Configuration#NETWORK_HOP_TRANSFERS
+	 */
+	public void receiveAhead(long arrival, Datagram data, long senderDelay) {
+		if (deliveries == null) {
+			deliveries = new PriorityQueue<Delivery>();
+		}
+		releaseDeliveries(arrival);
+
+		// the network is receiving this cell
+		bytesIncomming += data.getSize();
+
+		long receiverDelay = (bytesIncomming * timeToReceiveOneByte);
+		long delay = Math.max(senderDelay, receiverDelay);
+		deliveries.add(new Delivery(arrival + delay, data.getSize()));
+		Driver.getInstance().addEvent(new NodeReceive(arrival + delay, data));
+	}
+
+	/**
+	 * Computes the delivery time of every datagram of the given train, which
+	 * is complete by now. The arrival of each datagram is offset from the
+	 * train head by its departure offset at the sender. Delivery delays follow
+	 * the single datagram path, counting the bytes in transit when the head
+	 * arrived and the bytes of the train that have not been delivered when a
+	 * datagram arrives. Since datagrams of a train arrive back-to-back, they
+	 * are delivered in order, so the bytes of the train in transit are kept as
+	 * a running sum that drops the earliest deliveries first.
+	 * 
+	 * @param train
+	 *            the train received
+	 * @return the delivery time of each datagram of the train, in order
+	 */
+	public long[] getDeliveryTimes(long time, CellTrain train) {
+		ArrayList<Datagram> cells = train.getCells();
+		int n = cells.size();
+		long[] deliveries = new long[n];
+		long head = train.getDepartureTime(0);
+		int trainBytes = 0;
+		int delivered = 0;
+		for (int i = 0; i < n; i++) {
+			Datagram data = cells.get(i);
+			long arrival = time + (train.getDepartureTime(i) - head);
+			// the network finished receiving these cells by now
+			while (delivered < i && deliveries[delivered] <= arrival) {
+				trainBytes -= cells.get(delivered++).getSize();
+			}
+			trainBytes += data.getSize();
+			long senderDelay = data.getSize() * train.getSender().timeToSendOneByte;
+			long receiverDelay = ((bytesIncomming + trainBytes) * timeToReceiveOneByte);
+			deliveries[i] = arrival + Math.max(senderDelay, receiverDelay);
+		}
+		return deliveries;
+	}
+
+	/**
+	 * Receive every datagram of the given train, which is complete by now,
+	 * incrementing the number of incoming bytes. A NodeReceive event is
+	 * scheduled for each datagram at the time computed by getDeliveryTimes.
+	 * 
+	 * @param train
+	 *            the train received
+	 * @see main.network.CellTrain
+	 * @see main.network.Network#getDeliveryTimes(long, CellTrain)
+	 */
+	public void receive(long time, CellTrain train) {
+		long[] deliveries = getDeliveryTimes(time, train);
+		ArrayList<Datagram> cells = train.getCells();
+		for (int i = 0; i < deliveries.length; i++) {
+			Datagram data = cells.get(i);
+			bytesIncomming += data.getSize();
+			Driver.getInstance().addEvent(new NodeReceive(deliveries[i], data));
+		}
+	}
+
 	/**
 	 * Send the given data out, incrementing the number of outgoing bytes. The
 	 * time it would take the sender to send this data is calculated and
 	 * included in a new NetworkReceive event for the next-hop network. Another
 	 * NetworkSend event for this network is created after the calculated
 	 * sendDelay.
+	 * <p>
+	 * In cell train mode, if the source buffer holds the only data left to
+	 * schedule, the following datagrams to the same receiver are planned as a
+	 * train with a single NetworkTrainReceive event for the next-hop network
+	 * and a single NetworkTrainSend event for this network.
+	 * <p>
+	 * In hop transfer mode, the next-hop network receives the data ahead
+	 * instead of through a NetworkReceive event, and the NetworkSend event is
+	 * deferred if no other data is waiting to be sent.
+	 * <p>
+	 * During a scheduling quantum, the NetworkSend event is left to the end of
+	 * the quantum.
 	 * 
+	 * @param source
+	 *            the buffer the data was dequeued from
 	 * @param data
 	 *            the datagram we are sending
+	 * @see main.network.CellTrain
 	 */
-	public void send(long time, Datagram data) {
+	public void send(long time, Buffer source, Datagram data) {
+		if (train != null) {
+			if (train.add(data)) {
+				// departed as part of the current train
+				bytesOutgoing += data.getSize();
+				return;
+			}
+			// the datagram goes elsewhere, continue with single datagrams
+			train.truncate(timeToSendOneByte);
+			train = null;
+		}
+
 		// this data is being sent out on the network
 		bytesOutgoing += data.getSize();
 		long sendDelay = (bytesOutgoing * timeToSendOneByte);
 
+		if (Configuration.NETWORK_CELL_TRAINS && !data.isPhantom()
+				&& !source.isEmpty()
+				&& source.getSize() == node.getSchedulingRing().getDataCount()
+				&& source.peekHop(0) == data.getHop()
+				&& source.peekMessage(0).getCircuit() == data.getMessage()
+						.getCircuit()) {
+			train = new CellTrain(this, source, data, time, timeToSendOneByte,
+					Directory.latency, Configuration.CELL_TRAIN_LENGTH);
+			if (train.hasPlannedDepartures()) {
+				Driver.getInstance().addEvent(
+						new NetworkTrainReceive(time + Directory.latency, train));
+				Driver.getInstance().addEvent(
+						new NetworkTrainSend(train.getEndTime(), train));
+				return;
+			}
+			train = null;
+		}
+
 		// phantom data is received by no one
 		if(!data.isPhantom()){
 			// incorporate latency now, sendDelay is handled by receiver
-			Driver.getInstance().addEvent(
-					new NetworkReceive(time + Directory.latency, data, sendDelay));
+			if (Configuration.NETWORK_HOP_TRANSFERS) {
+				data.getReceiver().getNetwork().receiveAhead(
+						time + Directory.latency, data, sendDelay);
+			} else {
+				Driver.getInstance().addEvent(
+						new NetworkReceive(time + Directory.latency, data,
+								sendDelay));
+			}
+		}
+
+		if (batching) {
+			// the quantum creates the event for its last datagram
+			batchBytes += data.getSize();
+			batchLast = data;
+			batchEndTime = time + sendDelay;
+			return;
+		}
+
+		if (Configuration.NETWORK_HOP_TRANSFERS
+				&& node.getSchedulingRing().hasNoData()) {
+			// nothing to schedule when finished unless new data is enqueued
+			unfinished = data;
+			unfinishedEndTime = time + sendDelay;
+			unfinishedSize = data.getSize();
+			return;
 		}
 
 		// schedule another send after the sending delay
@@ -206,4 +604,22 @@ public class Network {
 		return upstreamBandwidth;
 	}
 
+	/**
+	 * The delivery of a datagram received ahead. The size is kept since the
+	 * datagram may be converted by the receiver once delivered.
+	 */
+	private static class Delivery implements Comparable<Delivery> {
+		private long time;
+		private int size;
+
+		public Delivery(long time, int size) {
+			this.time = time;
+			this.size = size;
+		}
+
+		public int compareTo(Delivery d) {
+			return time < d.time ? -1 : (time > d.time ? 1 : 0);
+		}
+	}
+
 }
@@ -0,0 +1,384 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import main.network.Datagram.SendmeType;
+
+/**
+ * A growable circular queue that stores compact cell records in direct
+ * (off-heap) memory instead of datagram references. Each record holds the
+ * queue arrival time, the hop index, the piece size and the flags of a
+ * datagram. The message of each record is kept at the same position in an
+ * array owned by the queue, so no table is shared between queues. Datagrams
+ * are rebuilt from their record when they are removed, or peeked as a whole,
+ * so the queue keeps no datagram objects alive. Single fields can be peeked
+ * without rebuilding the datagram.
+ * <p>
+ * Allocating direct memory is slow, and it is only freed when the garbage
+ * collector finds the buffer unreachable. Memory a queue no longer needs after
+ * shrinking or draining is therefore kept in a pool shared by all queues, and
+ * growing queues take their memory from the pool before allocating more.
+ * 
+ * @see main.resource.Configuration#NETWORK_OFF_HEAP_BUFFERS
+ * 
+ * @author agent
+ */
+public class OffHeapDatagramQueue extends DatagramQueue {
+	/**
+	 * The smallest number of records in the queue, must be a power of two
+	 */
+	private static final int INITIAL_CAPACITY = 8;
+
+	/**
+	 * The size of a record in bytes
+	 */
+	private static final int RECORD_LENGTH = 16;
+
+	/**
+	 * Offsets of the fields in a record
+	 */
+	private static final int ARRIVAL_TIME = 0, HOP = 8, PIECE_SIZE = 12,
+			FLAGS = 14;
+
+	/**
+	 * Record flags
+	 */
+	private static final byte IS_CELL = 1, IS_PHANTOM = 2,
+			IS_CIRCUIT_SENDME = 4, IS_STREAM_SENDME = 8;
+
+	/**
+	 * Free memory chunks of shrunk or drained queues, indexed by the base 2 logarithm of
+	 * the number of records they hold
+	 */
+	private static final ArrayList<ArrayList<ByteBuffer>> FREE_CHUNKS = new ArrayList<ArrayList<ByteBuffer>>();
+
+	/**
+	 * The records of the queue, or null while the queue is empty
+	 */
+	private ByteBuffer records;
+
+	/**
+	 * The message of the record at the same position
+	 */
+	private Message[] messages;
+
+	/**
+	 * The number of records the memory holds
+	 */
+	private int capacity;
+
+	/**
+	 * The position of the head record
+	 */
+	private int head;
+
+	/**
+	 * The number of records in the queue
+	 */
+	private int size;
+
+	/**
+	 * Create an empty queue. Memory is taken from the pool when the first
+	 * datagram is added.
+	 */
+	public OffHeapDatagramQueue() {
+		records = null;
+		messages = null;
+		capacity = 0;
+		head = 0;
+		size = 0;
+	}
+
+	/**
+	 * Takes memory for the given number of records from the pool, allocating
+	 * it if the pool holds no chunk of that size.
+	 * 
+	 * @param capacity
+	 *            the number of records, a power of two
+	 * @return the memory
+	 */
+	private static synchronized ByteBuffer allocate(int capacity) {
+		int sizeClass = Integer.numberOfTrailingZeros(capacity);
+		if (sizeClass < FREE_CHUNKS.size()) {
+			ArrayList<ByteBuffer> chunks = FREE_CHUNKS.get(sizeClass);
+			if (!chunks.isEmpty()) {
+				return chunks.remove(chunks.size() - 1);
+			}
+		}
+		return ByteBuffer.allocateDirect(capacity * RECORD_LENGTH);
+	}
+
+	/**
+	 * Returns memory for the given number of records to the pool.
+	 * 
+	 * @param chunk
+	 *            the memory, which must no longer be used
+	 * @param capacity
+	 *            the number of records, a power of two
+	 */
+	private static synchronized void free(ByteBuffer chunk, int capacity) {
+		int sizeClass = Integer.numberOfTrailingZeros(capacity);
+		while (FREE_CHUNKS.size() <= sizeClass) {
+			FREE_CHUNKS.add(new ArrayList<ByteBuffer>());
+		}
+		FREE_CHUNKS.get(sizeClass).add(chunk);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.network.DatagramQueue#addLast(main.network.Datagram)
+	 */
+	@Override
+	public void addLast(Datagram d) {
+		if (size == capacity) {
+			resize(capacity == 0 ? INITIAL_CAPACITY : capacity << 1);
+		}
+		byte flags = 0;
+		if (d.isCell()) {
+			flags |= IS_CELL;
+		}
+		if (d.isPhantom()) {
+			flags |= IS_PHANTOM;
+		}
+		if (d.getSendme() == SendmeType.CIRCUIT) {
+			flags |= IS_CIRCUIT_SENDME;
+		} else if (d.getSendme() == SendmeType.STREAM) {
+			flags |= IS_STREAM_SENDME;
+		}
+
+		int offset = offset(size);
+		messages[position(size)] = d.getMessage();
+		records.putLong(offset + ARRIVAL_TIME, d.getQueueArrivalTime());
+		records.putInt(offset + HOP, d.getHop());
+		records.putShort(offset + PIECE_SIZE, (short) d.getPieceSize());
+		records.put(offset + FLAGS, flags);
+		size++;
+	}
+
+	/**
+	 * @return the number of records the memory holds
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @param index
+	 *            the position of a record in the queue
+	 * @return the byte offset of the record in memory
+	 */
+	private int offset(int index) {
+		return position(index) * RECORD_LENGTH;
+	}
+
+	/**
+	 * @param index
+	 *            the position of a record in the queue
+	 * @return the position of the record in memory
+	 */
+	private int position(int index) {
+		return (head + index) & (capacity - 1);
+	}
+
+	/**
+	 * Checks that the given position is in the queue.
+	 */
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ size);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.network.DatagramQueue#peek(int)
+	 */
+	@Override
+	public Datagram peek(int index) {
+		checkIndex(index);
+		return rebuild(index);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.network.DatagramQueue#peekFirstArrivalTime()
+	 */
+	@Override
+	public long peekFirstArrivalTime() {
+		return records.getLong(head * RECORD_LENGTH + ARRIVAL_TIME);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.network.DatagramQueue#peekHop(int)
+	 */
+	@Override
+	public int peekHop(int index) {
+		checkIndex(index);
+		return records.getInt(offset(index) + HOP);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.network.DatagramQueue#peekMessage(int)
+	 */
+	@Override
+	public Message peekMessage(int index) {
+		checkIndex(index);
+		return messages[position(index)];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.network.DatagramQueue#peekPhantom(int)
+	 */
+	@Override
+	public boolean peekPhantom(int index) {
+		checkIndex(index);
+		return (records.get(offset(index) + FLAGS) & IS_PHANTOM) != 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.network.DatagramQueue#peekSize(int)
+	 */
+	@Override
+	public int peekSize(int index) {
+		checkIndex(index);
+		int offset = offset(index);
+		if ((records.get(offset + FLAGS) & IS_CELL) != 0) {
+			return Datagram.CELL_LENGTH;
+		}
+		return records.getShort(offset + PIECE_SIZE);
+	}
+
+	/**
+	 * Creates a datagram equal to the one stored in the record at the given
+	 * position.
+	 * 
+	 * @param index
+	 *            the position of the record in the queue
+	 * @return the datagram
+	 */
+	private Datagram rebuild(int index) {
+		int offset = offset(index);
+		Message message = messages[position(index)];
+		Request request;
+		Reply reply = null;
+		if (message instanceof Reply) {
+			reply = (Reply) message;
+			request = reply.getRequest();
+		} else {
+			request = (Request) message;
+		}
+
+		byte flags = records.get(offset + FLAGS);
+		Datagram d;
+		if ((flags & IS_CIRCUIT_SENDME) != 0) {
+			d = new Datagram(request, reply, SendmeType.CIRCUIT);
+		} else if ((flags & IS_STREAM_SENDME) != 0) {
+			d = new Datagram(request, reply, SendmeType.STREAM);
+		} else {
+			d = new Datagram(request, reply, (flags & IS_CELL) != 0, records
+					.getShort(offset + PIECE_SIZE));
+		}
+		if ((flags & IS_PHANTOM) != 0) {
+			d.setPhantom();
+		}
+		d.setHop(records.getInt(offset + HOP));
+		d.setQueueArrivalTime(records.getLong(offset + ARRIVAL_TIME));
+		return d;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.network.DatagramQueue#removeFirst()
+	 */
+	@Override
+	public Datagram removeFirst() {
+		Datagram d = rebuild(0);
+		messages[head] = null;
+		head = (head + 1) & (capacity - 1);
+		size--;
+		if (size == 0) {
+			// buffers are often dropped once they drain, so keep no memory
+			free(records, capacity);
+			records = null;
+			messages = null;
+			capacity = 0;
+			head = 0;
+		} else if (capacity > INITIAL_CAPACITY && size < (capacity >> 2)) {
+			resize(capacity >> 1);
+		}
+		return d;
+	}
+
+	/**
+	 * Copies the records and their messages to new memory holding the given
+	 * number of records, moving the head to the first position. The old
+	 * memory is returned to the pool.
+	 * 
+	 * @param newCapacity
+	 *            the new number of records, a power of two
+	 */
+	private void resize(int newCapacity) {
+		ByteBuffer newRecords = allocate(newCapacity);
+		Message[] newMessages = new Message[newCapacity];
+		for (int i = 0; i < size; i++) {
+			int offset = offset(i);
+			newMessages[i] = messages[position(i)];
+			for (int j = 0; j < RECORD_LENGTH; j += 8) {
+				newRecords.putLong(i * RECORD_LENGTH + j, records
+						.getLong(offset + j));
+			}
+		}
+		if (records != null) {
+			free(records, capacity);
+		}
+		records = newRecords;
+		messages = newMessages;
+		capacity = newCapacity;
+		head = 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.network.DatagramQueue#size()
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+}
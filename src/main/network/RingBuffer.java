@@ -0,0 +1,114 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.network;
+
+import main.node.Node;
+import main.scheduling.Scheduler.Priority;
+
+/**
+ * A buffer that can be linked into its SchedulingRing, for schedulers that
+ * scan the ring for the next buffer to send from.
+ * 
+ * @see main.network.SchedulingRing
+ * 
+ * @author agent
+ */
+public class RingBuffer extends Buffer {
+	/**
+	 * Creates ring buffers without scheduler state
+	 */
+	public static final BufferFactory FACTORY = new BufferFactory() {
+		@Override
+		public Buffer createBuffer(int id, Priority p, Node node,
+				SchedulingRing ring, boolean dynamic) {
+			return new RingBuffer(id, p, node, ring, dynamic);
+		}
+
+		@Override
+		public boolean keepsStateWhileEmpty() {
+			return false;
+		}
+	};
+
+	/**
+	 * The buffer following this one in the ring, or null if this buffer is not
+	 * in the ring
+	 */
+	private Buffer ringNext;
+	/**
+	 * The buffer preceding this one in the ring, or null if this buffer is not
+	 * in the ring
+	 */
+	private Buffer ringPrevious;
+	/**
+	 * True if this buffer is in the ring only while it holds data
+	 */
+	private boolean dynamic;
+
+	/**
+	 * Create a new buffer that is not dynamic, assigning itself the next ID in
+	 * the counter.
+	 * 
+	 * @see main.network.RingBuffer#RingBuffer(int, Priority, Node,
+	 *      SchedulingRing, boolean)
+	 */
+	public RingBuffer(Priority p, Node node, SchedulingRing ring) {
+		this(nextId(), p, node, ring, false);
+	}
+
+	/**
+	 * @param dynamic
+	 *            true if the buffer adds itself to the ring while it holds
+	 *            data, false if it is added to the ring by its owner, if at all
+	 * @see main.network.Buffer#Buffer(int, Priority, Node, SchedulingRing)
+	 */
+	public RingBuffer(int id, Priority p, Node node, SchedulingRing ring,
+			boolean dynamic) {
+		super(id, p, node, ring);
+		this.dynamic = dynamic;
+	}
+
+	@Override
+	Buffer getRingNext() {
+		return ringNext;
+	}
+
+	@Override
+	Buffer getRingPrevious() {
+		return ringPrevious;
+	}
+
+	@Override
+	boolean isDynamic() {
+		return dynamic;
+	}
+
+	@Override
+	void setRingNext(Buffer ringNext) {
+		this.ringNext = ringNext;
+	}
+
+	@Override
+	void setRingPrevious(Buffer ringPrevious) {
+		this.ringPrevious = ringPrevious;
+	}
+
+}
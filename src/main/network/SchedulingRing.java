@@ -21,53 +21,114 @@
 package main.network;
 
 import main.system.Driver;
-import main.util.CircularSinglyLinkedList;
 
 /**
- * A CircularLinkedList of buffers that tracks the total number of datagrams in
- * all buffers in this ring. This class is used to store a list of buffers to
- * include in scheduling decisions by a scheduler.
+ * A circular doubly linked list of buffers that tracks the total number of
+ * datagrams in all buffers in this ring. This class is used to store a list of
+ * buffers to include in scheduling decisions by a scheduler.
+ * <p>
+ * The links are stored in the buffers themselves, so a buffer is in at most
+ * one ring, and adding and removing buffers allocates nothing. A CURRENT
+ * pointer to a single buffer in the ring is maintained and can be advanced in
+ * one direction around the ring. Buffers added with addInOrder are kept in
+ * circular order of their IDs.
  * 
  * @author Rob Jansen
  */
-public class SchedulingRing extends CircularSinglyLinkedList<Buffer> {
+public class SchedulingRing {
+	/**
+	 * The CURRENT pointer to a buffer in the ring, or null if it is empty
+	 */
+	private Buffer current;
+
+	/**
+	 * The number of buffers in this ring
+	 */
+	private int size;
+
 	/**
 	 * Total number of datagrams in all buffers in this ring
 	 */
 	private int dataCount;
-	
-	private long wfqTotal;
+
+	/**
+	 * The largest number of datagrams this ring held at any time
+	 */
+	private int peakDataCount;
 
 	/**
 	 * Create a new, empty ring
 	 */
 	public SchedulingRing() {
 		dataCount = 0;
-		wfqTotal = 0;
+		peakDataCount = 0;
 	}
 
 	/**
-	 * Increments the data count of this ring by the size of the given buffer.
+	 * Adds the given buffer to the ring immediately following the CURRENT
+	 * pointer, and moves the CURRENT pointer to it. Ordering is not preserved
+	 * with this method. Increments the data count of this ring by the size of
+	 * the given buffer.
 	 * 
-	 * @see main.util.CircularSinglyLinkedList#add(main.util.Identifiable)
+	 * @param b
+	 *            the buffer to add, which must not be in a ring
 	 */
-	@Override
 	public void add(Buffer b) {
-		super.add(b);
+		if (current == null) {
+			link(b, b);
+		} else {
+			placeAfter(b, current);
+		}
+		current = b;
+		size++;
 		dataCount += b.getSize();
 	}
 
 	/**
-	 * Increments the data count of this ring by the size of the given buffer.
+	 * Adds the given buffer to the ring in circular order of IDs, leaving the
+	 * CURRENT pointer unchanged. Increments the data count of this ring by the
+	 * size of the given buffer.
+	 * <p>
+	 * The insertion point is searched outwards from the CURRENT pointer in
+	 * both directions. A buffer that became empty is removed next to the
+	 * CURRENT pointer and usually returns there, so the search is short.
 	 * 
-	 * @see main.util.CircularSinglyLinkedList#addInOrder(main.util.Identifiable)
+	 * @param b
+	 *            the buffer to add, which must not be in a ring
 	 */
-	@Override
 	public void addInOrder(Buffer b) {
-		super.addInOrder(b);
+		if (current == null) {
+			link(b, b);
+			current = b;
+		} else {
+			int id = b.getId();
+			Buffer forward = current;
+			Buffer backward = current.getRingPrevious();
+			// one of the two always fits before a complete traversal
+			while (!fitsAfter(id, forward) && !fitsAfter(id, backward)) {
+				forward = forward.getRingNext();
+				backward = backward.getRingPrevious();
+			}
+			placeAfter(b, fitsAfter(id, forward) ? forward : backward);
+		}
+		size++;
 		dataCount += b.getSize();
 	}
 
+	/**
+	 * Advances the CURRENT pointer one position and returns the buffer at the
+	 * new position.
+	 * 
+	 * @return null if the ring is empty, otherwise the next buffer in the ring
+	 */
+	public Buffer advance() {
+		if (current == null) {
+			return null;
+		}
+		current = current.getRingNext();
+		return current;
+	}
+
 	/**
 	 * Increments the data count of this ring by the given amount. If
 	 * subtraction is desired, use a negative amount.
@@ -77,6 +138,54 @@ public class SchedulingRing extends CircularSinglyLinkedList<Buffer> {
 	 */
 	public void changedDataCount(int amount) {
 		dataCount += amount;
+		if (dataCount > peakDataCount) {
+			peakDataCount = dataCount;
+		}
+	}
+
+	/**
+	 * @param b
+	 *            a buffer of this ring
+	 * @return true if the given buffer is currently linked into this ring
+	 */
+	public boolean contains(Buffer b) {
+		return b.getRingNext() != null && b.getRing() == this;
+	}
+
+	/**
+	 * @return the buffer at the CURRENT pointer, or null if the ring is empty
+	 */
+	public Buffer current() {
+		return current;
+	}
+
+	/**
+	 * Checks if a buffer with the given ID belongs between the given buffer
+	 * and its successor in circular order of IDs.
+	 */
+	private boolean fitsAfter(int id, Buffer b) {
+		int lower = b.getId();
+		int upper = b.getRingNext().getId();
+		if (lower < upper) {
+			return id > lower && id < upper;
+		}
+		// b holds the largest ID in the ring
+		return id > lower || id < upper;
+	}
+
+	/**
+	 * @return the total number of datagrams in all buffers in this ring
+	 */
+	public int getDataCount() {
+		return dataCount;
+	}
+
+	/**
+	 * @return the largest number of datagrams in all buffers in this ring at
+	 *         any time
+	 */
+	public int getPeakDataCount() {
+		return peakDataCount;
 	}
 
 	/**
@@ -87,14 +196,54 @@ public class SchedulingRing extends CircularSinglyLinkedList<Buffer> {
 	}
 
 	/**
-	 * Removes the given buffer. Decrements the data count of this ring by the
-	 * size of the given buffer.
+	 * @return true if there are no buffers in this ring
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Links the given buffers as neighbors.
+	 */
+	private void link(Buffer previous, Buffer next) {
+		previous.setRingNext(next);
+		next.setRingPrevious(previous);
+	}
+
+	/**
+	 * Splices the given buffer into the ring after the given position.
+	 */
+	private void placeAfter(Buffer b, Buffer position) {
+		Buffer next = position.getRingNext();
+		link(position, b);
+		link(b, next);
+	}
+
+	/**
+	 * Removes the given buffer from the ring, if it is in the ring. The
+	 * CURRENT pointer is unchanged unless it points to the buffer to remove,
+	 * in which case it is advanced to the following buffer or is null if the
+	 * ring is now empty. Decrements the data count of this ring by the size
+	 * of the given buffer either way.
 	 * 
-	 * @see main.util.CircularSinglyLinkedList#remove(main.util.Identifiable)
+	 * @param b
+	 *            the buffer to remove
 	 */
-	@Override
 	public void remove(Buffer b) {
-		super.remove(b);
+		if (contains(b)) {
+			Buffer next = b.getRingNext();
+			if (next == b) {
+				current = null;
+			} else {
+				link(b.getRingPrevious(), next);
+				if (current == b) {
+					current = next;
+				}
+			}
+			b.setRingNext(null);
+			b.setRingPrevious(null);
+			size--;
+		}
 		dataCount -= b.getSize();
 		if (dataCount < 0) {
 			Driver.log.severe("BufferRing size < 0");
@@ -102,17 +251,10 @@ public class SchedulingRing extends CircularSinglyLinkedList<Buffer> {
 	}
 
 	/**
-	 * @return the wfqTotal
-	 */
-	public long getWfqTotal() {
-		return wfqTotal;
-	}
-
-	/**
-	 * @param wfqTotal the wfqTotal to set
+	 * @return the number of buffers in this ring
 	 */
-	public void setWfqTotal(long wfqTotal) {
-		this.wfqTotal = wfqTotal;
+	public int size() {
+		return size;
 	}
 
 }
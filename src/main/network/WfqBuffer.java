@@ -0,0 +1,141 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.network;
+
+import main.node.Node;
+import main.scheduling.Scheduler.Priority;
+
+/**
+ * A buffer with the state of the weighted fair queueing scheduler.
+ * 
+ * @see main.scheduling.WeightedFairQueueingScheduler
+ * 
+ * @author agent
+ */
+public class WfqBuffer extends Buffer {
+	/**
+	 * Creates WFQ buffers
+	 */
+	public static final BufferFactory FACTORY = new BufferFactory() {
+		@Override
+		public Buffer createBuffer(int id, Priority p, Node node,
+				SchedulingRing ring, boolean dynamic) {
+			return new WfqBuffer(id, p, node, ring);
+		}
+	};
+
+	/**
+	 * The virtual finish time of the head of this buffer, or of the last
+	 * datagram sent if the buffer is empty
+	 */
+	private double wfqFinish;
+
+	/**
+	 * The virtual start time of the head of this buffer
+	 */
+	private double wfqStart;
+
+	/**
+	 * The weight of the head of this buffer
+	 */
+	private double wfqWeight;
+
+	/**
+	 * The position of this buffer in the BufferHeap of the first slot of the
+	 * scheduler, or -1 if it is not in that heap
+	 */
+	private int firstHeapIndex;
+
+	/**
+	 * The position of this buffer in the BufferHeap of the second slot of the
+	 * scheduler, or -1 if it is not in that heap
+	 */
+	private int secondHeapIndex;
+
+	/**
+	 * @see main.network.Buffer#Buffer(int, Priority, Node, SchedulingRing)
+	 */
+	public WfqBuffer(int id, Priority p, Node node, SchedulingRing ring) {
+		super(id, p, node, ring);
+		wfqWeight = 1.0;
+		wfqStart = 0;
+		wfqFinish = 0;
+		firstHeapIndex = -1;
+		secondHeapIndex = -1;
+	}
+
+	@Override
+	int getHeapIndex(int slot) {
+		if (slot == 0) {
+			return firstHeapIndex;
+		} else {
+			return secondHeapIndex;
+		}
+	}
+
+	@Override
+	void setHeapIndex(int slot, int heapIndex) {
+		if (slot == 0) {
+			firstHeapIndex = heapIndex;
+		} else {
+			secondHeapIndex = heapIndex;
+		}
+	}
+
+	/**
+	 * @return the wfqFinish
+	 */
+	public double getWfqFinish() {
+		return wfqFinish;
+	}
+
+	/**
+	 * @return the wfqStart
+	 */
+	public double getWfqStart() {
+		return wfqStart;
+	}
+
+	/**
+	 * @return the wfqWeight
+	 */
+	public double getWfqWeight() {
+		return wfqWeight;
+	}
+
+	/**
+	 * Sets the virtual start and finish time and the weight of the head of
+	 * this buffer.
+	 * 
+	 * @param wfqStart
+	 *            the wfqStart to set
+	 * @param wfqFinish
+	 *            the wfqFinish to set
+	 * @param wfqWeight
+	 *            the wfqWeight to set
+	 */
+	public void setWfqTags(double wfqStart, double wfqFinish, double wfqWeight) {
+		this.wfqStart = wfqStart;
+		this.wfqFinish = wfqFinish;
+		this.wfqWeight = wfqWeight;
+	}
+
+}
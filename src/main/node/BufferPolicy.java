@@ -0,0 +1,135 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.node;
+
+import main.network.Buffer;
+import main.network.BufferFactory;
+import main.network.Circuit;
+import main.network.Datagram;
+
+/**
+ * Decides which buffers a Tor node keeps for outgoing data, which of them are
+ * in its scheduling ring, and which buffer a cell is enqueued in. Every
+ * scheduling algorithm has a policy, which the directory creates once and
+ * passes to all Tor nodes, so sending a cell does not consult the
+ * configuration. Buffers are created by the buffer factory of the scheduling
+ * algorithm.
+ * 
+ * @see main.scheduling.SchedulerFactory#createBufferPolicy()
+ * 
+ * @author agent
+ */
+public abstract class BufferPolicy {
+	/**
+	 * Creates the buffers of this policy
+	 */
+	final BufferFactory bufferFactory;
+
+	/**
+	 * @param bufferFactory
+	 *            creates the buffers of this policy
+	 */
+	public BufferPolicy(BufferFactory bufferFactory) {
+		this.bufferFactory = bufferFactory;
+	}
+
+	/**
+	 * Creates the buffers the given node needs before any circuit is built.
+	 * 
+	 * @param node
+	 *            the node being created
+	 */
+	abstract void createBuffers(TorNode node);
+
+	/**
+	 * Drops the buffers of the given node until createBuffers is called
+	 * again. The buffers must be empty.
+	 * 
+	 * @param node
+	 *            the node being compacted
+	 */
+	abstract void releaseBuffers(TorNode node);
+
+	/**
+	 * Releases the storage of the buffers of the given node, keeping the
+	 * buffers and their scheduler state. The buffers must be empty.
+	 * 
+	 * @param node
+	 *            the node being compacted
+	 * @see main.network.Buffer#releaseStorage()
+	 */
+	abstract void releaseStorage(TorNode node);
+
+	/**
+	 * @param node
+	 *            the node sending the cell
+	 * @param cell
+	 *            the cell being sent
+	 * @return the buffer of the given node the cell is enqueued in
+	 */
+	abstract Buffer getBuffer(TorNode node, Datagram cell);
+
+	/**
+	 * @return the factory that creates the buffers of this policy
+	 */
+	public BufferFactory getBufferFactory() {
+		return bufferFactory;
+	}
+
+	/**
+	 * Called when the given node joined a new circuit. By default, nothing
+	 * happens.
+	 * 
+	 * @param node
+	 *            the node on the circuit
+	 * @param circuit
+	 *            the circuit that was built
+	 */
+	void notifyCircuitBuilt(TorNode node, Circuit circuit) {
+	}
+
+	/**
+	 * Called when the last cell was dequeued from a buffer of the given node.
+	 * By default, nothing happens.
+	 * 
+	 * @param node
+	 *            the node of the buffer
+	 * @param buffer
+	 *            the buffer that became empty
+	 * @param cell
+	 *            the last cell dequeued from the buffer
+	 */
+	void notifyBufferDrained(TorNode node, Buffer buffer, Datagram cell) {
+	}
+
+	/**
+	 * Called when a circuit of the given node was torn down or reclaimed. By
+	 * default, nothing happens.
+	 * 
+	 * @param node
+	 *            the node on the circuit
+	 * @param circuit
+	 *            the circuit that was torn down
+	 */
+	void notifyCircuitTordown(long time, TorNode node, Circuit circuit) {
+	}
+
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.node;
+
+import java.util.HashMap;
+
+import main.network.Buffer;
+import main.network.BufferFactory;
+import main.network.Circuit;
+import main.network.Datagram;
+import main.scheduling.Scheduler.Priority;
+
+/**
+ * Separates flows by keeping a buffer for each circuit of a node. The buffer
+ * is created when the first cell of the circuit is enqueued, so circuits
+ * without queued data cost nothing on the node, and dropped when the circuit
+ * is torn down. If configured, buffers that keep no scheduler state while
+ * empty are dropped as soon as they drain, and created again for the next
+ * cell.
+ * 
+ * @see main.resource.Configuration#NETWORK_DYNAMIC_BUFFERS
+ * 
+ * @author agent
+ */
+public class CircuitBufferPolicy extends BufferPolicy {
+	/**
+	 * Defines how circuit buffers take part in the scheduling ring.
+	 * 
+	 * @author agent
+	 */
+	public enum RingMembership {
+		/**
+		 * Buffers are added to the ring when they are created
+		 */
+		STATIC,
+		/**
+		 * Buffers add themselves to the ring while they hold data
+		 * 
+		 * @see main.resource.Configuration#NETWORK_DYNAMIC_BUFFERS
+		 */
+		DYNAMIC,
+		/**
+		 * Buffers are never in the ring, since the scheduler keeps its own
+		 * index of buffers with data
+		 */
+		NONE;
+	}
+
+	/**
+	 * How the buffers of this policy take part in the scheduling ring
+	 */
+	private RingMembership membership;
+	/**
+	 * True if buffers are dropped as soon as they drain
+	 */
+	private boolean releaseDrained;
+
+	/**
+	 * @param bufferFactory
+	 *            creates the circuit buffers
+	 * @param membership
+	 *            how the circuit buffers take part in the scheduling ring
+	 * @param releaseDrained
+	 *            true if buffers are dropped as soon as they drain, which
+	 *            requires buffers that keep no scheduler state while empty
+	 */
+	public CircuitBufferPolicy(BufferFactory bufferFactory,
+			RingMembership membership, boolean releaseDrained) {
+		super(bufferFactory);
+		this.membership = membership;
+		this.releaseDrained = releaseDrained;
+	}
+
+	@Override
+	void createBuffers(TorNode node) {
+		// buffers and the map holding them are created as cells are enqueued
+		node.circuitBufferMap = null;
+	}
+
+	@Override
+	void releaseBuffers(TorNode node) {
+		if (node.circuitBufferMap != null) {
+			for (Buffer buffer : node.circuitBufferMap.values()) {
+				node.bufferRing.remove(buffer);
+			}
+			node.circuitBufferMap = null;
+		}
+	}
+
+	@Override
+	void releaseStorage(TorNode node) {
+		if (node.circuitBufferMap != null) {
+			for (Buffer buffer : node.circuitBufferMap.values()) {
+				buffer.releaseStorage();
+			}
+		}
+	}
+
+	@Override
+	Buffer getBuffer(TorNode node, Datagram cell) {
+		Circuit circuit = cell.getRequest().getCircuit();
+		if (node.circuitBufferMap == null) {
+			node.circuitBufferMap = new HashMap<Circuit, Buffer>();
+		}
+		Buffer buffer = node.circuitBufferMap.get(circuit);
+		if (buffer == null) {
+			// first cell of the circuit on this node since it drained
+			buffer = bufferFactory.createBuffer(circuit.getBufferId(),
+					Priority.NORMAL, node, node.bufferRing,
+					membership == RingMembership.DYNAMIC);
+			if (membership == RingMembership.STATIC) {
+				node.bufferRing.add(buffer);
+			}
+			node.circuitBufferMap.put(circuit, buffer);
+		}
+		return buffer;
+	}
+
+	@Override
+	void notifyBufferDrained(TorNode node, Buffer buffer, Datagram cell) {
+		if (releaseDrained) {
+			node.circuitBufferMap.remove(cell.getRequest().getCircuit());
+			releaseEmptyMap(node);
+		}
+	}
+
+	@Override
+	void notifyCircuitTordown(long time, TorNode node, Circuit circuit) {
+		if (node.circuitBufferMap == null) {
+			return;
+		}
+		Buffer buffer = node.circuitBufferMap.remove(circuit);
+		if (buffer != null) {
+			// only a reclaimed circuit drops data with its buffer, which the
+			// scheduler must no longer send from
+			boolean hasData = !buffer.isEmpty();
+			if (hasData) {
+				node.getScheduler().notifyBufferDeactivated(time, buffer);
+			}
+			node.bufferRing.remove(buffer);
+			if (hasData) {
+				buffer.discard();
+			}
+		}
+		releaseEmptyMap(node);
+	}
+
+	/**
+	 * Drops the circuit buffer map of the given node once it holds no
+	 * buffers, so idle nodes do not keep an empty map around.
+	 */
+	private void releaseEmptyMap(TorNode node) {
+		if (node.circuitBufferMap.isEmpty()) {
+			node.circuitBufferMap = null;
+		}
+	}
+
+}
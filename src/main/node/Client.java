@@ -20,17 +20,22 @@
  */
 package main.node;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedList;
 
 import main.application.TorApplication;
 import main.event.ApplicationStart;
 import main.event.FreeTicketDistribution;
+import main.event.RefillCircuitPool;
 import main.event.RefreshCircuit;
 import main.network.Circuit;
 import main.network.Datagram;
+import main.network.Datagram.SendmeType;
 import main.network.Reply;
 import main.network.Request;
 import main.node.Directory.NodeType;
+import main.node.NodeRegistry.Phase;
 import main.resource.Configuration;
 import main.scheduling.Scheduler;
 import main.scheduling.Scheduler.Priority;
@@ -47,9 +52,24 @@ import main.util.SimulationClock;
  */
 public class Client extends TorNode {
 	/**
-	 * The map of circuits keyed by the destination server
+	 * The map of circuits keyed by the destination server, or null while the
+	 * client has no circuits
 	 */
 	private HashMap<Server, Circuit> circuits;
+	/**
+	 * Preemptive circuits that are built but not yet attached to a server,
+	 * like the circuits Tor builds before they are needed, or null until the
+	 * first circuit is built
+	 */
+	private LinkedList<Circuit> circuitPool;
+	/**
+	 * Flag indicating a RefillCircuitPool event is pending for this client
+	 */
+	private boolean isRefillPending;
+	/**
+	 * Flag indicating this client released its buffers while it is idle
+	 */
+	private boolean isHibernating;
 	/**
 	 * The Tor directory is used to create circuits
 	 */
@@ -61,29 +81,50 @@ public class Client extends TorNode {
 	 */
 	private boolean ticketVIP;
 
-	/**
-	 * The current ticket balance of this node
-	 */
-	private int ticketBalance;
 	
 	private Relay hostRelay;
 
 	/**
-	 * Creates the client and initializes the map of circuits. By default,
-	 * clients are not ticketVIPs.
+	 * The entry guards of this client, or null until they are selected
+	 */
+	private ArrayList<Relay> guards;
+
+	/**
+	 * Creates the client. The map of circuits and the pool are created when
+	 * the first circuit is built. By default, clients are not ticketVIPs.
 	 * 
+	 * @param bufferPolicy
+	 *            the buffer policy of the scheduling algorithm
 	 * @param directory
 	 *            the Tor directory server
 	 * @see main.node.Node for parameter definitions
 	 */
-	public Client(NodeType type, Scheduler scheduler, int upstreamBandwidth,
+	public Client(NodeType type, Scheduler scheduler,
+			BufferPolicy bufferPolicy, int upstreamBandwidth,
 			int downstreamBandwidth, Directory directory) {
-		super(type, scheduler, upstreamBandwidth, downstreamBandwidth);
-		circuits = new HashMap<Server, Circuit>(6);
+		this(Directory.getUniqueId(), type, scheduler, bufferPolicy,
+				upstreamBandwidth, downstreamBandwidth, directory);
+	}
+
+	/**
+	 * Creates the client under an id reserved earlier by the Directory.
+	 * 
+	 * @see main.node.Client#Client(NodeType, Scheduler, BufferPolicy, int,
+	 *      int, Directory)
+	 */
+	Client(int id, NodeType type, Scheduler scheduler,
+			BufferPolicy bufferPolicy, int upstreamBandwidth,
+			int downstreamBandwidth, Directory directory) {
+		super(id, type, scheduler, bufferPolicy, upstreamBandwidth,
+				downstreamBandwidth);
+		circuits = null;
+		circuitPool = null;
+		isRefillPending = false;
+		isHibernating = false;
 		this.directory = directory;
 		ticketVIP = false;
-		ticketBalance = 0;
 		hostRelay = null;
+		NodeRegistry.getInstance().setPhase(getId(), Phase.PENDING);
 	}
 
 	/**
@@ -125,23 +166,63 @@ public class Client extends TorNode {
 		int ticketsRequired = (requestCells + responseCells) * ticketRate * 6;
 
 		// check if this node can afford the requested priority for this request
+		NodeRegistry registry = NodeRegistry.getInstance();
+		int ticketBalance = registry.getTicketBalance(getId());
 		if (ticketsRequired <= ticketBalance) {
 			request.setPriority(requestedPriority);
-			ticketBalance -= ticketsRequired;
+			registry.setTicketBalance(getId(), ticketBalance - ticketsRequired);
+		}
+	}
+
+	/**
+	 * @param server
+	 *            the destination server
+	 * @return the circuit this node uses for the given server, or null if
+	 *         there is none
+	 */
+	public Circuit getCircuit(Server server) {
+		if (circuits == null) {
+			return null;
 		}
+		return circuits.get(server);
 	}
 
 	/**
-	 * @return the map of circuits this node stores
+	 * Sets the application phase of this client in the NodeRegistry.
+	 * 
+	 * @param phase
+	 *            the phase the application entered
+	 */
+	public void setPhase(Phase phase) {
+		NodeRegistry.getInstance().setPhase(getId(), phase);
+	}
+
+	/**
+	 * Packages cells of the requests queued in the given circuit while the flow
+	 * control windows allow, and sends them down to the TorNode.
+	 * 
+	 * @param circuit
+	 *            the circuit with queued requests
 	 */
-	public HashMap<Server, Circuit> getCircuits() {
-		return circuits;
+	private void packageRequests(long time, Circuit circuit) {
+		Datagram cell = circuit.packageRequestData();
+		while (cell != null) {
+			Driver.getInstance().incrementDataCount(
+					cell.getMessage().getPriority());
+			super.send(time, cell);
+			cell = circuit.packageRequestData();
+		}
 	}
 
 	/**
 	 * Receive incoming data for the application. The client removes the cell
 	 * and when an entire reply is received, sends it to the application for
 	 * measurements and further processing.
+	 * <p>
+	 * If flow control is enabled, the delivered cell is counted in the circuit
+	 * and stream windows and SENDME cells are sent to the exit as needed. A
+	 * SENDME cell from the exit opens the corresponding window so more
+	 * requests may be packaged.
 	 * 
 	 * @see main.node.TorNode#receive(main.network.Datagram)
 	 */
@@ -149,9 +230,22 @@ public class Client extends TorNode {
 	public void receive(long time, Datagram data) {
 		// the client handles all cells
 		Driver.log.fine(toString() + " received cell");
+		wake();
 		Driver.getInstance()
 				.decrementDataCount(data.getMessage().getPriority());
 
+		if (data.isSendme()) {
+			Circuit circuit = data.getRequest().getCircuit();
+			if (data.getSendme() == SendmeType.CIRCUIT) {
+				circuit.getUpstreamWindow().receivedSendme();
+			} else {
+				data.getRequest().getStreamWindow().receivedSendme();
+			}
+			packageRequests(time, circuit);
+			circuit.sendmeArrived(time);
+			return;
+		}
+
 		// client tor node strips off cell
 		data.setCell(false);
 
@@ -162,6 +256,18 @@ public class Client extends TorNode {
 		Circuit circuit = reply.getCircuit();
 		circuit.clientReceivedDatagram();
 
+		// acknowledge delivered cells before the circuit may be tore down
+		if (Configuration.NETWORK_FLOW_CONTROL) {
+			if (circuit.getDownstreamWindow().delivered()) {
+				sendSendme(time, circuit.createClientSendme(reply,
+						SendmeType.CIRCUIT));
+			}
+			if (reply.getStreamWindow().delivered()) {
+				sendSendme(time, circuit.createClientSendme(reply,
+						SendmeType.STREAM));
+			}
+		}
+
 		Driver.log.fine(toString() + " received " + data.getSize()
 				+ " bytes of " + data.toString() + " from "
 				+ reply.getServer().toString() + " (total bytes = "
@@ -170,12 +276,63 @@ public class Client extends TorNode {
 		// if we have received the entire reply, the application receives it
 		if (reply.isDelivered()) {
 			// update circuit outstanding requests
-			circuit.clientRemovedRequest();
+			circuit.clientRemovedRequest(time, reply);
+			NodeRegistry.getInstance().addBytesInFlight(getId(),
+					-(reply.getRequest().getSize() + reply.getSize()));
 			Driver.getInstance().decrementMessageCount(reply.getPriority());
 			reply.getApplication().receive(time, reply);
 		}
 	}
 
+	/**
+	 * Builds preemptive circuits until the pool holds the configured number of
+	 * circuits.
+	 */
+	public void refillCircuitPool(long time) {
+		isRefillPending = false;
+		if (circuitPool == null) {
+			circuitPool = new LinkedList<Circuit>();
+		}
+		while (circuitPool.size() < Configuration.PREEMPTIVE_CIRCUITS) {
+			circuitPool.add(new Circuit(this, directory));
+		}
+	}
+
+	/**
+	 * Schedules a RefillCircuitPool event at the given time, unless one is
+	 * pending already.
+	 */
+	private void scheduleCircuitPoolRefill(long time) {
+		if (!isRefillPending) {
+			isRefillPending = true;
+			Driver.getInstance().addEvent(new RefillCircuitPool(time, this));
+		}
+	}
+
+	/**
+	 * Takes a preemptive circuit from the pool and extends it to the given
+	 * server, so building the circuit does not delay the request. The pool is
+	 * refilled by a later event. If the pool is empty, a new circuit is built
+	 * instead.
+	 * 
+	 * @param server
+	 *            the communication partner of the circuit
+	 * @return the circuit to the given server
+	 */
+	private Circuit takePooledCircuit(long time, Server server) {
+		if (Configuration.PREEMPTIVE_CIRCUITS <= 0) {
+			return new Circuit(this, server, directory);
+		}
+		Circuit circuit = (circuitPool == null) ? null : circuitPool.poll();
+		if (circuit == null) {
+			circuit = new Circuit(this, server, directory);
+		} else {
+			circuit.attach(server);
+		}
+		scheduleCircuitPoolRefill(time);
+		return circuit;
+	}
+
 	/**
 	 * Refresh the given circuit by setting its zombie status and removing it
 	 * from the map. If it already is a zombie, this method has no effect. If it
@@ -185,13 +342,16 @@ public class Client extends TorNode {
 	 * @param circuit
 	 *            the circuit to refresh
 	 */
-	public void refreshCircuit(Circuit circuit) {
+	public void refreshCircuit(long time, Circuit circuit) {
 		// the circuit could have been removed already by an optimistic unchoke
 		// if it is already a zombie, it will clean is itself when all data is
 		// cleared out
 		if (!circuit.isZombie()) {
 			// remove it from circuits so we stop using it for new requests
 			Circuit removed = circuits.remove(circuit.getServer());
+			if (circuits.isEmpty()) {
+				circuits = null;
+			}
 
 			// if the circuit is a zombie already, the mapping for the server
 			// will have changed - so make sure we are removing the correct
@@ -205,15 +365,15 @@ public class Client extends TorNode {
 
 			// we want to destroy the old circuit when all data is done sending
 			// this will also teardown the circuit if it currently has no data
-			circuit.setZombie(true);
+			circuit.setZombie(time, true);
 		}
 	}
 
 	/**
 	 * Sends the request down the stack on behalf of the application. The given
-	 * request is assigned to a circuit, creating a new circuit if necessary. If
-	 * a new circuit is created, a CircuitRefresh event is created to refresh
-	 * the circuit in 10 minutes. Request priority is computed if necesasry, and
+	 * request is assigned to a circuit, taking a preemptive circuit or creating
+	 * a new circuit if necessary. If a new circuit is used, a CircuitRefresh
+	 * event is created to refresh the circuit in 10 minutes. Request priority is computed if necesasry, and
 	 * the request is split into cells and sent down to the TorNode.
 	 * 
 	 * @param request
@@ -227,13 +387,17 @@ public class Client extends TorNode {
 		Driver.log.fine(toString() + " sending " + request.getSize()
 				+ " byte request for " + request.getRequestedDataSize()
 				+ " byte reply");
+		wake();
 
 		// find the right circuit for this request based on server
 		Server server = request.getServer();
-		Circuit circuit = circuits.get(server);
+		Circuit circuit = getCircuit(server);
 		if (circuit == null) {
-			// we have no circuit for this server, create a new one
-			circuit = new Circuit(this, server, directory);
+			// we have no circuit for this server, use a preemptive one
+			circuit = takePooledCircuit(time, server);
+			if (circuits == null) {
+				circuits = new HashMap<Server, Circuit>(6);
+			}
 			circuits.put(server, circuit);
 
 			// we want to refresh the circuit in 10 minutes
@@ -249,15 +413,23 @@ public class Client extends TorNode {
 		}
 
 		// finally, create cells and send them down
-		for (Datagram cell : splitMessage(request, request, null, true)) {
-			cell.setChannel(circuit.getEntryLink());
-			Driver.getInstance().incrementDataCount(
-					cell.getMessage().getPriority());
-			super.send(time, cell);
+		if (Configuration.NETWORK_FLOW_CONTROL) {
+			// only as many cells as the flow control windows allow
+			circuit.addUnpackagedRequest(request);
+			packageRequests(time, circuit);
+		} else {
+			for (Datagram cell : splitMessage(request, request, null, true)) {
+				cell.setHop(Circuit.ENTRY_HOP);
+				Driver.getInstance().incrementDataCount(
+						cell.getMessage().getPriority());
+				super.send(time, cell);
+			}
 		}
 
 		// tell the circuit and Driver there is another outstanding request
-		circuit.clientAddedRequest();
+		circuit.clientAddedRequest(request);
+		NodeRegistry.getInstance().addBytesInFlight(getId(),
+				request.getSize() + request.getRequestedDataSize());
 		Driver.getInstance().incrementMessageCount(request.getPriority());
 	}
 
@@ -270,19 +442,105 @@ public class Client extends TorNode {
 	 *            the application to setup
 	 */
 	public void setupApplication(long time, TorApplication application) {
-		// compute a random start delay between 0 and X minutes
-		long tenMinutes = (long) (SimulationClock.getInstance().getOneMinute() * Configuration.APPLICATION_STARTUP);
-		long delay = (long) (Generator.getInstance().getPrng().nextDouble() * tenMinutes);
+		scheduleApplication(time + drawStartDelay(), application);
+	}
 
-		// add the starting event after the delay
-		ApplicationStart e = new ApplicationStart(time + delay, application);
+	/**
+	 * Creates an ApplicationStart event at the given time. If we are using
+	 * priority, also add a FreeTicketDistribution event for this node at the
+	 * same time.
+	 * 
+	 * @param startTime
+	 *            the time the application starts
+	 * @param application
+	 *            the application to start
+	 */
+	void scheduleApplication(long startTime, TorApplication application) {
+		// add the starting event
+		ApplicationStart e = new ApplicationStart(startTime, application);
 		Driver.getInstance().addEvent(e);
 
+		// build preemptive circuits when the application starts
+		if (Configuration.PREEMPTIVE_CIRCUITS > 0) {
+			scheduleCircuitPoolRefill(startTime);
+		}
+
 		// get free tickets when app starts
 		if (Configuration.NETWORK_PRIORITY) {
 			Driver.getInstance().addEvent(
-					new FreeTicketDistribution(time + delay, this));
+					new FreeTicketDistribution(startTime, this));
+		}
+	}
+
+	/**
+	 * @return a random application start delay between 0 and the configured
+	 *         number of minutes, in nanoseconds
+	 */
+	static long drawStartDelay() {
+		long tenMinutes = (long) (SimulationClock.getInstance().getOneMinute() * Configuration.APPLICATION_STARTUP);
+		return (long) (Generator.getInstance().getPrng().nextDouble() * tenMinutes);
+	}
+
+	/**
+	 * Compacts this client while its application is idle, if configured. The
+	 * client hibernates only if nothing it sent or requested is in flight, its
+	 * buffers are empty, and its network is idle by the given time. Its
+	 * buffers are then dropped, or only their storage if they keep scheduler
+	 * state, along with the indexes of its scheduler and the queues of its
+	 * network. Its state is kept by its circuits and the NodeRegistry until
+	 * the next send or receive wakes it.
+	 * 
+	 * @see main.resource.Configuration#HIBERNATE_CLIENTS
+	 */
+	public void hibernate(long time) {
+		if (!Configuration.HIBERNATE_CLIENTS || isHibernating
+				|| NodeRegistry.getInstance().getBytesInFlight(getId()) != 0
+				|| !getSchedulingRing().hasNoData()
+				|| !getNetwork().isIdle(time)) {
+			return;
+		}
+		if (canReleaseBuffers()) {
+			releaseBuffers();
+		} else {
+			releaseStorage();
 		}
+		getScheduler().compact();
+		getNetwork().compact();
+		isHibernating = true;
+		Driver.getInstance().addHibernation();
+	}
+
+	/**
+	 * @return true if this client released its buffers while it is idle
+	 */
+	public boolean isHibernating() {
+		return isHibernating;
+	}
+
+	/**
+	 * Creates the buffers of this client again if it is hibernating. Buffers
+	 * that only released their storage create it again when data is enqueued.
+	 */
+	private void wake() {
+		if (isHibernating) {
+			isHibernating = false;
+			if (canReleaseBuffers()) {
+				restoreBuffers();
+			}
+			Driver.getInstance().removeHibernation();
+		}
+	}
+
+	/**
+	 * Sends the given SENDME cell down to the TorNode.
+	 * 
+	 * @param sendme
+	 *            the SENDME cell created by the circuit
+	 */
+	private void sendSendme(long time, Datagram sendme) {
+		Driver.getInstance().incrementDataCount(
+				sendme.getMessage().getPriority());
+		super.send(time, sendme);
 	}
 
 	/**
@@ -296,13 +554,40 @@ public class Client extends TorNode {
 	}
 
 	public void earnTickets(int numberOfTickets) {
-		ticketBalance += numberOfTickets;
+		NodeRegistry registry = NodeRegistry.getInstance();
+		registry.setTicketBalance(getId(), registry.getTicketBalance(getId())
+				+ numberOfTickets);
+	}
+
+	/**
+	 * @return the relay running on the same host as this client, or null if
+	 *         there is none
+	 */
+	public Relay getHostRelay() {
+		return hostRelay;
 	}
 
 	public void setHostRelay(Relay hostRelay) {
 		this.hostRelay = hostRelay;
 	}
 
+	/**
+	 * @return the entry guards of this client, or null if they are not
+	 *         selected yet
+	 */
+	public ArrayList<Relay> getGuards() {
+		return guards;
+	}
+
+	/**
+	 * @param guards
+	 *            the entry guards this client keeps for the first hop of its
+	 *            circuits
+	 */
+	public void setGuards(ArrayList<Relay> guards) {
+		this.guards = guards;
+	}
+
 	@Override
 	public String toString() {
 		String s = super.toString();
@@ -21,20 +21,26 @@
 package main.node;
 
 import java.util.ArrayList;
-import java.util.TreeMap;
+import java.util.Random;
 
 import main.application.FileSharer;
+import main.application.TorApplication;
 import main.application.WebBrowser;
+import main.node.NodeRegistry.Phase;
 import main.resource.Configuration;
+import main.resource.Consensus;
+import main.resource.Consensus.Position;
 import main.resource.Distribution;
 import main.resource.Distribution.DistributionType;
-import main.scheduling.ExponentialWeightedMovingAverageScheduler;
-import main.scheduling.FirstComeFirstServedScheduler;
-import main.scheduling.RoundRobinScheduler;
-import main.scheduling.Scheduler;
-import main.scheduling.HybridProportionalDelayScheduler;
-import main.scheduling.WeightedFairQueueingScheduler;
+import main.scheduling.SchedulerFactory;
 import main.system.Driver;
+import main.event.ClientStart;
+import main.event.RelayChurn;
+import main.util.AliasTable;
+import main.util.DynamicTable;
+import main.util.Generator;
+import main.util.SimulationClock;
+import main.util.WeightedTable;
 
 /**
  * The Tor directory. Responsible for creating all nodes and assisting clients
@@ -61,6 +67,17 @@ public class Directory {
 	 */
 	public static final long latency = Configuration.NETWORK_LATENCY;
 
+	/**
+	 * Relays slower than this number of bytes per second are not used.
+	 */
+	private static final int MIN_RELAY_BANDWIDTH = 8192;
+
+	/**
+	 * Relays do not leave a selection table with this few relays, so a path
+	 * can always avoid two relays and the relay of the client.
+	 */
+	private static final int MIN_SELECTABLE_RELAYS = 4;
+
 	/**
 	 * @return the next integer value of the id counter
 	 */
@@ -72,16 +89,27 @@ public class Directory {
 		return idHandout;
 	}
 
+	/**
+	 * The buffer policy of the relay scheduler, shared by all Tor nodes
+	 */
+	private BufferPolicy bufferPolicy;
+
 	/**
 	 * List of relays that will exit traffic for clients
 	 */
 	private ArrayList<Relay> exitRelays;
 
 	/**
-	 * A map of relays that can be chosen to exit traffic, representing a CDF so
-	 * each relay is chosen with probability proportional to its bandwidth.
+	 * A table of relays that can be chosen to exit traffic, so each relay is
+	 * chosen with probability proportional to its bandwidth.
+	 */
+	private WeightedTable<Relay> exitRelaySelection;
+
+	/**
+	 * A table of relays that can be chosen as the first relay of a circuit.
+	 * Without a consensus, this is the table of non-exit relays.
 	 */
-	private TreeMap<Double, Relay> exitRelaySelection;
+	private WeightedTable<Relay> guardRelaySelection;
 
 	/**
 	 * List of all nodes in the simulation
@@ -89,21 +117,34 @@ public class Directory {
 	private ArrayList<Node> nodes;
 
 	/**
-	 * A map of relays that can be chosen as non-exit relays, representing a CDF
-	 * so each relay is chosen with probability proportional to its bandwidth.
+	 * A table of relays that can be chosen as non-exit relays, so each relay
+	 * is chosen with probability proportional to its bandwidth.
 	 */
-	private TreeMap<Double, Relay> nonexitRelaySelection;
+	private WeightedTable<Relay> nonexitRelaySelection;
 
 	/**
-	 * A map of servers, representing a CDF where each server is chosen with
-	 * equal probability.
+	 * A table of servers, where each server is chosen with equal probability.
 	 */
-	private TreeMap<Double, Server> serverSelection;
+	private AliasTable<Server> serverSelection;
 
 	/**
-	 * List of relays, used only during setup.
+	 * List of relays, used only during setup unless relays churn. With churn,
+	 * it holds the relays that are online.
 	 */
 	private ArrayList<Relay> relays;
+	/**
+	 * List of relays that left the network, used only if relays churn.
+	 */
+	private ArrayList<Relay> offlineRelays;
+	/**
+	 * If exit relays are selected for other positions, without a consensus.
+	 */
+	private boolean considerExit;
+	/**
+	 * The factor weighting exit relays in other positions, without a
+	 * consensus.
+	 */
+	private double exitWeightFactor;
 	/**
 	 * List of servers, used only during setup.
 	 */
@@ -123,21 +164,24 @@ public class Directory {
 	 */
 	public Directory() {
 		// initialize
-		exitRelaySelection = new TreeMap<Double, Relay>();
-		nonexitRelaySelection = new TreeMap<Double, Relay>();
-		serverSelection = new TreeMap<Double, Server>();
 		totalRelayBandwidth = 0.0;
 		totalExitRelayBandwidth = 0.0;
 
-		// create our schedulers
-		Scheduler serverScheduler = new FirstComeFirstServedScheduler();
-		Scheduler torScheduler = getTorScheduler();
+		// every node gets its own scheduler from these
+		SchedulerFactory serverScheduler = SchedulerFactory.getFactory("FCFS");
+		SchedulerFactory torScheduler = getTorSchedulerFactory();
+		bufferPolicy = torScheduler.createBufferPolicy();
 
 		// create nodes list
 		int totalNodes = Configuration.FS_CLIENTS + Configuration.WEB_CLIENTS
-				+ Configuration.NORMAL_RELAYS + Configuration.EXIT_RELAYS
 				+ Configuration.FS_RELAYS + Configuration.WEB_RELAYS
 				+ Configuration.WEB_EXIT_RELAYS + Configuration.SERVERS;
+		if (Consensus.isInitialized()) {
+			totalNodes += Consensus.size();
+		} else {
+			totalNodes += Configuration.NORMAL_RELAYS
+					+ Configuration.EXIT_RELAYS;
+		}
 		nodes = new ArrayList<Node>(totalNodes);
 		relays = new ArrayList<Relay>();
 		exitRelays = new ArrayList<Relay>();
@@ -146,9 +190,14 @@ public class Directory {
 		// create all types of nodes
 		long currentTime = 0;
 		createNodes(currentTime, NodeType.SERVER, Configuration.SERVERS, serverScheduler);
-		createNodes(currentTime, NodeType.NORMALRELAY, Configuration.NORMAL_RELAYS,
-				torScheduler);
-		createNodes(currentTime, NodeType.EXITRELAY, Configuration.EXIT_RELAYS, torScheduler);
+		if (Consensus.isInitialized()) {
+			createConsensusRelays(torScheduler);
+		} else {
+			createNodes(currentTime, NodeType.NORMALRELAY,
+					Configuration.NORMAL_RELAYS, torScheduler);
+			createNodes(currentTime, NodeType.EXITRELAY,
+					Configuration.EXIT_RELAYS, torScheduler);
+		}
 		createNodes(currentTime, NodeType.WEBCLIENT, Configuration.WEB_CLIENTS, torScheduler);
 		createNodes(currentTime, NodeType.WEBRELAY, Configuration.WEB_RELAYS, torScheduler);
 		createNodes(currentTime, NodeType.WEBEXITRELAY, Configuration.WEB_EXIT_RELAYS,
@@ -158,12 +207,19 @@ public class Directory {
 		createNodes(currentTime, NodeType.FSEXITRELAY, Configuration.FS_EXIT_RELAYS,
 				torScheduler);
 
-		// compute selection maps for relays and servers
+		// compute selection tables for relays and servers
 		computeRelaySelectionProbabilities();
 		computeServerSelectionProbabilities();
 
-		// garbage collect these, we have saved the selection maps and all nodes
-		relays = null;
+		// garbage collect these, we have saved the selection tables and all
+		// nodes
+		if (Configuration.CHURN_INTERVAL > 0) {
+			offlineRelays = new ArrayList<Relay>();
+			Driver.getInstance().addEvent(
+					new RelayChurn(getChurnInterval(), this));
+		} else {
+			relays = null;
+		}
 		exitRelays = null;
 		servers = null;
 	}
@@ -171,75 +227,228 @@ public class Directory {
 	/**
 	 * Computes probabilities of selecting relays for circuits, following
 	 * http://www.torproject.org/svn/trunk/doc/spec/path-spec.txt
+	 * 
+	 * @see main.node.Directory#getSelectionWeight(Position, Relay)
 	 */
 	private void computeRelaySelectionProbabilities() {
-		// FIXME relay selection computations more elegant
-		// exit relays
-		// we pick a given router as an exit with probability proportional to
-		// its bandwidth
-		double probability = 0.0;
-		TreeMap<Double, ArrayList<Relay>> sortedProbabilities = new TreeMap<Double, ArrayList<Relay>>();
-		for (Relay relay : exitRelays) {
-			probability = relay.getNetwork().getUpstreamBandwidth()
-					/ totalExitRelayBandwidth;
-			putProb(probability, relay, sortedProbabilities);
-		}
-		fillCDF(exitRelaySelection, sortedProbabilities);
-
-		sortedProbabilities.clear();
-		double weightFactor = (totalExitRelayBandwidth - (totalRelayBandwidth / 3))
+		// without a consensus, exit relay bandwidth is weighted in other
+		// positions to evenly distribute bandwidth
+		exitWeightFactor = (totalExitRelayBandwidth - (totalRelayBandwidth / 3))
 				/ totalExitRelayBandwidth;
-		boolean considerExit = totalExitRelayBandwidth >= totalRelayBandwidth / 3;
-		double normalRelayBandwidth = totalRelayBandwidth
-				- totalExitRelayBandwidth;
-		totalRelayBandwidth = normalRelayBandwidth + totalExitRelayBandwidth
-				* weightFactor;
-
-		// non exit relays
-		// same as above, except exit relay bandwidth is weighted to evenly
-		// distribute bandwidth
-		if (considerExit) {
-			for (Relay relay : relays) {
-				if (relay.isExit()) {
-					probability = relay.getNetwork().getUpstreamBandwidth()
-							* weightFactor / totalRelayBandwidth;
-				} else {
-					probability = relay.getNetwork().getUpstreamBandwidth()
-							/ totalRelayBandwidth;
-				}
-				putProb(probability, relay, sortedProbabilities);
-			}
+		considerExit = totalExitRelayBandwidth >= totalRelayBandwidth / 3;
+
+		exitRelaySelection = createSelectionTable(Position.EXIT);
+		nonexitRelaySelection = createSelectionTable(Position.MIDDLE);
+		if (Consensus.isInitialized()) {
+			guardRelaySelection = createSelectionTable(Position.GUARD);
 		} else {
-			for (Relay relay : relays) {
-				if (relay.isExit()) {
-					continue;
-				}
-				probability = relay.getNetwork().getUpstreamBandwidth()
-						/ normalRelayBandwidth;
-				putProb(probability, relay, sortedProbabilities);
+			guardRelaySelection = nonexitRelaySelection;
+		}
+	}
+
+	/**
+	 * Builds a table of the relays with a positive weight in the given
+	 * position, each chosen with probability proportional to its weight. If
+	 * relays churn, the table supports updating the weights.
+	 * 
+	 * @param position
+	 *            the position of the circuit the table selects relays for
+	 * @return the selection table
+	 */
+	private WeightedTable<Relay> createSelectionTable(Position position) {
+		ArrayList<Relay> candidates = new ArrayList<Relay>(relays.size());
+		ArrayList<Double> candidateWeights = new ArrayList<Double>(
+				relays.size());
+		for (Relay relay : relays) {
+			double weight = getSelectionWeight(position, relay);
+			if (weight > 0) {
+				candidates.add(relay);
+				candidateWeights.add(weight);
 			}
 		}
-		fillCDF(nonexitRelaySelection, sortedProbabilities);
+		double[] weights = new double[candidates.size()];
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] = candidateWeights.get(i);
+		}
+		if (Configuration.CHURN_INTERVAL > 0) {
+			return new DynamicTable<Relay>(candidates, weights);
+		}
+		return new AliasTable<Relay>(candidates, weights);
 	}
 
 	/**
-	 * Builds the server selection map, giving equal probability to each server.
+	 * Computes the weight of selecting the given relay for the given position
+	 * from its advertised bandwidth. With a consensus, the bandwidth is
+	 * weighted by the consensus weights of the relay flags. Otherwise, we pick
+	 * a given router as an exit with probability proportional to its
+	 * bandwidth, and the same for other positions except that exit relay
+	 * bandwidth is weighted down. Relays that are not online have no weight.
+	 * 
+	 * @param position
+	 *            the position of the circuit the relay is selected for
+	 * @param relay
+	 *            the relay to weight
+	 * @return the selection weight, zero if the relay can not be selected
+	 * @see main.resource.Consensus#getWeight(Position, int)
 	 */
-	private void computeServerSelectionProbabilities() {
-		double equalProbability = 1.0 / servers.size();
-		double key = equalProbability;
-		for (Server server : servers) {
-			serverSelection.put(key, server);
-			key += equalProbability;
-			if (key > 1.0) {
-				key = 1.0;
+	private double getSelectionWeight(Position position, Relay relay) {
+		if (!relay.isOnline()) {
+			return 0.0;
+		}
+		double bandwidth = relay.getAdvertisedBandwidth();
+		if (Consensus.isInitialized()) {
+			int flags = 0;
+			if (relay.isGuard()) {
+				flags |= Consensus.FLAG_GUARD;
+			}
+			if (relay.isExit()) {
+				flags |= Consensus.FLAG_EXIT;
+			}
+			if (relay.isFast()) {
+				flags |= Consensus.FLAG_FAST;
+			}
+			return bandwidth * Consensus.getWeight(position, flags);
+		}
+		if (position == Position.EXIT) {
+			return relay.isExit() ? bandwidth : 0.0;
+		}
+		if (!relay.isExit()) {
+			return bandwidth;
+		}
+		return considerExit ? bandwidth * exitWeightFactor : 0.0;
+	}
+
+	/**
+	 * Simulates one change of the relay population, chosen uniformly: a relay
+	 * that left rejoins, an online relay leaves, or an online relay advertises
+	 * a new bandwidth between half and all of its bandwidth. Only the
+	 * selection weights of the changed relay are updated. A relay that leaves
+	 * is not selected for new circuits, while circuits already using it are
+	 * kept until they are refreshed. A relay does not leave if a selection
+	 * table would become too small. The next change is scheduled after the
+	 * churn interval.
+	 */
+	public void churnRelays(long time) {
+		Random prng = Generator.getInstance().getPrng();
+		Relay relay = null;
+		switch (prng.nextInt(3)) {
+		case 0:
+			if (!offlineRelays.isEmpty()) {
+				relay = remove(offlineRelays,
+						prng.nextInt(offlineRelays.size()));
+				relay.setOnline(true);
+				relays.add(relay);
+				Driver.log.fine(relay + " joined the network");
+			}
+			break;
+		case 1:
+			int index = prng.nextInt(relays.size());
+			relay = relays.get(index);
+			if (canLeave(relay)) {
+				remove(relays, index);
+				relay.setOnline(false);
+				offlineRelays.add(relay);
+				Driver.log.fine(relay + " left the network");
+			} else {
+				relay = null;
+			}
+			break;
+		case 2:
+			relay = relays.get(prng.nextInt(relays.size()));
+			int bandwidth = relay.getNetwork().getUpstreamBandwidth();
+			relay.setAdvertisedBandwidth((int) (bandwidth * (0.5 + 0.5 * prng
+					.nextDouble())));
+			Driver.log.fine(relay + " advertised "
+					+ relay.getAdvertisedBandwidth() + " kbps");
+			break;
+		}
+
+		if (relay != null) {
+			updateSelectionWeight(exitRelaySelection, Position.EXIT, relay);
+			updateSelectionWeight(nonexitRelaySelection, Position.MIDDLE, relay);
+			if (guardRelaySelection != nonexitRelaySelection) {
+				updateSelectionWeight(guardRelaySelection, Position.GUARD,
+						relay);
 			}
 		}
+
+		Driver.getInstance().addEvent(
+				new RelayChurn(time + getChurnInterval(), this));
 	}
 
 	/**
-	 * Create quantity of the given type of nodes, each of which use the given
-	 * scheduler. This method contains the logic for the bandwidth and
+	 * @param relay
+	 *            the online relay that would leave
+	 * @return true unless the relay is in a selection table that would become
+	 *         too small without it
+	 */
+	private boolean canLeave(Relay relay) {
+		return canLeave(exitRelaySelection, relay)
+				&& canLeave(nonexitRelaySelection, relay)
+				&& canLeave(guardRelaySelection, relay);
+	}
+
+	/**
+	 * @return true unless the relay is in the given table and the table would
+	 *         become too small without it
+	 */
+	private boolean canLeave(WeightedTable<Relay> table, Relay relay) {
+		DynamicTable<Relay> dynamicTable = (DynamicTable<Relay>) table;
+		return dynamicTable.getWeight(relay) <= 0
+				|| dynamicTable.size() > MIN_SELECTABLE_RELAYS;
+	}
+
+	/**
+	 * Sets the weight of the given relay in the given table to its current
+	 * selection weight, removing it if it can not be selected.
+	 */
+	private void updateSelectionWeight(WeightedTable<Relay> table,
+			Position position, Relay relay) {
+		DynamicTable<Relay> dynamicTable = (DynamicTable<Relay>) table;
+		double weight = getSelectionWeight(position, relay);
+		if (weight > 0) {
+			dynamicTable.setWeight(relay, weight);
+		} else {
+			dynamicTable.remove(relay);
+		}
+	}
+
+	/**
+	 * Removes the relay at the given index from the given list in O(1), moving
+	 * the last relay into its place.
+	 * 
+	 * @return the removed relay
+	 */
+	private Relay remove(ArrayList<Relay> list, int index) {
+		Relay relay = list.get(index);
+		list.set(index, list.get(list.size() - 1));
+		list.remove(list.size() - 1);
+		return relay;
+	}
+
+	/**
+	 * @return the simulation time between changes of the relay population
+	 */
+	private long getChurnInterval() {
+		return SimulationClock.getInstance().getOneSecond()
+				* Configuration.CHURN_INTERVAL;
+	}
+
+	/**
+	 * Builds the server selection table, giving equal probability to each
+	 * server.
+	 */
+	private void computeServerSelectionProbabilities() {
+		double[] weights = new double[servers.size()];
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] = 1.0;
+		}
+		serverSelection = new AliasTable<Server>(servers, weights);
+	}
+
+	/**
+	 * Create quantity of the given type of nodes, each of which use a scheduler
+	 * created by the given factory. This method contains the logic for the bandwidth and
 	 * application of each node in the system.
 	 * 
 	 * @param nodeType
@@ -247,10 +456,10 @@ public class Directory {
 	 * @param quantity
 	 *            the number of nodes to create
 	 * @param scheduler
-	 *            the scheduler the new nodes will use
+	 *            the factory of the schedulers the new nodes will use
 	 */
 	private void createNodes(long time, NodeType nodeType, int quantity,
-			Scheduler scheduler) {
+			SchedulerFactory scheduler) {
 
 		Client c;
 		Relay r;
@@ -259,12 +468,17 @@ public class Directory {
 			switch (nodeType) {
 			case WEBCLIENT:
 				c = createWebClient(time, nodeType, scheduler);
-				nodes.add(c);
+				// lazy clients are added when they start
+				if (c != null) {
+					nodes.add(c);
+				}
 				break;
 
 			case FSCLIENT:
 				c = createFSClient(time, nodeType, scheduler);
-				nodes.add(c);
+				if (c != null) {
+					nodes.add(c);
+				}
 				break;
 
 			case NORMALRELAY:
@@ -318,7 +532,8 @@ public class Directory {
 
 			case SERVER:
 				// servers have (practically) unlimited bandwidth
-				Server s = new Server(nodeType, scheduler, getMaxBandwidth(),
+				Server s = new Server(nodeType, scheduler.createScheduler(),
+						getMaxBandwidth(),
 						getMaxBandwidth());
 				nodes.add(s);
 				servers.add(s);
@@ -327,7 +542,47 @@ public class Directory {
 		}
 	}
 
-	private Relay createFSRelay(long time, NodeType nodeType, Scheduler scheduler,
+	/**
+	 * Creates a relay for each relay in the consensus that is not slower than
+	 * the relays drawn from the bandwidth distribution. Exits are created as
+	 * exit relays, all others as normal relays, and each keeps its consensus
+	 * flags.
+	 * 
+	 * @param scheduler
+	 *            the factory of the schedulers the new relays will use
+	 */
+	private void createConsensusRelays(SchedulerFactory scheduler) {
+		for (int i = 0; i < Consensus.size(); i++) {
+			int bandwidth = Consensus.getBandwidth(i);
+			if (bandwidth < MIN_RELAY_BANDWIDTH) {
+				continue;
+			}
+			int flags = Consensus.getFlags(i);
+			boolean isExit = (flags & Consensus.FLAG_EXIT) != 0;
+			boolean isGuard = (flags & Consensus.FLAG_GUARD) != 0;
+			boolean isFast = (flags & Consensus.FLAG_FAST) != 0;
+
+			// consensus relays contribute all of their bandwidth
+			int bwContributed = toKbps(bandwidth);
+			totalRelayBandwidth += bwContributed;
+			if (isExit) {
+				totalExitRelayBandwidth += bwContributed;
+			}
+
+			NodeType nodeType = isExit ? NodeType.EXITRELAY
+					: NodeType.NORMALRELAY;
+			Relay r = new Relay(nodeType, scheduler.createScheduler(),
+					bufferPolicy, isExit, isGuard, isFast, bwContributed, null);
+
+			nodes.add(r);
+			relays.add(r);
+			if (isExit) {
+				exitRelays.add(r);
+			}
+		}
+	}
+
+	private Relay createFSRelay(long time, NodeType nodeType, SchedulerFactory scheduler,
 			boolean isExit) {
 		// file sharer bandwidth
 		int bwUp = Configuration.FILESHARER_BANDWIDTH_UP;
@@ -352,8 +607,8 @@ public class Directory {
 		}
 
 		// the relay handles Tor forwarding, client handles the application
-		Client c = new Client(nodeType, scheduler, bwUp-bwContributed, bwDown-bwContributed, this);
-		Relay r = new Relay(nodeType, scheduler, isExit, bwContributed, c);
+		Client c = new Client(nodeType, scheduler.createScheduler(), bufferPolicy, bwUp-bwContributed, bwDown-bwContributed, this);
+		Relay r = new Relay(nodeType, scheduler.createScheduler(), bufferPolicy, isExit, bwContributed, c);
 		c.setupApplication(time, new FileSharer(this, c));
 
 		if (Configuration.TICKETS_FS_VIP) {
@@ -371,7 +626,7 @@ public class Directory {
 	 * @param scheduler
 	 * @param isExit
 	 */
-	private Relay createWebRelay(long time, NodeType nodeType, Scheduler scheduler,
+	private Relay createWebRelay(long time, NodeType nodeType, SchedulerFactory scheduler,
 			boolean isExit) {
 		// web relays contribute bandwidth according to the distribution
 		// and have a client's bandwidth in addition for their traffic
@@ -393,8 +648,8 @@ public class Directory {
 		}
 
 		// the relay handles Tor forwarding, client handles the application
-		Client c = new Client(nodeType, scheduler, bwUp-bwContributed, bwDown-bwContributed, this);
-		Relay r = new Relay(nodeType, scheduler, isExit, bwContributed, c);
+		Client c = new Client(nodeType, scheduler.createScheduler(), bufferPolicy, bwUp-bwContributed, bwDown-bwContributed, this);
+		Relay r = new Relay(nodeType, scheduler.createScheduler(), bufferPolicy, isExit, bwContributed, c);
 		c.setupApplication(time, new WebBrowser(this, c));
 
 		return r;
@@ -408,7 +663,7 @@ public class Directory {
 	 * @param isExit
 	 * @return
 	 */
-	private Relay createRelay(NodeType nodeType, Scheduler scheduler,
+	private Relay createRelay(NodeType nodeType, SchedulerFactory scheduler,
 			boolean isExit) {
 		// bandwidth is drawn from relay distribution, all of which is
 		// contributed
@@ -422,7 +677,7 @@ public class Directory {
 		}
 
 		// the relay handles Tor forwarding, client handles the application
-		Relay r = new Relay(nodeType, scheduler, isExit, bwContributed, null);
+		Relay r = new Relay(nodeType, scheduler.createScheduler(), bufferPolicy, isExit, bwContributed, null);
 
 		return r;
 	}
@@ -434,7 +689,7 @@ public class Directory {
 	 * @param scheduler
 	 * @return
 	 */
-	private Client createFSClient(long time, NodeType nodeType, Scheduler scheduler) {
+	private Client createFSClient(long time, NodeType nodeType, SchedulerFactory scheduler) {
 		// file sharer bandwidth
 		int bwUp = Configuration.FILESHARER_BANDWIDTH_UP;
 		int bwDown = Configuration.FILESHARER_BANDWIDTH_DOWN;
@@ -443,9 +698,14 @@ public class Directory {
 			bwUp = bwDown = getBandwidthSample();
 		}
 
+		if (Configuration.LAZY_CLIENTS) {
+			reserveClient(time, nodeType, bwUp, bwDown, scheduler);
+			return null;
+		}
+
 		// this client runs a FileSharer
 		// the relay handles Tor forwarding, client handles the application
-		Client c = new Client(nodeType, scheduler, bwUp, bwDown, this);
+		Client c = new Client(nodeType, scheduler.createScheduler(), bufferPolicy, bwUp, bwDown, this);
 		c.setupApplication(time, new FileSharer(this, c));
 
 		return c;
@@ -458,7 +718,7 @@ public class Directory {
 	 * @param scheduler
 	 * @return
 	 */
-	private Client createWebClient(long time, NodeType nodeType, Scheduler scheduler) {
+	private Client createWebClient(long time, NodeType nodeType, SchedulerFactory scheduler) {
 		// web clients bandwidth
 		int bwUp = Configuration.CLIENT_BANDWIDTH_UP;
 		int bwDown = Configuration.CLIENT_BANDWIDTH_DOWN;
@@ -467,31 +727,68 @@ public class Directory {
 			bwUp = bwDown = getBandwidthSample();
 		}
 
+		if (Configuration.LAZY_CLIENTS) {
+			reserveClient(time, nodeType, bwUp, bwDown, scheduler);
+			return null;
+		}
+
 		// this client runs a web browser
-		Client c = new Client(nodeType, scheduler, bwUp, bwDown, this);
+		Client c = new Client(nodeType, scheduler.createScheduler(), bufferPolicy, bwUp, bwDown, this);
 		c.setupApplication(time, new WebBrowser(this, c));
 
 		return c;
 	}
 
 	/**
-	 * Converts the given list of relays, sorted by probability, to the TreeMap
-	 * that represents the selection CDF. The list may contain duplicates.
+	 * Reserves an id and a NodeRegistry slot for a lazy client, and schedules
+	 * a ClientStart event at the random start time of its application. The
+	 * client itself is not created until then.
 	 * 
-	 * @param targetMap
-	 *            the map that will hold the CDF
-	 * @param sortedProbabilities
-	 *            the list of relays, sorted by their probability of selection
-	 */
-	private void fillCDF(TreeMap<Double, Relay> targetMap,
-			TreeMap<Double, ArrayList<Relay>> sortedProbabilities) {
-		double count = 0.0;
-		for (Double key : sortedProbabilities.keySet()) {
-			for (Relay r : sortedProbabilities.get(key)) {
-				count += key;
-				targetMap.put(count, r);
-			}
+	 * @param nodeType
+	 *            the type of the client
+	 * @param bwUp
+	 *            the upstream bandwidth of the client, in kbps
+	 * @param bwDown
+	 *            the downstream bandwidth of the client, in kbps
+	 * @param scheduler
+	 *            the factory of the scheduler the client will use
+	 */
+	private void reserveClient(long time, NodeType nodeType, int bwUp,
+			int bwDown, SchedulerFactory scheduler) {
+		int id = getUniqueId();
+		NodeRegistry registry = NodeRegistry.getInstance();
+		registry.register(id, nodeType, bwUp, bwDown);
+		registry.setPhase(id, Phase.PENDING);
+		Driver.getInstance().addEvent(
+				new ClientStart(time + Client.drawStartDelay(), this, id,
+						scheduler));
+	}
+
+	/**
+	 * Creates the lazy client with the given id and its application from the
+	 * NodeRegistry slot reserved for it, and starts the application now.
+	 * 
+	 * @param id
+	 *            the id reserved for the client
+	 * @param scheduler
+	 *            the factory of the scheduler the client will use
+	 * @see main.node.Directory#reserveClient(long, NodeType, int, int,
+	 *      SchedulerFactory)
+	 */
+	public void startClient(long time, int id, SchedulerFactory scheduler) {
+		NodeRegistry registry = NodeRegistry.getInstance();
+		NodeType nodeType = registry.getType(id);
+		Client c = new Client(id, nodeType, scheduler.createScheduler(),
+				bufferPolicy, registry.getUpstreamBandwidth(id),
+				registry.getDownstreamBandwidth(id), this);
+		TorApplication application;
+		if (nodeType == NodeType.FSCLIENT) {
+			application = new FileSharer(this, c);
+		} else {
+			application = new WebBrowser(this, c);
 		}
+		nodes.add(c);
+		c.scheduleApplication(time, application);
 	}
 
 	/**
@@ -504,10 +801,21 @@ public class Directory {
 	private int getBandwidthSample() {
 		int bandwidth = 0;
 		// the slowest 10% of relays are not used
-		while (bandwidth < 8192) {
+		while (bandwidth < MIN_RELAY_BANDWIDTH) {
 			bandwidth = Distribution.sample(DistributionType.RELAY_BANDWIDTH);
 		}
-		// bandwidth from sample is in Bps, should be clipped at 20MB
+		return toKbps(bandwidth);
+	}
+
+	/**
+	 * Converts a relay bandwidth to kbps, clipping it at 20MB.
+	 * 
+	 * @param bandwidth
+	 *            the relay bandwidth, in Bps
+	 * @return the bandwidth in kbps
+	 */
+	private int toKbps(int bandwidth) {
+		// bandwidth should be clipped at 20MB
 		int twentyMB = 20 * 1024 * 1024;
 		if (bandwidth > twentyMB) {
 			bandwidth = twentyMB;
@@ -518,25 +826,29 @@ public class Directory {
 	}
 
 	/**
-	 * Sample a relay from the given map until a relay is selected that is not
-	 * in the exclusions list and is not the given client.
+	 * Sample a relay from the given table that is not in the exclusions list
+	 * and is not the relay of the given client. The probabilities of the
+	 * remaining relays are renormalized instead of drawing until an allowed
+	 * relay is found.
 	 * 
-	 * @param map
-	 *            the map to sample
+	 * @param table
+	 *            the table to sample
 	 * @param client
-	 *            the client to exclude from the sample
+	 *            the client whose relay is excluded from the sample
 	 * @param exclusions
-	 *            other relays to exclude from the sample
+	 *            at most two other relays to exclude from the sample
 	 * @return the sampled relay
+	 * @see main.util.WeightedTable#sampleExcluding(java.util.Random, Object,
+	 *      Object, Object)
 	 */
-	private Relay getDisjoint(TreeMap<Double, Relay> map, Client client,
+	private Relay getDisjoint(WeightedTable<Relay> table, Client client,
 			ArrayList<Relay> exclusions) {
-		Relay choice = null;
-		// keep selecting until we get a relay not in the exclude list and who
-		// is not the client
-		while ((choice == null) || exclusions.contains(choice)
-				|| (choice.getLocalClient() == client)) {
-			choice = (Relay) Distribution.sampleMap(map);
+		Relay first = exclusions.size() > 0 ? exclusions.get(0) : null;
+		Relay second = exclusions.size() > 1 ? exclusions.get(1) : null;
+		Relay choice = table.sampleExcluding(Generator.getInstance().getPrng(),
+				first, second, client.getHostRelay());
+		if (choice == null) {
+			Driver.log.severe("No relay left to select for " + client);
 		}
 		return choice;
 	}
@@ -549,85 +861,112 @@ public class Directory {
 	}
 
 	/**
-	 * @return a randomly sampled server from the serverSelection map
+	 * @return a randomly sampled server from the serverSelection table
 	 */
 	public Server getRandomServer() {
-		return (Server) Distribution.sampleMap(serverSelection);
+		return serverSelection.sample(Generator.getInstance().getPrng());
 	}
 
 	/**
-	 * Check the configuration and return a new instance of the scheduler as
-	 * specified. This scheduler is configured as the relay scheduler.
+	 * Check the configuration and return the factory of the scheduler as
+	 * specified. Schedulers from this factory are configured as the relay
+	 * schedulers.
 	 * 
-	 * @return a new scheduler
+	 * @return the scheduler factory registered for the configured name
 	 */
-	private Scheduler getTorScheduler() {
-		Scheduler torScheduler;
-		switch (Configuration.SCHEDULER) {
-		case HYBRID_PROPORTIONAL_DELAY:
-			torScheduler = new HybridProportionalDelayScheduler();
-			break;
-		case ROUND_ROBIN:
-			torScheduler = new RoundRobinScheduler();
-			break;
-		case FIRST_COME_FIRST_SERVED:
-			torScheduler = new FirstComeFirstServedScheduler();
-			break;
-		case EXPONENTIAL_WEIGHTED_MOVING_AVERAGE:
-			torScheduler = new ExponentialWeightedMovingAverageScheduler();
-			break;
-		case WEIGHTED_FAIR_QUEUEING:
-			torScheduler = new WeightedFairQueueingScheduler();
-			break;
-		default:
+	private SchedulerFactory getTorSchedulerFactory() {
+		SchedulerFactory factory = SchedulerFactory
+				.getFactory(Configuration.SCHEDULER_NAME);
+		if (factory == null) {
 			Driver.log
 					.severe("Unrecognized scheduler. Please set appropriately in config.");
 			// FIXME should maybe exit... ?
-			torScheduler = null;
-			break;
 		}
-		return torScheduler;
+		return factory;
 	}
 
 	/**
 	 * Convenience method for selecting an exit relay.
 	 * 
-	 * @see main.node.Directory#getDisjoint(TreeMap, Client, ArrayList)
+	 * @see main.node.Directory#getDisjoint(WeightedTable, Client, ArrayList)
 	 */
 	public Relay pathSelectExit(Client client, ArrayList<Relay> excludeList) {
 		return getDisjoint(exitRelaySelection, client, excludeList);
 	}
 
 	/**
-	 * Convenience method for selecting a path relay.
+	 * Selects the first relay of a path. If clients use entry guards, the
+	 * relay is chosen uniformly from the guards of the client that are not in
+	 * the exclusions list, and the guards are selected on first use.
+	 * Otherwise, it is sampled from the guard selection table.
 	 * 
-	 * @see main.node.Directory#getDisjoint(TreeMap, Client, ArrayList)
+	 * @see main.node.Directory#getDisjoint(WeightedTable, Client, ArrayList)
+	 * @see main.node.Directory#selectGuards(Client)
 	 */
-	public Relay pathSelectRelay(Client client, ArrayList<Relay> excludeList) {
-		return getDisjoint(nonexitRelaySelection, client, excludeList);
+	public Relay pathSelectGuard(Client client, ArrayList<Relay> excludeList) {
+		if (Configuration.NUM_GUARDS <= 0) {
+			return getDisjoint(guardRelaySelection, client, excludeList);
+		}
+
+		ArrayList<Relay> guards = client.getGuards();
+		if (guards == null) {
+			guards = selectGuards(client);
+			client.setGuards(guards);
+		}
+
+		ArrayList<Relay> candidates = guards;
+		if (!excludeList.isEmpty() || Configuration.CHURN_INTERVAL > 0) {
+			// guards that left the network can not be used
+			candidates = new ArrayList<Relay>(guards.size());
+			for (Relay guard : guards) {
+				if (guard.isOnline() && !excludeList.contains(guard)) {
+					candidates.add(guard);
+				}
+			}
+		}
+		if (candidates.isEmpty()) {
+			// no usable guard, fall back to the guard selection table
+			return getDisjoint(guardRelaySelection, client, excludeList);
+		}
+		return candidates.get(Generator.getInstance().getPrng().nextInt(
+				candidates.size()));
 	}
 
 	/**
-	 * Adds the given relay to the correct list keyed by the given probability
-	 * in the given map. If there is not a list at the given key, one is
-	 * created.
+	 * Selects the entry guards of the given client from the guard selection
+	 * table, like Tor chooses its persistent set of entry guards. The relay of
+	 * the client is never its guard. Fewer guards are selected if the table
+	 * does not have enough relays.
 	 * 
-	 * @param probability
-	 *            the key in the map
-	 * @param relay
-	 *            the relay to add to the list found at the key
-	 * @param mapList
-	 *            the map containing a list of relays for each probability
-	 */
-	private void putProb(double probability, Relay relay,
-			TreeMap<Double, ArrayList<Relay>> mapList) {
-		if (mapList.get(probability) == null) {
-			ArrayList<Relay> list = new ArrayList<Relay>(4);
-			list.add(relay);
-			mapList.put(probability, list);
-		} else {
-			mapList.get(probability).add(relay);
+	 * @param client
+	 *            the client to select guards for
+	 * @return the distinct guards of the client
+	 */
+	private ArrayList<Relay> selectGuards(Client client) {
+		int count = Configuration.NUM_GUARDS;
+		ArrayList<Relay> guards = new ArrayList<Relay>(count);
+		// the table excludes the first two guards, later ones are redrawn
+		for (int attempts = 0; guards.size() < count
+				&& attempts < count * 10; attempts++) {
+			Relay guard = getDisjoint(guardRelaySelection, client, guards);
+			if (guard == null) {
+				break;
+			}
+			if (!guards.contains(guard)) {
+				guards.add(guard);
+			}
 		}
+		Driver.log.fine(client + " selected entry guards " + guards);
+		return guards;
+	}
+
+	/**
+	 * Convenience method for selecting a path relay.
+	 * 
+	 * @see main.node.Directory#getDisjoint(WeightedTable, Client, ArrayList)
+	 */
+	public Relay pathSelectRelay(Client client, ArrayList<Relay> excludeList) {
+		return getDisjoint(nonexitRelaySelection, client, excludeList);
 	}
 
 	public ArrayList<Node> getNodes() {
@@ -22,6 +22,7 @@ package main.node;
 
 import java.util.ArrayList;
 
+import main.network.Buffer;
 import main.network.Datagram;
 import main.network.Message;
 import main.network.Network;
@@ -51,16 +52,11 @@ public abstract class Node {
 	 * Each node has a scheduler for outgoing data
 	 */
 	private Scheduler scheduler;
-	/**
-	 * The type of this node
-	 * 
-	 * @see main.node.Directory.NodeType
-	 */
-	private NodeType type;
 
 	/**
 	 * Create a node of the given type, using the given scheduler, with upstream
-	 * and downstream bandwidth as specified.
+	 * and downstream bandwidth as specified. The type and bandwidth are kept
+	 * in the NodeRegistry under the id of the node.
 	 * 
 	 * @param type
 	 *            the type of this node
@@ -73,10 +69,24 @@ public abstract class Node {
 	 */
 	public Node(NodeType type, Scheduler scheduler, int upstreamBandwidth,
 			int downstreamBandwidth) {
-		id = Directory.getUniqueId();
+		this(Directory.getUniqueId(), type, scheduler, upstreamBandwidth,
+				downstreamBandwidth);
+	}
+
+	/**
+	 * Create a node under an id reserved earlier by the Directory.
+	 * 
+	 * @param id
+	 *            the unique id of this node
+	 * @see main.node.Node#Node(NodeType, Scheduler, int, int)
+	 */
+	Node(int id, NodeType type, Scheduler scheduler, int upstreamBandwidth,
+			int downstreamBandwidth) {
+		this.id = id;
+		NodeRegistry.getInstance().register(id, type, upstreamBandwidth,
+				downstreamBandwidth);
 		network = new Network(this, upstreamBandwidth, downstreamBandwidth);
 		this.scheduler = scheduler;
-		this.type = type;
 	}
 
 	/**
@@ -93,6 +103,14 @@ public abstract class Node {
 		return id;
 	}
 
+	/**
+	 * @return the type of this node
+	 * @see main.node.Directory.NodeType
+	 */
+	NodeType getType() {
+		return NodeRegistry.getInstance().getType(id);
+	}
+
 	/**
 	 * @return the network
 	 */
@@ -107,6 +125,18 @@ public abstract class Node {
 		return scheduler;
 	}
 
+	/**
+	 * Called when the last datagram was dequeued from the given buffer of this
+	 * node. By default, nothing happens.
+	 * 
+	 * @param buffer
+	 *            the buffer that became empty
+	 * @param data
+	 *            the last datagram dequeued from the buffer
+	 */
+	public void notifyBufferDrained(Buffer buffer, Datagram data) {
+	}
+
 	/**
 	 * Receive the given datagram.
 	 * 
@@ -167,7 +197,7 @@ public abstract class Node {
 	 */
 	@Override
 	public String toString() {
-		return getClass().getSimpleName() + id + "(" + type.toString() + ")"
+		return getClass().getSimpleName() + id + "(" + getType().toString() + ")"
 				+ network.toString();
 	}
 
@@ -0,0 +1,236 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.node;
+
+import java.util.Arrays;
+
+import main.node.Directory.NodeType;
+
+/**
+ * The singleton registry of the per-node scalars, stored in primitive arrays
+ * indexed by node id instead of in the node objects. With million-client
+ * populations, most clients are idle most of the time, and keeping their
+ * state in a few flat arrays lets the heavier objects of a node (circuit
+ * maps, buffers, pools) be created only while the node has active traffic.
+ * The Network, SchedulingRing and Scheduler of a node are not among those:
+ * they are still created with the node.
+ * <p>
+ * Nodes are registered from the constructor of Node, and lazy clients also
+ * when the Directory reserves their slot. Without lazy clients, all of this
+ * happens while the Directory builds the network, before any event runs. With
+ * lazy clients, the ClientStart event creates the client, and so registers it
+ * again, during the run, which is why lazy clients are only enabled with a
+ * single worker. The arrays are not synchronized, so registration must never
+ * race with a worker, and each slot is only written by the events of the node
+ * owning it.
+ * 
+ * @see main.resource.Configuration#LAZY_CLIENTS
+ * 
+ * @author agent
+ */
+public class NodeRegistry {
+
+	/**
+	 * The phase of the application running on a node. Nodes without an
+	 * application are always ACTIVE.
+	 */
+	public enum Phase {
+		PENDING, ACTIVE, THINKING, ;
+	}
+
+	/**
+	 * The singleton instance of the registry
+	 */
+	private static final NodeRegistry REGISTRY = new NodeRegistry();
+
+	/**
+	 * The initial number of slots of each array, grown by doubling
+	 */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * Stored as the type of nodes created without a type
+	 */
+	private static final byte NO_TYPE = -1;
+
+	/**
+	 * The node types, indexed by ordinal
+	 */
+	private static final NodeType[] TYPES = NodeType.values();
+
+	/**
+	 * The phases, indexed by ordinal
+	 */
+	private static final Phase[] PHASES = Phase.values();
+
+	/**
+	 * Retrieves the singleton instance of the node registry.
+	 * 
+	 * @return the instance of this NodeRegistry
+	 */
+	public static NodeRegistry getInstance() {
+		return REGISTRY;
+	}
+
+	/**
+	 * The type of each node, as the ordinal of its NodeType, or NO_TYPE
+	 */
+	private byte[] types;
+	/**
+	 * The upstream bandwidth of each node, in kbps
+	 */
+	private int[] upstreamBandwidths;
+	/**
+	 * The downstream bandwidth of each node, in kbps
+	 */
+	private int[] downstreamBandwidths;
+	/**
+	 * The bytes of requests and replies a node sent or requested that are
+	 * not delivered yet
+	 */
+	private long[] bytesInFlight;
+	/**
+	 * The current ticket balance of each node
+	 */
+	private int[] ticketBalances;
+	/**
+	 * The application phase of each node, as the ordinal of its Phase
+	 */
+	private byte[] phases;
+	/**
+	 * The highest id registered so far
+	 */
+	private int maxId;
+
+	/**
+	 * Creates the arrays with the initial capacity.
+	 */
+	private NodeRegistry() {
+		types = new byte[INITIAL_CAPACITY];
+		upstreamBandwidths = new int[INITIAL_CAPACITY];
+		downstreamBandwidths = new int[INITIAL_CAPACITY];
+		bytesInFlight = new long[INITIAL_CAPACITY];
+		ticketBalances = new int[INITIAL_CAPACITY];
+		phases = new byte[INITIAL_CAPACITY];
+		maxId = 0;
+	}
+
+	/**
+	 * Registers the scalars of a new node under the given id, growing the
+	 * arrays if necessary. The node starts in the ACTIVE phase with nothing
+	 * in flight and no tickets.
+	 * 
+	 * @param id
+	 *            the unique id of the node, as handed out by the Directory
+	 * @param type
+	 *            the type of the node, may be null
+	 * @param upstreamBandwidth
+	 *            the upstream bandwidth of the node, in kbps
+	 * @param downstreamBandwidth
+	 *            the downstream bandwidth of the node, in kbps
+	 */
+	void register(int id, NodeType type, int upstreamBandwidth,
+			int downstreamBandwidth) {
+		if (id >= types.length) {
+			grow(id + 1);
+		}
+		types[id] = (type == null) ? NO_TYPE : (byte) type.ordinal();
+		upstreamBandwidths[id] = upstreamBandwidth;
+		downstreamBandwidths[id] = downstreamBandwidth;
+		bytesInFlight[id] = 0;
+		ticketBalances[id] = 0;
+		phases[id] = (byte) Phase.ACTIVE.ordinal();
+		maxId = Math.max(maxId, id);
+	}
+
+	/**
+	 * Grows every array by doubling until it holds the given number of slots.
+	 */
+	private void grow(int minCapacity) {
+		int capacity = types.length;
+		while (capacity < minCapacity) {
+			capacity *= 2;
+		}
+		types = Arrays.copyOf(types, capacity);
+		upstreamBandwidths = Arrays.copyOf(upstreamBandwidths, capacity);
+		downstreamBandwidths = Arrays.copyOf(downstreamBandwidths, capacity);
+		bytesInFlight = Arrays.copyOf(bytesInFlight, capacity);
+		ticketBalances = Arrays.copyOf(ticketBalances, capacity);
+		phases = Arrays.copyOf(phases, capacity);
+	}
+
+	/**
+	 * @return the highest node id registered so far
+	 */
+	public int getMaxId() {
+		return maxId;
+	}
+
+	NodeType getType(int id) {
+		return (types[id] == NO_TYPE) ? null : TYPES[types[id]];
+	}
+
+	public int getUpstreamBandwidth(int id) {
+		return upstreamBandwidths[id];
+	}
+
+	public int getDownstreamBandwidth(int id) {
+		return downstreamBandwidths[id];
+	}
+
+	public long getBytesInFlight(int id) {
+		return bytesInFlight[id];
+	}
+
+	/**
+	 * Adds the given number of bytes, which may be negative, to the bytes in
+	 * flight of the given node.
+	 */
+	public void addBytesInFlight(int id, long bytes) {
+		bytesInFlight[id] += bytes;
+	}
+
+	public int getTicketBalance(int id) {
+		return ticketBalances[id];
+	}
+
+	public void setTicketBalance(int id, int ticketBalance) {
+		ticketBalances[id] = ticketBalance;
+	}
+
+	public Phase getPhase(int id) {
+		return PHASES[phases[id]];
+	}
+
+	public void setPhase(int id, Phase phase) {
+		phases[id] = (byte) phase.ordinal();
+	}
+
+	/**
+	 * @return the approximate number of bytes held by the arrays of the
+	 *         registry
+	 */
+	public long getFootprint() {
+		// 1 byte type, 2 * 4 bytes bandwidth, 8 bytes in flight, 4 bytes
+		// tickets, 1 byte phase
+		return (long) types.length * 22;
+	}
+}
@@ -20,11 +20,13 @@
  */
 package main.node;
 
+import main.network.Circuit;
 import main.network.Datagram;
-import main.network.HalfDuplexChannel;
+import main.network.Datagram.SendmeType;
 import main.node.Directory.NodeType;
 import main.resource.Configuration;
 import main.scheduling.Scheduler;
+import main.system.Driver;
 
 /**
  * A Tor client that also forwards data for others. Exit relays have the
@@ -41,19 +43,64 @@ public class Relay extends TorNode {
 	 */
 	private boolean isExit;
 
+	/**
+	 * Indicates if this relay may be selected as an entry guard
+	 */
+	private boolean isGuard;
+
+	/**
+	 * Indicates if this relay is fast enough for general circuits
+	 */
+	private boolean isFast;
+
+	/**
+	 * Indicates if this relay is listed by the directory for new circuits
+	 */
+	private boolean isOnline;
+
+	/**
+	 * The bandwidth this relay advertises to the directory, in kbps
+	 */
+	private int advertisedBandwidth;
+
 	private Client localClient;
 
 	/**
-	 * The relay sets its exitNode status using the given isExit flag.
+	 * The relay sets its exitNode status using the given isExit flag. It is a
+	 * fast relay that may be selected as an entry guard.
 	 * 
 	 * @param isExit
 	 *            specifies if this relay is an exit node
 	 * @see main.node.Client for parameter definitions
 	 */
-	public Relay(NodeType type, Scheduler scheduler, boolean isExit,
+	public Relay(NodeType type, Scheduler scheduler,
+			BufferPolicy bufferPolicy, boolean isExit,
 			int contributedBandwidth, Client localClient) {
-		super(type, scheduler, contributedBandwidth, contributedBandwidth);
+		this(type, scheduler, bufferPolicy, isExit, true, true,
+				contributedBandwidth, localClient);
+	}
+
+	/**
+	 * The relay sets its flags as given, as listed for it in a consensus.
+	 * 
+	 * @param isExit
+	 *            specifies if this relay is an exit node
+	 * @param isGuard
+	 *            specifies if this relay may be an entry guard
+	 * @param isFast
+	 *            specifies if this relay may be used in general circuits
+	 * @see main.node.Client for parameter definitions
+	 */
+	public Relay(NodeType type, Scheduler scheduler,
+			BufferPolicy bufferPolicy, boolean isExit, boolean isGuard,
+			boolean isFast, int contributedBandwidth, Client localClient) {
+		super(type, scheduler, bufferPolicy, contributedBandwidth,
+				contributedBandwidth);
 		this.isExit = isExit;
+		this.isGuard = isGuard;
+		this.isFast = isFast;
+		isOnline = true;
+		advertisedBandwidth = contributedBandwidth;
 		this.localClient = localClient;
 		
 		if(localClient != null){
@@ -68,14 +115,14 @@ public class Relay extends TorNode {
 
 	/**
 	 * Forwards a datagram to the next hop by incrementing the cell's current
-	 * channel. If we are using priority, the ticket balance for this relay is
+	 * hop. If we are using priority, the ticket balance for this relay is
 	 * adjusted appropriately.
 	 * 
 	 * @param cell
 	 */
 	private void forward(long time, Datagram cell) {
 		// forward to next hop
-		cell.setChannel(cell.getChannel().getNextChannel());
+		cell.setHop(cell.getHop() + 1);
 		getTorNode().send(time, cell);
 
 		// add to my ticket counter
@@ -93,6 +140,25 @@ public class Relay extends TorNode {
 		}
 	}
 
+	/**
+	 * Counts a request cell the exit delivers to the server in the circuit and
+	 * stream windows, and sends SENDME cells back to the client as needed.
+	 * 
+	 * @param cell
+	 *            the cell delivered to the server
+	 */
+	private void deliver(long time, Datagram cell) {
+		Circuit circuit = cell.getRequest().getCircuit();
+		if (circuit.getUpstreamWindow().delivered()) {
+			sendSendme(time, circuit.createExitSendme(cell.getRequest(),
+					SendmeType.CIRCUIT));
+		}
+		if (cell.getRequest().getStreamWindow().delivered()) {
+			sendSendme(time, circuit.createExitSendme(cell.getRequest(),
+					SendmeType.STREAM));
+		}
+	}
+
 	/**
 	 * @return true if this relay is an exit node, false otherwise
 	 */
@@ -100,27 +166,81 @@ public class Relay extends TorNode {
 		return isExit;
 	}
 
+	/**
+	 * @return true if this relay may be selected as an entry guard
+	 */
+	public boolean isGuard() {
+		return isGuard;
+	}
+
+	/**
+	 * @return true if this relay is fast enough for general circuits
+	 */
+	public boolean isFast() {
+		return isFast;
+	}
+
+	/**
+	 * @return true if the directory may select this relay for new circuits
+	 */
+	public boolean isOnline() {
+		return isOnline;
+	}
+
+	/**
+	 * @param isOnline
+	 *            if the directory may select this relay for new circuits
+	 */
+	public void setOnline(boolean isOnline) {
+		this.isOnline = isOnline;
+	}
+
+	/**
+	 * @return the bandwidth this relay advertises to the directory, in kbps
+	 */
+	public int getAdvertisedBandwidth() {
+		return advertisedBandwidth;
+	}
+
+	/**
+	 * @param advertisedBandwidth
+	 *            the bandwidth this relay advertises to the directory, in kbps
+	 */
+	public void setAdvertisedBandwidth(int advertisedBandwidth) {
+		this.advertisedBandwidth = advertisedBandwidth;
+	}
+
 	/**
 	 * If this relay is the destination the client's code will receive the data.
 	 * If this is the exit node for this datas circuit, we convert to/from cells
 	 * as appropriate. Finally, the forward method is called to handle
 	 * forwarding.
+	 * <p>
+	 * If flow control is enabled, the exit counts cells it delivers to the
+	 * server and consumes SENDME cells from the client, which lets the server
+	 * provide more of its replies.
 	 * 
 	 * @see main.node.Client#receive(main.network.Datagram)
 	 */
 	@Override
 	public void receive(long time, Datagram data) {
-		HalfDuplexChannel receivingChannel = data.getChannel();
-
 		if (isExit) {
 			// I am an exit node
 			Server server = data.getRequest().getServer();
-			if (receivingChannel.getSender() == server) { // isFromServer
+			if (data.getHop() == Circuit.SERVER_HOP) { // isFromServer
 				// I need to convert regular data into cells
 				data.setCell(true);
-			} else if (receivingChannel.getNextChannel().getReceiver() == server) { // isForServer
+			} else if (data.getHop() == Circuit.TO_EXIT_HOP) { // isForServer
+				if (data.isSendme()) {
+					// the SENDME ends here
+					receiveSendme(time, data, server);
+					return;
+				}
 				// I need to convert cells to regular data
 				data.setCell(false);
+				if (Configuration.NETWORK_FLOW_CONTROL) {
+					deliver(time, data);
+				}
 			} else {
 				// I am serving as a regular relay
 			}
@@ -128,6 +248,40 @@ public class Relay extends TorNode {
 		forward(time, data);
 	}
 
+	/**
+	 * Opens the window acknowledged by the given SENDME cell from the client,
+	 * and lets the server provide more reply data for the circuit.
+	 * 
+	 * @param sendme
+	 *            the SENDME cell from the client
+	 * @param server
+	 *            the server of the circuit
+	 */
+	private void receiveSendme(long time, Datagram sendme, Server server) {
+		Driver.getInstance().decrementDataCount(
+				sendme.getMessage().getPriority());
+		Circuit circuit = sendme.getRequest().getCircuit();
+		if (sendme.getSendme() == SendmeType.CIRCUIT) {
+			circuit.getDownstreamWindow().receivedSendme();
+		} else {
+			sendme.getReply().getStreamWindow().receivedSendme();
+		}
+		server.packageReplies(time, circuit);
+		circuit.sendmeArrived(time);
+	}
+
+	/**
+	 * Sends the given SENDME cell back towards the client.
+	 * 
+	 * @param sendme
+	 *            the SENDME cell created by the circuit
+	 */
+	private void sendSendme(long time, Datagram sendme) {
+		Driver.getInstance().incrementDataCount(
+				sendme.getMessage().getPriority());
+		getTorNode().send(time, sendme);
+	}
+
 	public Client getLocalClient() {
 		return localClient;
 	}
@@ -21,12 +21,14 @@
 package main.node;
 
 import main.network.Buffer;
+import main.network.Circuit;
 import main.network.Datagram;
-import main.network.HalfDuplexChannel;
 import main.network.Reply;
 import main.network.Request;
+import main.network.RingBuffer;
 import main.network.SchedulingRing;
 import main.node.Directory.NodeType;
+import main.resource.Configuration;
 import main.scheduling.Scheduler;
 import main.scheduling.Scheduler.Priority;
 import main.system.Driver;
@@ -54,7 +56,7 @@ public class Server extends Node {
 			int downstreamBandwidth) {
 		super(type, scheduler, upstreamBandwidth, downstreamBandwidth);
 		bufferRing = new SchedulingRing();
-		Buffer normalBuffer = new Buffer(Priority.NORMAL, this, bufferRing);
+		Buffer normalBuffer = new RingBuffer(Priority.NORMAL, this, bufferRing);
 		bufferRing.add(normalBuffer);
 	}
 
@@ -64,6 +66,25 @@ public class Server extends Node {
 		return bufferRing;
 	}
 
+	/**
+	 * Provides as much data of the replies queued in the given circuit as the
+	 * flow control windows of the exit allow, and notifies the network.
+	 * 
+	 * @param circuit
+	 *            the circuit with queued replies
+	 */
+	public void packageReplies(long time, Circuit circuit) {
+		Datagram d = circuit.packageReplyData();
+		while (d != null) {
+			Driver.getInstance().incrementDataCount(d.getMessage().getPriority());
+			bufferRing.current().enqueue(time, d);
+			d = circuit.packageReplyData();
+		}
+
+		// notify the network that data is ready to send
+		getNetwork().notifyReadyToSend(time);
+	}
+
 	/**
 	 * Receives data from Tor circuits. After an entire request is received, the
 	 * last data is used to send a reply.
@@ -89,7 +110,9 @@ public class Server extends Node {
 
 	/**
 	 * Given a datagram, extract the request and use it to create and send a
-	 * reply back through the circuit.
+	 * reply back through the circuit. If flow control is enabled, the reply is
+	 * queued in the circuit and only provided as the exit is able to package
+	 * it.
 	 */
 	@Override
 	protected void send(long time, Datagram data) {
@@ -97,10 +120,17 @@ public class Server extends Node {
 		Driver.log.fine("Server " + getId() + " sending reply of "
 				+ reply.getSize() + " bytes");
 
+		if (Configuration.NETWORK_FLOW_CONTROL) {
+			Driver.getInstance().incrementMessageCount(reply.getPriority());
+			reply.getCircuit().addUnpackagedReply(reply);
+			packageReplies(time, reply.getCircuit());
+			return;
+		}
+
 		// forward the specified sized reply
-		HalfDuplexChannel nextChannel = data.getChannel().getNextChannel();
+		int nextHop = data.getHop() + 1;
 		for (Datagram d : splitMessage(reply, reply.getRequest(), reply, false)) {
-			d.setChannel(nextChannel);
+			d.setHop(nextHop);
 			Driver.getInstance().incrementDataCount(d.getMessage().getPriority());
 			bufferRing.current().enqueue(time, d);
 		}
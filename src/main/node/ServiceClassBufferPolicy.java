@@ -0,0 +1,87 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.node;
+
+import main.network.Buffer;
+import main.network.BufferFactory;
+import main.network.Datagram;
+import main.scheduling.Scheduler.Priority;
+
+/**
+ * Aggregates the traffic of a node into one buffer for each priority class.
+ * 
+ * @see main.resource.Configuration#NETWORK_PRIORITY
+ * 
+ * @author agent
+ */
+public class ServiceClassBufferPolicy extends BufferPolicy {
+
+	/**
+	 * @param bufferFactory
+	 *            creates the service class buffers
+	 */
+	public ServiceClassBufferPolicy(BufferFactory bufferFactory) {
+		super(bufferFactory);
+	}
+
+	@Override
+	void createBuffers(TorNode node) {
+		node.normal = bufferFactory.createBuffer(Buffer.nextId(),
+				Priority.NORMAL, node, node.bufferRing, false);
+		node.bufferRing.add(node.normal);
+		node.lowLatency = bufferFactory.createBuffer(Buffer.nextId(),
+				Priority.LOW_LATENCY, node, node.bufferRing, false);
+		node.bufferRing.add(node.lowLatency);
+		node.highThroughput = bufferFactory.createBuffer(Buffer.nextId(),
+				Priority.HIGH_THROUGHPUT, node, node.bufferRing, false);
+		node.bufferRing.add(node.highThroughput);
+	}
+
+	@Override
+	void releaseBuffers(TorNode node) {
+		node.bufferRing.remove(node.normal);
+		node.bufferRing.remove(node.lowLatency);
+		node.bufferRing.remove(node.highThroughput);
+		node.normal = null;
+		node.lowLatency = null;
+		node.highThroughput = null;
+	}
+
+	@Override
+	void releaseStorage(TorNode node) {
+		node.normal.releaseStorage();
+		node.lowLatency.releaseStorage();
+		node.highThroughput.releaseStorage();
+	}
+
+	@Override
+	Buffer getBuffer(TorNode node, Datagram cell) {
+		switch (cell.getMessage().getPriority()) {
+		case LOW_LATENCY:
+			return node.lowLatency;
+		case HIGH_THROUGHPUT:
+			return node.highThroughput;
+		default:
+			return node.normal;
+		}
+	}
+
+}
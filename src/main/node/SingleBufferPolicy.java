@@ -0,0 +1,66 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.node;
+
+import main.network.Buffer;
+import main.network.BufferFactory;
+import main.network.Datagram;
+import main.scheduling.Scheduler.Priority;
+
+/**
+ * Aggregates all traffic of a node into a single buffer.
+ * 
+ * @author agent
+ */
+public class SingleBufferPolicy extends BufferPolicy {
+
+	/**
+	 * @param bufferFactory
+	 *            creates the single buffer
+	 */
+	public SingleBufferPolicy(BufferFactory bufferFactory) {
+		super(bufferFactory);
+	}
+
+	@Override
+	void createBuffers(TorNode node) {
+		node.normal = bufferFactory.createBuffer(Buffer.nextId(),
+				Priority.NORMAL, node, node.bufferRing, false);
+		node.bufferRing.add(node.normal);
+	}
+
+	@Override
+	void releaseBuffers(TorNode node) {
+		node.bufferRing.remove(node.normal);
+		node.normal = null;
+	}
+
+	@Override
+	void releaseStorage(TorNode node) {
+		node.normal.releaseStorage();
+	}
+
+	@Override
+	Buffer getBuffer(TorNode node, Datagram cell) {
+		return node.normal;
+	}
+
+}
@@ -23,29 +23,35 @@ package main.node;
 import java.util.HashMap;
 
 import main.network.Buffer;
-import main.network.Request;
 import main.network.SchedulingRing;
 import main.network.Circuit;
 import main.network.Datagram;
 import main.node.Directory.NodeType;
-import main.resource.Configuration;
 import main.scheduling.Scheduler;
-import main.scheduling.Scheduler.Priority;
-import main.scheduling.Scheduler.SchedulingAlgorithm;
-import main.system.Driver;
 
 /**
  * A base class for TorNodes. This class contains the buffers that hold data
- * that is ready to be scheduled by the node and sent out on the network. This
- * class also determines the scheduling ratio of forwarded to sourced data. Each
- * Tor node can handle two scheduling policies.
+ * that is ready to be scheduled by the node and sent out on the network, and
+ * the scheduling ring its scheduler chooses from.
  * <p>
- * In RoundRound or ExponentialWeightedMovingAverage, a buffer is created for
- * each circuit and stored in a map keyed by the buffer so we know where to
- * enqueue outgoing data.
- * <p>
- * In WaitingTimePriority, we create 6 buffers, one for each priority level for
- * forwarded and sourced data, and aggregate all traffic into those.
+ * The SchedulerFactory of the configured algorithm creates a scheduler for
+ * each node and a single BufferPolicy shared by all nodes, which decides the
+ * buffers of a node and the buffer each cell is enqueued in:
+ * <ul>
+ * <li>With a buffer per circuit, buffers are created lazily when the first
+ * cell of a circuit is enqueued and kept in a map keyed by the circuit, which
+ * is itself dropped while the node holds no buffers. Buffers are dropped when
+ * their circuit is torn down, or as soon as they drain if they keep no
+ * scheduler state while empty.</li>
+ * <li>With service classes, the node has 3 buffers, one for each priority
+ * level, and aggregates all traffic into those.</li>
+ * <li>Otherwise all traffic goes to a single buffer.</li>
+ * </ul>
+ * The buffers are created by the BufferFactory of the algorithm, so they only
+ * hold the state of its scheduler.
+ * 
+ * @see main.node.BufferPolicy
+ * @see main.scheduling.SchedulerFactory
  * 
  * @author Rob Jansen
  */
@@ -56,65 +62,62 @@ public abstract class TorNode extends Node {
 	 */
 	SchedulingRing bufferRing;
 	/**
-	 * Maps each circuit for which we forward data to a buffer. Only used in
-	 * scheduling policies that require separation of per-flow data (i.e.
-	 * RoundRobin)
+	 * Maps each circuit for which we forward data to a buffer. Only used by
+	 * the circuit buffer policy, and null while the node holds no circuit
+	 * buffers.
 	 */
 	HashMap<Circuit, Buffer> circuitBufferMap;
 	/**
-	 * Buffer holding forwarded HighThroughput priority data. Only used with WTP
-	 * scheduling.
+	 * Buffer holding forwarded HighThroughput priority data. Only used by the
+	 * service class buffer policy.
 	 */
 	Buffer highThroughput;
 	/**
-	 * Buffer holding forwarded LowLatency priority data. Only used with WTP
-	 * scheduling.
+	 * Buffer holding forwarded LowLatency priority data. Only used by the
+	 * service class buffer policy.
 	 */
 	Buffer lowLatency;
 	/**
-	 * Buffer holding forwarded Normal priority data. Only used with WTP
-	 * scheduling.
+	 * Buffer holding forwarded Normal priority data. Used by the service class
+	 * buffer policy, and as the only buffer of the single buffer policy.
 	 */
 	Buffer normal;
+	/**
+	 * Decides the buffers of this node and where cells are enqueued
+	 */
+	private BufferPolicy bufferPolicy;
 
 	/**
-	 * Creates the TorNode and creates the SchedulingRings and buffers needed
-	 * based on the scheduling policy this node will implement. Sets
-	 * ticketBalance to 0.
+	 * Creates the TorNode with its SchedulingRing and the buffers the buffer
+	 * policy creates before any circuit is built.
 	 * 
+	 * @param bufferPolicy
+	 *            the buffer policy of the scheduling algorithm
 	 * @see main.node.TorNode
 	 * @see main.node.Node for parameter definitions
 	 */
-	public TorNode(NodeType type, Scheduler scheduler, int upstreamBandwidth,
+	public TorNode(NodeType type, Scheduler scheduler,
+			BufferPolicy bufferPolicy, int upstreamBandwidth,
 			int downstreamBandwidth) {
-		super(type, scheduler, upstreamBandwidth, downstreamBandwidth);
+		this(Directory.getUniqueId(), type, scheduler, bufferPolicy,
+				upstreamBandwidth, downstreamBandwidth);
+	}
+
+	/**
+	 * Creates the TorNode under an id reserved earlier by the Directory.
+	 * 
+	 * @see main.node.TorNode#TorNode(NodeType, Scheduler, BufferPolicy, int,
+	 *      int)
+	 */
+	TorNode(int id, NodeType type, Scheduler scheduler,
+			BufferPolicy bufferPolicy, int upstreamBandwidth,
+			int downstreamBandwidth) {
+		super(id, type, scheduler, upstreamBandwidth, downstreamBandwidth);
+		this.bufferPolicy = bufferPolicy;
 
 		// everyone has a buffer
 		bufferRing = new SchedulingRing();
-
-		// only separate flows for round robin scheduler
-		// then each buffer ring will contain a buffer for each circuit
-		if (Configuration.SCHEDULER == SchedulingAlgorithm.ROUND_ROBIN
-				|| Configuration.SCHEDULER == SchedulingAlgorithm.EXPONENTIAL_WEIGHTED_MOVING_AVERAGE
-				|| Configuration.SCHEDULER == SchedulingAlgorithm.WEIGHTED_FAIR_QUEUEING
-				|| (Configuration.SCHEDULER == SchedulingAlgorithm.HYBRID_PROPORTIONAL_DELAY && !Configuration.NETWORK_PRIORITY)) {
-			// RR creates buffers as circuits are created
-			circuitBufferMap = new HashMap<Circuit, Buffer>();
-		} else if (Configuration.SCHEDULER == SchedulingAlgorithm.HYBRID_PROPORTIONAL_DELAY) {
-			// WTP creates service classes now
-			normal = new Buffer(Priority.NORMAL, this, bufferRing);
-			bufferRing.add(normal);
-			lowLatency = new Buffer(Priority.LOW_LATENCY, this, bufferRing);
-			bufferRing.add(lowLatency);
-			highThroughput = new Buffer(Priority.HIGH_THROUGHPUT, this,
-					bufferRing);
-			bufferRing.add(highThroughput);
-		} else if (Configuration.SCHEDULER == SchedulingAlgorithm.FIRST_COME_FIRST_SERVED) {
-			normal = new Buffer(Priority.NORMAL, this, bufferRing);
-			bufferRing.add(normal);
-		} else {
-			Driver.log.severe("Unimplemented scheduler chosen");
-		}
+		bufferPolicy.createBuffers(this);
 	}
 
 	/**
@@ -132,6 +135,37 @@ public abstract class TorNode extends Node {
 		return bufferRing;
 	}
 
+	/**
+	 * @return true if empty buffers of this node keep no scheduler state, so
+	 *         they can be released and created again later
+	 */
+	boolean canReleaseBuffers() {
+		return !bufferPolicy.getBufferFactory().keepsStateWhileEmpty();
+	}
+
+	/**
+	 * Drops the buffers of this node, which must all be empty, until
+	 * restoreBuffers is called.
+	 */
+	void releaseBuffers() {
+		bufferPolicy.releaseBuffers(this);
+	}
+
+	/**
+	 * Releases the storage of the buffers of this node, which must all be
+	 * empty, keeping their scheduler state.
+	 */
+	void releaseStorage() {
+		bufferPolicy.releaseStorage(this);
+	}
+
+	/**
+	 * Creates the buffers of this node again after they were released.
+	 */
+	void restoreBuffers() {
+		bufferPolicy.createBuffers(this);
+	}
+
 	/**
 	 * @return this node
 	 */
@@ -140,62 +174,33 @@ public abstract class TorNode extends Node {
 	}
 
 	/**
-	 * If RoundRobin scheduling is used, we need to create new buffers for the
-	 * new circuit, and store them in our map for access when enqueueing data.
-	 * <p>
-	 * The buffers are added to the scheduling ring unless the
-	 * Configuration.NETWORK_DYNAMIC_RR option is set, in which case buffers
-	 * dynamically add and remove themselves to the ring depending on their data
-	 * contents.
+	 * If flows are separated, the buffer policy creates a new buffer for the
+	 * new circuit and stores it in our map for access when enqueueing data.
 	 * 
 	 * @param circuit
 	 */
 	public void notifyCircuitBuilt(Circuit circuit) {
-		// we only care if we want to separate flows, ie RR
-		if (Configuration.SCHEDULER == SchedulingAlgorithm.ROUND_ROBIN) {
-			// only add buffers dynamically if dynamic flag is true
-			createBufferForCircuit(circuit,
-					Configuration.NETWORK_DYNAMIC_BUFFERS);
-		} else if (Configuration.SCHEDULER == SchedulingAlgorithm.EXPONENTIAL_WEIGHTED_MOVING_AVERAGE) {
-			// only add buffers dynamically if dynamic flag is true
-			createBufferForCircuit(circuit,
-					Configuration.NETWORK_DYNAMIC_BUFFERS);
-		} else if (Configuration.SCHEDULER == SchedulingAlgorithm.HYBRID_PROPORTIONAL_DELAY
-				&& !Configuration.NETWORK_PRIORITY) {
-			// only add buffers dynamically if dynamic flag is true
-			// each circuit is its own service class
-			createBufferForCircuit(circuit,
-					Configuration.NETWORK_DYNAMIC_BUFFERS);
-		} else if (Configuration.SCHEDULER == SchedulingAlgorithm.WEIGHTED_FAIR_QUEUEING) {
-			// never add buffers dynamically for scheduling purposes
-			createBufferForCircuit(circuit, false);
-		}
+		bufferPolicy.notifyCircuitBuilt(this, circuit);
 	}
 
-	private void createBufferForCircuit(Circuit circuit, boolean isDynamic) {
-		Buffer buffer = new Buffer(Priority.NORMAL, this, bufferRing);
-		// dynamic means the buffer will be added when it gets data
-		if (!isDynamic) {
-			bufferRing.add(buffer);
-		}
-		circuitBufferMap.put(circuit, buffer);
+	/**
+	 * A circuit was toredown, so if flows are separated the buffer policy
+	 * removes the associated buffer from our stored map and SchedulingRing.
+	 * 
+	 * @param circuit
+	 */
+	public void notifyCircuitTordown(long time, Circuit circuit) {
+		bufferPolicy.notifyCircuitTordown(time, this, circuit);
 	}
 
 	/**
-	 * A circuit was toredown, so if RoundRobin scheduling is used we can remove
-	 * the associated buffers from our stored map and SchedulingRing.
+	 * The buffer policy may drop a drained circuit buffer.
 	 * 
-	 * @param circuit
+	 * @see main.node.Node#notifyBufferDrained(Buffer, Datagram)
 	 */
-	public void notifyCircuitTordown(Circuit circuit) {
-		// we only care if we want to separate flows, ie RR
-		if (Configuration.SCHEDULER == SchedulingAlgorithm.ROUND_ROBIN
-				|| Configuration.SCHEDULER == SchedulingAlgorithm.EXPONENTIAL_WEIGHTED_MOVING_AVERAGE
-				|| Configuration.SCHEDULER == SchedulingAlgorithm.WEIGHTED_FAIR_QUEUEING
-				|| (Configuration.SCHEDULER == SchedulingAlgorithm.HYBRID_PROPORTIONAL_DELAY
-				&& !Configuration.NETWORK_PRIORITY)) {
-			bufferRing.remove(circuitBufferMap.remove(circuit));
-		}
+	@Override
+	public void notifyBufferDrained(Buffer buffer, Datagram data) {
+		bufferPolicy.notifyBufferDrained(this, buffer, data);
 	}
 
 	@Override
@@ -212,34 +217,7 @@ public abstract class TorNode extends Node {
 		// put in correct buffer, so we can proportionately allocate bandwidth
 		// to forwarded/sourced data.
 		// also, add to correct buffer based on priority
-
-		if (Configuration.SCHEDULER == SchedulingAlgorithm.HYBRID_PROPORTIONAL_DELAY && Configuration.NETWORK_PRIORITY) {
-			// we aggregate traffic into 3 classes
-			switch (cell.getMessage().getPriority()) {
-			case NORMAL:
-				normal.enqueue(time, cell);
-				break;
-			case LOW_LATENCY:
-				lowLatency.enqueue(time, cell);
-				break;
-			case HIGH_THROUGHPUT:
-				highThroughput.enqueue(time, cell);
-				break;
-			}
-		} else if (Configuration.SCHEDULER == SchedulingAlgorithm.ROUND_ROBIN
-				|| Configuration.SCHEDULER == SchedulingAlgorithm.EXPONENTIAL_WEIGHTED_MOVING_AVERAGE
-				|| Configuration.SCHEDULER == SchedulingAlgorithm.WEIGHTED_FAIR_QUEUEING
-				|| (Configuration.SCHEDULER == SchedulingAlgorithm.HYBRID_PROPORTIONAL_DELAY && !Configuration.NETWORK_PRIORITY)) {
-			// we care about per-circuit traffic
-			Request r = cell.getRequest();
-			Circuit c = r.getCircuit();
-			Buffer b = circuitBufferMap.get(c);
-			b.enqueue(time, cell);
-		} else if (Configuration.SCHEDULER == SchedulingAlgorithm.FIRST_COME_FIRST_SERVED) {
-			normal.enqueue(time, cell);
-		} else {
-			Driver.log.severe("Unimplemented scheduler chosen");
-		}
+		bufferPolicy.getBuffer(this, cell).enqueue(time, cell);
 
 		// tell the network we have data to schedule
 		getNetwork().notifyReadyToSend(time);
@@ -26,6 +26,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.Properties;
 
+import main.network.Datagram;
 import main.scheduling.Scheduler.SchedulingAlgorithm;
 import main.system.Driver;
 
@@ -83,6 +84,21 @@ public class Configuration {
 	 * printed to a debug log file.
 	 */
 	public static boolean DEBUG;
+	/**
+	 * Setting for the filename or resource name of a Tor network consensus.
+	 * If set, the normal and exit relays are created from the running and
+	 * valid relays in the consensus, with their flags and bandwidths, instead
+	 * of the configured numbers of normal and exit relays. Empty to not use a
+	 * consensus.
+	 * 
+	 * @see main.resource.Consensus
+	 */
+	public static String CONSENSUS;
+	/**
+	 * Setting for caching a parsed consensus file in a binary file next to it,
+	 * which is read instead of the consensus while the consensus is unchanged.
+	 */
+	public static boolean CONSENSUS_CACHE;
 	/**
 	 * Setting for the experiment runtime, in minutes.
 	 */
@@ -134,7 +150,8 @@ public class Configuration {
 	 * be used during scheduling. The HPD scheduler will create 3 service
 	 * classes in priority mode and use tickets when sending data. If priority
 	 * mode is false, HPD scheduler will create a service class for each
-	 * circuit.
+	 * circuit. The WFQ scheduler weighs datagrams with the inverse of the delay
+	 * differentiation parameter of their class in priority mode.
 	 */
 	public static boolean NETWORK_PRIORITY;
 	/**
@@ -152,6 +169,67 @@ public class Configuration {
 	 * Setting for the scheduling algorithm for all relays to use.
 	 */
 	public static SchedulingAlgorithm SCHEDULER;
+	/**
+	 * Setting for the name of the scheduling algorithm for all relays to use,
+	 * under which its scheduler factory is registered.
+	 * 
+	 * @see main.scheduling.SchedulerFactory
+	 */
+	public static String SCHEDULER_NAME;
+	/**
+	 * Setting for the number of seconds between changes of the relay
+	 * population. Each change lets a relay join or leave the network or
+	 * advertise a new bandwidth, and updates the relay selection tables.
+	 * Values below 1 keep the population fixed. Churn requires a single
+	 * worker, since the selection tables are shared by all nodes.
+	 * 
+	 * @see main.node.Directory#churnRelays(long)
+	 */
+	public static int CHURN_INTERVAL;
+	/**
+	 * Setting for creating clients when their application starts instead of
+	 * when the simulation starts. Until then, a client only has its slot in
+	 * the NodeRegistry and its pending start event. Clients running on relays
+	 * are always created with their relay. Lazy clients require a single
+	 * worker, since the list of nodes grows during the run.
+	 * 
+	 * @see main.node.Directory#startClient(long, int, main.scheduling.SchedulerFactory)
+	 */
+	public static boolean LAZY_CLIENTS;
+	/**
+	 * Setting for compacting web clients that are idle during their think
+	 * time. A hibernating client drops its buffers, scheduler indexes and
+	 * network queues, and creates them again on its next send or receive, so
+	 * memory follows the number of active clients rather than the population.
+	 * Buffers that keep scheduler state while empty, as with HPD and EWMA, are
+	 * kept and only drop their storage.
+	 * 
+	 * @see main.node.Client#hibernate(long)
+	 */
+	public static boolean HIBERNATE_CLIENTS;
+	/**
+	 * Setting for the number of seconds a zombie circuit may wait for its
+	 * outstanding data before it is reclaimed by force. A reclaimed circuit
+	 * releases its buffers, and its data still in the network is dropped
+	 * when it arrives at the next node. Values below 1 let zombie circuits
+	 * wait forever. This setting is ignored if NUM_WORKERS > 1.
+	 * 
+	 * @see main.network.Circuit#reclaim(long)
+	 */
+	public static int MAX_ZOMBIE_LIFETIME;
+	/**
+	 * Setting for the number of entry guards each client keeps for the whole
+	 * run. The first relay of each circuit of a client is one of its guards.
+	 * Values below 1 select the first relay of each circuit from all relays.
+	 */
+	public static int NUM_GUARDS;
+	/**
+	 * Setting for the number of preemptive circuits each client keeps built
+	 * before it needs them. A preemptive circuit is extended to a server when
+	 * the client first sends to that server, and the pool is refilled after
+	 * the request is sent. Values below 1 build circuits when they are needed.
+	 */
+	public static int PREEMPTIVE_CIRCUITS;
 	/**
 	 * Setting for the prng seed.
 	 */
@@ -225,18 +303,202 @@ public class Configuration {
 	public static double HPD_FRACTION;
 
 	/**
-	 * Used as the interval in weighted fair queueing to recompute weights, in
-	 * milliseconds.
+	 * Used in the deficit round robin scheduler as the number of bytes a
+	 * buffer may send per round. Values below the cell length are raised to
+	 * it, so every buffer sends at least one datagram per round.
+	 */
+	public static int DRR_QUANTUM;
+
+	/**
+	 * Setting for the indexed hybrid proportional delay scheduler. Buffers are
+	 * kept ordered by head arrival time and by average delay, so a scheduling
+	 * decision only visits a bounded number of candidates instead of every
+	 * buffer. This setting is ignored if NETWORK_PRIORITY is set, since the
+	 * service classes then have different delay differentiation parameters.
+	 * 
+	 * @see main.scheduling.IndexedHybridProportionalDelayScheduler
+	 */
+	public static boolean HPD_INDEXED;
+
+	/**
+	 * Setting for the scheduling quantum, the maximum number of datagrams a
+	 * network writes per scheduling decision. The scheduler is called for
+	 * each datagram, but the datagrams are written back-to-back and only the
+	 * last one creates a NetworkSend event, much like Tor's KIST scheduler
+	 * writes to the socket until its budget is used up. Values below 1 are
+	 * raised to 1, which sends single datagrams. This setting is ignored if
+	 * NETWORK_CELL_TRAINS is set.
+	 * 
+	 * @see main.network.Network#notifyReadyToSend(long)
+	 */
+	public static int SCHEDULING_QUANTUM;
+
+	/**
+	 * Setting for the socket budget of a scheduling quantum, in milliseconds.
+	 * A quantum stops once it wrote the bytes the upstream bandwidth transfers
+	 * in this time. A value of 0 disables the budget, so only
+	 * SCHEDULING_QUANTUM limits the quantum.
+	 */
+	public static int SOCKET_BUDGET_INTERVAL;
+
+	/**
+	 * Setting for cell train mode. When a network's scheduling ring holds data
+	 * in a single buffer only, consecutive datagrams from that buffer going to
+	 * the same receiver are transmitted as one aggregate train instead of one
+	 * send and receive event per datagram. The train falls back to single
+	 * datagrams as soon as another buffer becomes active. This setting is
+	 * ignored if NUM_WORKERS > 1 or CELL_TRAIN_LENGTH < 2.
+	 * 
+	 * @see main.network.CellTrain
+	 */
+	public static boolean NETWORK_CELL_TRAINS;
+
+	/**
+	 * Setting for the maximum number of datagrams carried in a single cell
+	 * train.
+	 */
+	public static int CELL_TRAIN_LENGTH;
+
+	/**
+	 * Setting for hop transfer mode. The sender computes the delivery of each
+	 * datagram at the next hop when sending it, so every hop takes a
+	 * NetworkSend and a NodeReceive event instead of an additional
+	 * NetworkReceive event. The NetworkSend event is skipped while no other
+	 * data is waiting to be sent. This setting is ignored if NUM_WORKERS > 1
+	 * or NETWORK_CELL_TRAINS is set.
+	 * 
+	 * @see main.network.Network#receiveAhead(long, main.network.Datagram,
+	 *      long)
+	 */
+	public static boolean NETWORK_HOP_TRANSFERS;
+
+	/**
+	 * Setting for off-heap buffers. Buffers store compact cell records in
+	 * direct memory instead of datagram objects, and rebuild datagrams when
+	 * they are dequeued.
+	 * 
+	 * @see main.network.OffHeapDatagramQueue
+	 */
+	public static boolean NETWORK_OFF_HEAP_BUFFERS;
+
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#NETWORK_OFF_HEAP_BUFFERS
+	 */
+	private static final String CONFIG_NETWORK_OFF_HEAP_BUFFERS = "network.off_heap_buffers";
+
+	/**
+	 * Setting for SENDME flow control. Clients and exits may only package as
+	 * many cells into a circuit and stream as the respective windows allow,
+	 * and the delivering edge acknowledges delivered cells with SENDME cells.
+	 * This bounds the data any node holds for a circuit. This setting is
+	 * ignored if NUM_WORKERS > 1.
+	 * 
+	 * @see main.network.FlowControlWindow
+	 */
+	public static boolean NETWORK_FLOW_CONTROL;
+
+	/**
+	 * Setting for the initial circuit level flow control window, in cells.
+	 */
+	public static int CIRCUIT_WINDOW;
+
+	/**
+	 * Setting for the number of cells acknowledged by a circuit level SENDME.
+	 */
+	public static int CIRCUIT_SENDME_INCREMENT;
+
+	/**
+	 * Setting for the initial stream level flow control window, in cells.
 	 */
-	public static double WFQ_INTERVAL;
+	public static int STREAM_WINDOW;
+
+	/**
+	 * Setting for the number of cells acknowledged by a stream level SENDME.
+	 */
+	public static int STREAM_SENDME_INCREMENT;
+
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#NETWORK_FLOW_CONTROL
+	 */
+	private static final String CONFIG_NETWORK_FLOW_CONTROL = "network.flow_control";
 
 	/**
 	 * Property file key. This string must appear in the configuration file to
 	 * change the setting.
 	 * 
-	 * @see main.resource.Configuration#WFQ_INTERVAL
+	 * @see main.resource.Configuration#CIRCUIT_WINDOW
 	 */
-	private static final String CONFIG_WFQ_INTERVAL = "network.wfq_interval_ms";
+	private static final String CONFIG_CIRCUIT_WINDOW = "network.circuit_window";
+
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#CIRCUIT_SENDME_INCREMENT
+	 */
+	private static final String CONFIG_CIRCUIT_SENDME_INCREMENT = "network.circuit_sendme_increment";
+
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#STREAM_WINDOW
+	 */
+	private static final String CONFIG_STREAM_WINDOW = "network.stream_window";
+
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#STREAM_SENDME_INCREMENT
+	 */
+	private static final String CONFIG_STREAM_SENDME_INCREMENT = "network.stream_sendme_increment";
+
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#NETWORK_CELL_TRAINS
+	 */
+	private static final String CONFIG_NETWORK_CELL_TRAINS = "network.cell_trains";
+
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#CELL_TRAIN_LENGTH
+	 */
+	private static final String CONFIG_CELL_TRAIN_LENGTH = "network.cell_train_length";
+
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#NETWORK_HOP_TRANSFERS
+	 */
+	private static final String CONFIG_NETWORK_HOP_TRANSFERS = "network.hop_transfers";
+
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#SCHEDULING_QUANTUM
+	 */
+	private static final String CONFIG_SCHEDULING_QUANTUM = "network.scheduling_quantum_cells";
+
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#SOCKET_BUDGET_INTERVAL
+	 */
+	private static final String CONFIG_SOCKET_BUDGET_INTERVAL = "network.socket_budget_ms";
 
 	/**
 	 * Property file key. This string must appear in the configuration file to
@@ -253,6 +515,22 @@ public class Configuration {
 	 * @see main.resource.Configuration#HPD_FRACTION
 	 */
 	private static final String CONFIG_HPD_FRACTION = "network.hpd_fraction";
+
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#DRR_QUANTUM
+	 */
+	private static final String CONFIG_DRR_QUANTUM = "network.drr_quantum_bytes";
+
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#HPD_INDEXED
+	 */
+	private static final String CONFIG_HPD_INDEXED = "network.hpd_indexed";
 	/**
 	 * Property file key. This string must appear in the configuration file to
 	 * change the setting.
@@ -346,6 +624,62 @@ public class Configuration {
 	 * @see main.resource.Configuration#EXIT_RELAYS
 	 */
 	private static final String CONFIG_EXIT_RELAYS = "nodes.num_exit_relays";
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#CONSENSUS
+	 */
+	private static final String CONFIG_CONSENSUS = "nodes.consensus";
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#CONSENSUS_CACHE
+	 */
+	private static final String CONFIG_CONSENSUS_CACHE = "nodes.consensus_cache";
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#PREEMPTIVE_CIRCUITS
+	 */
+	private static final String CONFIG_PREEMPTIVE_CIRCUITS = "nodes.preemptive_circuits";
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#NUM_GUARDS
+	 */
+	private static final String CONFIG_NUM_GUARDS = "nodes.num_guards";
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#CHURN_INTERVAL
+	 */
+	private static final String CONFIG_CHURN_INTERVAL = "nodes.churn_interval_seconds";
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#LAZY_CLIENTS
+	 */
+	private static final String CONFIG_LAZY_CLIENTS = "nodes.lazy_clients";
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#HIBERNATE_CLIENTS
+	 */
+	private static final String CONFIG_HIBERNATE_CLIENTS = "nodes.hibernate_clients";
+	/**
+	 * Property file key. This string must appear in the configuration file to
+	 * change the setting.
+	 * 
+	 * @see main.resource.Configuration#MAX_ZOMBIE_LIFETIME
+	 */
+	private static final String CONFIG_MAX_ZOMBIE_LIFETIME = "network.max_zombie_lifetime_seconds";
 	/**
 	 * Property file key. This string must appear in the configuration file to
 	 * change the setting.
@@ -414,6 +748,7 @@ public class Configuration {
 	 * change the setting.
 	 * 
 	 * @see main.resource.Configuration#SCHEDULER
+	 * @see main.resource.Configuration#SCHEDULER_NAME
 	 */
 	private static final String CONFIG_SCHEDULER = "network.scheduler";
 	/**
@@ -534,6 +869,8 @@ public class Configuration {
 		SERVERS = getInt(CONFIG_SERVERS);
 		EXIT_RELAYS = getInt(CONFIG_EXIT_RELAYS);
 		NORMAL_RELAYS = getInt(CONFIG_NORMAL_RELAYS);
+		CONSENSUS = props.getProperty(CONFIG_CONSENSUS, "").trim();
+		CONSENSUS_CACHE = getBool(CONFIG_CONSENSUS_CACHE);
 		FS_RELAYS = getInt(CONFIG_FS_RELAYS);
 		WEB_RELAYS = getInt(CONFIG_WEB_RELAYS);
 		WEB_EXIT_RELAYS = getInt(CONFIG_WEB_EXIT_RELAYS);
@@ -542,6 +879,13 @@ public class Configuration {
 		FS_EXIT_RELAYS = getInt(CONFIG_FS_EXIT_RELAYS);
 		FS_PEERS = getInt(CONFIG_FS_PEERS);
 		APPLICATION_STARTUP = getInt(CONFIG_APPLICATION_STARTUP);
+		PREEMPTIVE_CIRCUITS = getInt(CONFIG_PREEMPTIVE_CIRCUITS);
+		NUM_GUARDS = getInt(CONFIG_NUM_GUARDS);
+		CHURN_INTERVAL = NUM_WORKERS == 1 ? getInt(CONFIG_CHURN_INTERVAL) : 0;
+		LAZY_CLIENTS = getBool(CONFIG_LAZY_CLIENTS) && NUM_WORKERS == 1;
+		HIBERNATE_CLIENTS = getBool(CONFIG_HIBERNATE_CLIENTS);
+		MAX_ZOMBIE_LIFETIME = NUM_WORKERS == 1 ? getInt(CONFIG_MAX_ZOMBIE_LIFETIME)
+				: 0;
 		// kbps (bits)
 		CLIENT_BANDWIDTH_UP = getInt(CONFIG_CLIENT_BANDWIDTH_UP);
 		CLIENT_BANDWIDTH_DOWN = getInt(CONFIG_CLIENT_BANDWIDTH_DOWN);
@@ -562,6 +906,7 @@ public class Configuration {
 		// for scheduling
 		NETWORK_PRIORITY = getBool(CONFIG_NETWORK_PRIORITY);
 		SCHEDULER = getScheduler(CONFIG_SCHEDULER);
+		SCHEDULER_NAME = props.getProperty(CONFIG_SCHEDULER, "");
 		LOW_LATENCY_DDP = getInt(CONFIG_LOW_LATENCY_DDP);
 		HIGH_THROUGHPUT_DDP = getInt(CONFIG_HIGH_THROUGHPUT_DDP);
 		NORMAL_DDP = getInt(CONFIG_NORMAL_DDP);
@@ -570,7 +915,40 @@ public class Configuration {
 		EWMA_INTERVAL = getInt(CONFIG_EWMA_INTERVAL);
 		EWMA_SCALE_FACTOR = getDouble(CONFIG_EWMA_SCALE_FACTOR);
 		HPD_FRACTION = getDouble(CONFIG_HPD_FRACTION);
-		WFQ_INTERVAL = getInt(CONFIG_WFQ_INTERVAL);
+		// waiting times are only ordered by arrival with a single ddp
+		HPD_INDEXED = getBool(CONFIG_HPD_INDEXED) && !NETWORK_PRIORITY;
+		DRR_QUANTUM = Math.max(getInt(CONFIG_DRR_QUANTUM), Datagram.CELL_LENGTH);
+
+		NETWORK_OFF_HEAP_BUFFERS = getBool(CONFIG_NETWORK_OFF_HEAP_BUFFERS);
+
+		// trains are completed lazily by the sending network, which is only
+		// safe with a single thread of execution. a train needs at least two
+		// datagrams to save anything.
+		CELL_TRAIN_LENGTH = getInt(CONFIG_CELL_TRAIN_LENGTH);
+		NETWORK_CELL_TRAINS = getBool(CONFIG_NETWORK_CELL_TRAINS)
+				&& NUM_WORKERS == 1 && CELL_TRAIN_LENGTH > 1;
+
+		// receiving ahead touches the next-hop network at send time and
+		// requires arrivals in order, which trains do not keep
+		NETWORK_HOP_TRANSFERS = getBool(CONFIG_NETWORK_HOP_TRANSFERS)
+				&& NUM_WORKERS == 1 && !NETWORK_CELL_TRAINS;
+
+		// trains already write several datagrams per event
+		SCHEDULING_QUANTUM = NETWORK_CELL_TRAINS ? 1 : Math.max(
+				getInt(CONFIG_SCHEDULING_QUANTUM), 1);
+		SOCKET_BUDGET_INTERVAL = getInt(CONFIG_SOCKET_BUDGET_INTERVAL);
+
+		// a SENDME arriving at the exit lets the server provide more data,
+		// which crosses node boundaries. windows must open to make progress.
+		CIRCUIT_WINDOW = getInt(CONFIG_CIRCUIT_WINDOW);
+		CIRCUIT_SENDME_INCREMENT = getInt(CONFIG_CIRCUIT_SENDME_INCREMENT);
+		STREAM_WINDOW = getInt(CONFIG_STREAM_WINDOW);
+		STREAM_SENDME_INCREMENT = getInt(CONFIG_STREAM_SENDME_INCREMENT);
+		NETWORK_FLOW_CONTROL = getBool(CONFIG_NETWORK_FLOW_CONTROL)
+				&& NUM_WORKERS == 1 && CIRCUIT_SENDME_INCREMENT > 0
+				&& CIRCUIT_SENDME_INCREMENT <= CIRCUIT_WINDOW
+				&& STREAM_SENDME_INCREMENT > 0
+				&& STREAM_SENDME_INCREMENT <= STREAM_WINDOW;
 
 		DEBUG = getBool(CONFIG_DEBUG);
 	}
@@ -635,6 +1013,8 @@ public class Configuration {
 			algorithm = SchedulingAlgorithm.EXPONENTIAL_WEIGHTED_MOVING_AVERAGE;
 		} else if (scheduler.equals("WFQ")) {
 			algorithm = SchedulingAlgorithm.WEIGHTED_FAIR_QUEUEING;
+		} else if (scheduler.equals("DRR")) {
+			algorithm = SchedulingAlgorithm.DEFICIT_ROUND_ROBIN;
 		}
 		return algorithm;
 	}
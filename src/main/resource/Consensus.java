@@ -0,0 +1,568 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.resource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
+
+import main.system.Driver;
+
+/**
+ * Imports a Tor v3 network consensus document and stores the relays it lists
+ * as compact arrays of bandwidths and flags, along with the bandwidth weights
+ * used to select relays for each position of a circuit. The document is read
+ * line by line in a single pass and may be gzipped. Consensus files are parsed
+ * once and then cached in a binary file next to them, which is read instead
+ * on later startups while the consensus file is unchanged.
+ * 
+ * @author agent
+ */
+public class Consensus {
+	/**
+	 * The positions of a circuit for which a relay can be selected.
+	 * 
+	 * @author agent
+	 */
+	public enum Position {
+		GUARD, MIDDLE, EXIT, ;
+	}
+
+	/**
+	 * Flag of relays that are suitable as entry guards.
+	 */
+	public static final int FLAG_GUARD = 1;
+	/**
+	 * Flag of relays that exit traffic. Relays flagged as bad exits do not get
+	 * this flag.
+	 */
+	public static final int FLAG_EXIT = 2;
+	/**
+	 * Flag of relays that are fast enough to be used in general circuits.
+	 */
+	public static final int FLAG_FAST = 4;
+
+	/**
+	 * Suffix appended to the consensus filename to get the cache filename.
+	 */
+	private static final String CACHE_SUFFIX = ".cache";
+	/**
+	 * Identifies cache files, and changes whenever their layout does.
+	 */
+	private static final int CACHE_MAGIC = 0x54434301;
+	/**
+	 * The scale of the bandwidth weights unless the consensus sets the
+	 * bwweightscale parameter.
+	 */
+	private static final int DEFAULT_WEIGHT_SCALE = 10000;
+	/**
+	 * The bandwidth weight keys used for path selection, in the order they are
+	 * stored in the weights array. The second letter is the position, the
+	 * third the kind of relay: guard, middle, exit or both guard and exit.
+	 */
+	private static final String[] WEIGHT_KEYS = { "Wgg", "Wgd", "Wmg", "Wmm",
+			"Wme", "Wmd", "Wee", "Wed" };
+	private static final int WGG = 0;
+	private static final int WGD = 1;
+	private static final int WMG = 2;
+	private static final int WMM = 3;
+	private static final int WME = 4;
+	private static final int WMD = 5;
+	private static final int WEE = 6;
+	private static final int WED = 7;
+
+	/**
+	 * The bandwidth of each relay, in bytes per second.
+	 */
+	private static int[] bandwidths;
+	/**
+	 * The flags of each relay.
+	 */
+	private static byte[] flags;
+	/**
+	 * The number of relays stored.
+	 */
+	private static int size;
+	/**
+	 * The bandwidth weights, as fractions between 0 and 1.
+	 */
+	private static double[] weights;
+	/**
+	 * If the weights were taken from the consensus rather than computed.
+	 */
+	private static boolean hasConsensusWeights;
+	/**
+	 * Flag to prevent importing the consensus multiple times.
+	 */
+	private static boolean isInitialized = false;
+
+	/**
+	 * Import the consensus with the given name, which is a file or else a
+	 * resource on the classpath. Only running and valid relays are stored.
+	 * 
+	 * @param name
+	 *            the filename or resource name of the consensus
+	 * @param useCache
+	 *            if a consensus file should be read from and written to its
+	 *            binary cache
+	 * @throws IOException
+	 *             in case an error in reading the consensus occurs
+	 */
+	public static void initialize(String name, boolean useCache)
+			throws IOException {
+		if (isInitialized) {
+			Driver.log.warning("Consensus already initialized");
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		String source = name;
+		File file = new File(name);
+		if (file.isFile()) {
+			File cache = new File(name + CACHE_SUFFIX);
+			if (useCache && readCache(file, cache)) {
+				source = cache.getPath();
+			} else {
+				parse(open(new FileInputStream(file)));
+				if (useCache) {
+					writeCache(file, cache);
+				}
+			}
+		} else {
+			InputStream istream = Consensus.class.getResourceAsStream(name);
+			if (istream == null) {
+				throw new FileNotFoundException(name);
+			}
+			parse(open(istream));
+		}
+
+		isInitialized = true;
+		Driver.log.info("Consensus of " + size + " relays imported from '"
+				+ source + "' in " + (System.currentTimeMillis() - start)
+				+ " ms, using "
+				+ (hasConsensusWeights ? "consensus" : "computed")
+				+ " bandwidth weights");
+	}
+
+	/**
+	 * Forgets the imported consensus, so that another one may be imported.
+	 */
+	public static void reset() {
+		bandwidths = null;
+		flags = null;
+		size = 0;
+		weights = null;
+		hasConsensusWeights = false;
+		isInitialized = false;
+	}
+
+	/**
+	 * @return true if a consensus was imported
+	 */
+	public static boolean isInitialized() {
+		return isInitialized;
+	}
+
+	/**
+	 * @return the number of relays in the consensus
+	 */
+	public static int size() {
+		return size;
+	}
+
+	/**
+	 * @param index
+	 *            the index of the relay in the consensus
+	 * @return the bandwidth of the relay, in bytes per second
+	 */
+	public static int getBandwidth(int index) {
+		return bandwidths[index];
+	}
+
+	/**
+	 * @param index
+	 *            the index of the relay in the consensus
+	 * @return the flags of the relay
+	 */
+	public static int getFlags(int index) {
+		return flags[index];
+	}
+
+	/**
+	 * Gets the bandwidth weight of a relay with the given flags in the given
+	 * position, following the bandwidth weights section of
+	 * http://www.torproject.org/svn/trunk/doc/spec/dir-spec.txt. Relays without
+	 * the fast flag are not used, and only guards and exits are used in their
+	 * respective positions.
+	 * 
+	 * @param position
+	 *            the position of the circuit the relay is selected for
+	 * @param relayFlags
+	 *            the flags of the relay
+	 * @return the fraction of the relay bandwidth to weight its selection by
+	 */
+	public static double getWeight(Position position, int relayFlags) {
+		if ((relayFlags & FLAG_FAST) == 0) {
+			return 0.0;
+		}
+		boolean isGuard = (relayFlags & FLAG_GUARD) != 0;
+		boolean isExit = (relayFlags & FLAG_EXIT) != 0;
+		switch (position) {
+		case GUARD:
+			if (!isGuard) {
+				return 0.0;
+			}
+			return weights[isExit ? WGD : WGG];
+		case MIDDLE:
+			if (isGuard) {
+				return weights[isExit ? WMD : WMG];
+			}
+			return weights[isExit ? WME : WMM];
+		case EXIT:
+			if (!isExit) {
+				return 0.0;
+			}
+			return weights[isGuard ? WED : WEE];
+		}
+		return 0.0;
+	}
+
+	/**
+	 * Wraps the given stream for reading lines, decompressing it if it starts
+	 * with the gzip magic number.
+	 * 
+	 * @param istream
+	 *            the raw consensus stream
+	 * @return a reader of the consensus lines
+	 * @throws IOException
+	 */
+	private static BufferedReader open(InputStream istream) throws IOException {
+		InputStream in = new BufferedInputStream(istream);
+		in.mark(2);
+		int magic = in.read() | (in.read() << 8);
+		in.reset();
+		if (magic == GZIPInputStream.GZIP_MAGIC) {
+			in = new GZIPInputStream(in);
+		}
+		return new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+	}
+
+	/**
+	 * Parses the consensus in a single pass. Each router entry starts with an
+	 * "r" line and is stored when the next entry or the footer starts. The
+	 * flags come from the "s" line and the bandwidth from the "w" line. The
+	 * bandwidth weights are read from the footer, and computed when the
+	 * consensus does not contain them.
+	 * 
+	 * @param in
+	 *            the reader of the consensus lines
+	 * @throws IOException
+	 */
+	private static void parse(BufferedReader in) throws IOException {
+		bandwidths = new int[1024];
+		flags = new byte[1024];
+		size = 0;
+
+		int scale = DEFAULT_WEIGHT_SCALE;
+		String weightsLine = null;
+
+		boolean inEntry = false;
+		boolean isUsable = false;
+		int entryFlags = 0;
+		long entryBandwidth = 0;
+
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("r ")) {
+					if (inEntry && isUsable) {
+						add(entryBandwidth, entryFlags);
+					}
+					inEntry = true;
+					isUsable = false;
+					entryFlags = 0;
+					entryBandwidth = 0;
+				} else if (!inEntry) {
+					if (line.startsWith("params ")) {
+						scale = getValue(line, "bwweightscale", scale);
+					} else if (line.startsWith("bandwidth-weights ")) {
+						weightsLine = line;
+					}
+				} else if (line.startsWith("s ")) {
+					boolean isRunning = false;
+					boolean isValid = false;
+					boolean isBadExit = false;
+					for (String flag : line.split(" ")) {
+						if (flag.equals("Guard")) {
+							entryFlags |= FLAG_GUARD;
+						} else if (flag.equals("Exit")) {
+							entryFlags |= FLAG_EXIT;
+						} else if (flag.equals("Fast")) {
+							entryFlags |= FLAG_FAST;
+						} else if (flag.equals("Running")) {
+							isRunning = true;
+						} else if (flag.equals("Valid")) {
+							isValid = true;
+						} else if (flag.equals("BadExit")) {
+							isBadExit = true;
+						}
+					}
+					if (isBadExit) {
+						entryFlags &= ~FLAG_EXIT;
+					}
+					isUsable = isRunning && isValid;
+				} else if (line.startsWith("w ")) {
+					// consensus bandwidths are in kilobytes per second
+					entryBandwidth = getValue(line, "Bandwidth", 0) * 1024L;
+				} else if (line.startsWith("directory-footer")
+						|| line.startsWith("directory-signature")) {
+					if (isUsable) {
+						add(entryBandwidth, entryFlags);
+					}
+					inEntry = false;
+				}
+			}
+			if (inEntry && isUsable) {
+				add(entryBandwidth, entryFlags);
+			}
+		} finally {
+			in.close();
+		}
+
+		if (weightsLine != null) {
+			weights = new double[WEIGHT_KEYS.length];
+			for (int i = 0; i < WEIGHT_KEYS.length; i++) {
+				weights[i] = (double) getValue(weightsLine, WEIGHT_KEYS[i],
+						scale) / scale;
+			}
+			hasConsensusWeights = true;
+		} else {
+			computeWeights();
+			hasConsensusWeights = false;
+		}
+	}
+
+	/**
+	 * Stores a relay, growing the arrays as needed.
+	 * 
+	 * @param bandwidth
+	 *            the relay bandwidth in bytes per second
+	 * @param relayFlags
+	 *            the relay flags
+	 */
+	private static void add(long bandwidth, int relayFlags) {
+		if (size == bandwidths.length) {
+			int[] newBandwidths = new int[size * 2];
+			byte[] newFlags = new byte[size * 2];
+			System.arraycopy(bandwidths, 0, newBandwidths, 0, size);
+			System.arraycopy(flags, 0, newFlags, 0, size);
+			bandwidths = newBandwidths;
+			flags = newFlags;
+		}
+		bandwidths[size] = (int) Math.min(bandwidth, Integer.MAX_VALUE);
+		flags[size] = (byte) relayFlags;
+		size++;
+	}
+
+	/**
+	 * Gets the integer value of the key=value item with the given key from a
+	 * space separated line.
+	 * 
+	 * @param line
+	 *            the line containing the item
+	 * @param key
+	 *            the key of the item
+	 * @param defaultValue
+	 *            the value returned if the line has no such item
+	 * @return the value of the item
+	 */
+	private static int getValue(String line, String key, int defaultValue) {
+		int start = line.indexOf(" " + key + "=");
+		if (start < 0) {
+			return defaultValue;
+		}
+		start += key.length() + 2;
+		int end = line.indexOf(' ', start);
+		if (end < 0) {
+			end = line.length();
+		}
+		return Integer.parseInt(line.substring(start, end));
+	}
+
+	/**
+	 * Computes the weights for consensuses that predate the bandwidth weights,
+	 * following http://www.torproject.org/svn/trunk/doc/spec/path-spec.txt.
+	 * Exits are weighted down in other positions so exit bandwidth is left for
+	 * the last hop, and guards are weighted down in other positions so guard
+	 * bandwidth is left for the first hop. Either is not used outside its
+	 * position if it has less than a third of the total bandwidth.
+	 */
+	private static void computeWeights() {
+		double total = 0.0;
+		double exit = 0.0;
+		double guard = 0.0;
+		for (int i = 0; i < size; i++) {
+			total += bandwidths[i];
+			if ((flags[i] & FLAG_EXIT) != 0) {
+				exit += bandwidths[i];
+			}
+			if ((flags[i] & FLAG_GUARD) != 0) {
+				guard += bandwidths[i];
+			}
+		}
+		double exitFactor = exit > 0 ? Math.max(0.0, (exit - total / 3) / exit)
+				: 0.0;
+		double guardFactor = guard > 0 ? Math.max(0.0, (guard - total / 3)
+				/ guard) : 0.0;
+
+		weights = new double[WEIGHT_KEYS.length];
+		weights[WGG] = 1.0;
+		weights[WGD] = exitFactor;
+		weights[WMG] = guardFactor;
+		weights[WMM] = 1.0;
+		weights[WME] = exitFactor;
+		weights[WMD] = exitFactor * guardFactor;
+		weights[WEE] = 1.0;
+		weights[WED] = guardFactor;
+	}
+
+	/**
+	 * Reads the relays and weights from the cache, if it was written for the
+	 * current version of the consensus file.
+	 * 
+	 * @param file
+	 *            the consensus file
+	 * @param cache
+	 *            the cache file
+	 * @return true if the cache was read, false if the consensus must be
+	 *         parsed instead
+	 */
+	private static boolean readCache(File file, File cache) {
+		if (!cache.isFile()) {
+			return false;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(cache)));
+			if (in.readInt() != CACHE_MAGIC || in.readLong() != file.length()
+					|| in.readLong() != file.lastModified()) {
+				return false;
+			}
+			int cachedSize = in.readInt();
+			int[] cachedBandwidths = new int[cachedSize];
+			byte[] cachedFlags = new byte[cachedSize];
+			for (int i = 0; i < cachedSize; i++) {
+				cachedBandwidths[i] = in.readInt();
+			}
+			in.readFully(cachedFlags);
+			boolean cachedHasConsensusWeights = in.readBoolean();
+			double[] cachedWeights = new double[WEIGHT_KEYS.length];
+			for (int i = 0; i < cachedWeights.length; i++) {
+				cachedWeights[i] = in.readDouble();
+			}
+
+			size = cachedSize;
+			bandwidths = cachedBandwidths;
+			flags = cachedFlags;
+			hasConsensusWeights = cachedHasConsensusWeights;
+			weights = cachedWeights;
+			return true;
+		} catch (IOException e) {
+			Driver.log.warning("Unable to read consensus cache '" + cache
+					+ "': " + e);
+			return false;
+		} finally {
+			close(in);
+		}
+	}
+
+	/**
+	 * Writes the relays and weights to the cache, so the consensus does not
+	 * need to be parsed again. Failing to write the cache is not fatal.
+	 * 
+	 * @param file
+	 *            the consensus file
+	 * @param cache
+	 *            the cache file
+	 */
+	private static void writeCache(File file, File cache) {
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(cache)));
+			out.writeInt(CACHE_MAGIC);
+			out.writeLong(file.length());
+			out.writeLong(file.lastModified());
+			out.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				out.writeInt(bandwidths[i]);
+			}
+			out.write(flags, 0, size);
+			out.writeBoolean(hasConsensusWeights);
+			for (int i = 0; i < weights.length; i++) {
+				out.writeDouble(weights[i]);
+			}
+			out.close();
+			out = null;
+		} catch (IOException e) {
+			Driver.log.warning("Unable to write consensus cache '" + cache
+					+ "': " + e);
+			cache.delete();
+		} finally {
+			close(out);
+		}
+	}
+
+	/**
+	 * Closes the given stream, ignoring errors.
+	 * 
+	 * @param stream
+	 *            the stream to close, or null
+	 */
+	private static void close(Closeable stream) {
+		if (stream != null) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// nothing left to do with it
+			}
+		}
+	}
+
+	/**
+	 * Private constructor. All consensus methods should be accessed
+	 * statically.
+	 */
+	private Consensus() {
+	}
+}
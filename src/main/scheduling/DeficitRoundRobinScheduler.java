@@ -0,0 +1,148 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.scheduling;
+
+import java.util.ArrayDeque;
+
+import main.network.Buffer;
+import main.network.DrrBuffer;
+import main.network.SchedulingRing;
+import main.resource.Configuration;
+
+/**
+ * Scheduler based on deficit round robin, following Shreedhar and Varghese.
+ * Only non-empty buffers are kept in an active list, so empty buffers are
+ * never visited. The buffer at the front of the list receives a quantum of
+ * bytes when its turn begins and sends datagrams while its deficit covers
+ * the size of its head. Its turn ends when the deficit does not cover the
+ * head, which moves it to the back of the list, or when it becomes empty,
+ * which removes it and resets its deficit. Fairness is therefore accurate in
+ * bytes, even though cells and server data differ in size.
+ * <p>
+ * Since the quantum is at least the size of any datagram, the next buffer can
+ * always send after at most one turn ended, and each datagram costs O(1).
+ * 
+ * @see main.resource.Configuration#DRR_QUANTUM
+ * 
+ * @author agent
+ */
+public class DeficitRoundRobinScheduler extends Scheduler {
+	/**
+	 * The non-empty buffers of the node in round order, or null until the
+	 * first buffer becomes active
+	 */
+	private ArrayDeque<Buffer> active;
+
+	/**
+	 * Begins the turn of the buffer at the front of the active list, if any.
+	 */
+	private void beginTurn() {
+		DrrBuffer buffer = (DrrBuffer) active.peekFirst();
+		if (buffer != null) {
+			buffer.setDrrDeficit(buffer.getDrrDeficit()
+					+ Configuration.DRR_QUANTUM);
+		}
+	}
+
+	/**
+	 * @return the non-empty buffers in round order, which are created on the
+	 *         first call
+	 */
+	private ArrayDeque<Buffer> getActiveBuffers() {
+		if (active == null) {
+			active = new ArrayDeque<Buffer>();
+		}
+		return active;
+	}
+
+	/**
+	 * Drops the empty active list.
+	 * 
+	 * @see main.scheduling.Scheduler#compact()
+	 */
+	@Override
+	public void compact() {
+		active = null;
+	}
+
+	/**
+	 * Appends the buffer to the active list. If it is the only
+	 * active buffer, its turn begins immediately.
+	 * 
+	 * @see main.scheduling.Scheduler#notifyBufferActivated(long,
+	 *      main.network.Buffer)
+	 */
+	@Override
+	public void notifyBufferActivated(long time, Buffer buffer) {
+		getActiveBuffers().addLast(buffer);
+		if (active.size() == 1) {
+			beginTurn();
+		}
+	}
+
+	/**
+	 * Removes the buffer from the active list and resets its
+	 * deficit. Only the buffer whose turn it is sends, so it is usually found
+	 * at the front and the next turn begins.
+	 * 
+	 * @see main.scheduling.Scheduler#notifyBufferDeactivated(long,
+	 *      main.network.Buffer)
+	 */
+	@Override
+	public void notifyBufferDeactivated(long time, Buffer buffer) {
+		((DrrBuffer) buffer).setDrrDeficit(0);
+		if (getActiveBuffers().peekFirst() == buffer) {
+			active.removeFirst();
+			beginTurn();
+		} else {
+			active.removeFirstOccurrence(buffer);
+		}
+	}
+
+	/**
+	 * Send the head of the buffer whose turn it is, ending turns until a
+	 * deficit covers the head.
+	 * 
+	 * @see main.scheduling.Scheduler#schedule(SchedulingRing)
+	 */
+	@Override
+	public void schedule(long time, SchedulingRing ring) {
+		if (ring.hasNoData()) {
+			return;
+		}
+
+		DrrBuffer buffer = (DrrBuffer) getActiveBuffers().peekFirst();
+		while (buffer != null) {
+			int size = buffer.peekSize(0);
+			if (size <= buffer.getDrrDeficit()) {
+				buffer.setDrrDeficit(buffer.getDrrDeficit() - size);
+				break;
+			}
+			// end the turn, keeping the remaining deficit
+			active.addLast(active.removeFirst());
+			beginTurn();
+			buffer = (DrrBuffer) active.peekFirst();
+		}
+
+		trySend(time, buffer);
+	}
+
+}
@@ -21,6 +21,8 @@
 package main.scheduling;
 
 import main.network.Buffer;
+import main.network.BufferHeap;
+import main.network.EwmaBuffer;
 import main.network.SchedulingRing;
 import main.resource.Configuration;
 
@@ -58,10 +60,157 @@ import main.resource.Configuration;
  * and a cell sent N seconds after the start of the current tick is worth F^-N.
  * This way we don't overflow, and we don't need to constantly rescale.
  * 
+ * As in Tor's circuitmux_ewma, the non-empty buffers of the node are kept in
+ * a min-heap of the scheduler keyed by their scaled EWMA cell count, so
+ * picking a cell costs O(log n). All keys in the heap are relative to the
+ * start of a single tick of the scheduler. Instead of rescaling the heap at
+ * every tick, cells sent later count F^-N relative to that tick, and the whole
+ * heap is rescaled to the current tick only once the scale grew by
+ * RESCALE_TICKS ticks. Since all keys are scaled by the same factor,
+ * rescaling does not change the heap order. Empty
+ * buffers keep their count and the tick it is relative to, and are decayed
+ * when they become active again. Scale factors are precomputed in lookup
+ * tables, with millisecond resolution within a tick.
+ * 
  * @author Rob Jansen
  * 
  */
 public class ExponentialWeightedMovingAverageScheduler extends Scheduler {
+	/**
+	 * The heap slot of the buffers used to order them by EWMA
+	 */
+	private static final int HEAP = 0;
+
+	/**
+	 * The largest number of ticks the keys of a heap may lag behind the
+	 * current tick before the heap is rescaled
+	 */
+	private static final int RESCALE_TICKS = 64;
+
+	/**
+	 * F^k for k ticks, used to decay counts
+	 */
+	private double[] decay;
+
+	/**
+	 * F^-(m/interval) for m milliseconds into a tick, used to weigh a cell
+	 * sent during the tick
+	 */
+	private double[] fraction;
+
+	/**
+	 * F^-k for k ticks, used to weigh a cell sent k ticks after the tick the
+	 * keys are relative to
+	 */
+	private double[] growth;
+
+	/**
+	 * The non-empty buffers of the node ordered by EWMA, or null until the
+	 * first buffer becomes active
+	 */
+	private BufferHeap heap;
+
+	/**
+	 * The EWMA tick that the keys of the buffers in the heap are relative to
+	 */
+	private long tick;
+
+	/**
+	 * Create the scheduler and precompute the scale factors of the configured
+	 * tick length and scale factor.
+	 */
+	public ExponentialWeightedMovingAverageScheduler() {
+		decay = new double[RESCALE_TICKS];
+		growth = new double[RESCALE_TICKS];
+		for (int k = 0; k < RESCALE_TICKS; k++) {
+			decay[k] = Math.pow(Configuration.EWMA_SCALE_FACTOR, k);
+			growth[k] = 1 / decay[k];
+		}
+		fraction = new double[Configuration.EWMA_INTERVAL];
+		for (int m = 0; m < Configuration.EWMA_INTERVAL; m++) {
+			fraction[m] = Math.pow(Configuration.EWMA_SCALE_FACTOR, 0 - ((double) m
+					/ Configuration.EWMA_INTERVAL));
+		}
+	}
+
+	/**
+	 * Create a scheduler that shares the scale factors of the given scheduler,
+	 * which are never modified. The heap is not shared.
+	 * 
+	 * @param tables
+	 *            the scheduler holding the scale factors
+	 */
+	public ExponentialWeightedMovingAverageScheduler(
+			ExponentialWeightedMovingAverageScheduler tables) {
+		decay = tables.decay;
+		growth = tables.growth;
+		fraction = tables.fraction;
+	}
+
+	/**
+	 * @return the heap of non-empty buffers, which is created on the first
+	 *         call
+	 */
+	private BufferHeap getHeap() {
+		if (heap == null) {
+			heap = new BufferHeap(HEAP);
+		}
+		return heap;
+	}
+
+	/**
+	 * @param ticks
+	 *            a number of elapsed ticks
+	 * @return the factor that decays a count by the given number of ticks
+	 */
+	private double getDecay(long ticks) {
+		if (ticks < RESCALE_TICKS) {
+			return decay[(int) ticks];
+		}
+		return Math.pow(Configuration.EWMA_SCALE_FACTOR, ticks);
+	}
+
+	/**
+	 * Drops the empty heap. The tick is kept, since the counts of the empty
+	 * buffers are relative to it.
+	 * 
+	 * @see main.scheduling.Scheduler#compact()
+	 */
+	@Override
+	public void compact() {
+		heap = null;
+	}
+
+	/**
+	 * Adds the buffer to the heap, decaying the count it had when it became
+	 * empty to the tick of the heap.
+	 * 
+	 * @see main.scheduling.Scheduler#notifyBufferActivated(long,
+	 *      main.network.Buffer)
+	 */
+	@Override
+	public void notifyBufferActivated(long time, Buffer buffer) {
+		EwmaBuffer ewmaBuffer = (EwmaBuffer) buffer;
+		double ewma = ewmaBuffer.getEwma();
+		if (ewmaBuffer.getEwmaLastAdjustedInterval() < tick) {
+			ewma *= getDecay(tick - ewmaBuffer.getEwmaLastAdjustedInterval());
+		}
+		getHeap().add(buffer, ewma);
+	}
+
+	/**
+	 * Removes the buffer from the heap, keeping its count and the tick it is
+	 * relative to in the buffer.
+	 * 
+	 * @see main.scheduling.Scheduler#notifyBufferDeactivated(long,
+	 *      main.network.Buffer)
+	 */
+	@Override
+	public void notifyBufferDeactivated(long time, Buffer buffer) {
+		EwmaBuffer ewmaBuffer = (EwmaBuffer) buffer;
+		ewmaBuffer.setEwma(getHeap().remove(buffer));
+		ewmaBuffer.setEwmaLastAdjustedInterval(tick);
+	}
 
 	@Override
 	public void schedule(long time, SchedulingRing ring) {
@@ -69,41 +218,23 @@ public class ExponentialWeightedMovingAverageScheduler extends Scheduler {
 			return;
 		}
 
-		long millis = time/1000000;
-		long currentInterval = millis / Configuration.EWMA_INTERVAL;
-
-		// waiting time priority scheduler, based on configured service classes
-		Buffer buffer, minBuffer = null;
-		double min = Integer.MAX_VALUE;
-		for (int i = 0; i < ring.size(); i++) {
-			buffer = ring.advance();
-			// nextbuffer should never be null, else we have problems
-			if (!buffer.isEmpty()) {
-				// check if we need to decay the EMWA
-				if (currentInterval > buffer.getEwmaLastAdjustedInterval()) {
-					// we need to decay the ewma counter exponentially based
-					// on when it was last adjusted
-					long scalePow = currentInterval
-							- buffer.getEwmaLastAdjustedInterval();
-					buffer.setEwma(buffer.getEwma()
-							* Math.pow(Configuration.EWMA_SCALE_FACTOR, scalePow));
-					buffer.setEwmaLastAdjustedInterval(currentInterval);
-				}
-
-				double temp = buffer.getEwma();
-				if (temp < min) {
-					min = temp;
-					minBuffer = buffer;
-				}
+		BufferHeap heap = getHeap();
+		Buffer minBuffer = heap.peek();
+		if (minBuffer != null) {
+			long millis = time / 1000000;
+			long elapsed = millis - (tick * Configuration.EWMA_INTERVAL);
+			long ticks = elapsed / Configuration.EWMA_INTERVAL;
+			if (ticks >= RESCALE_TICKS) {
+				// move all keys to the current tick
+				heap.scaleKeys(getDecay(ticks));
+				tick += ticks;
+				ticks = 0;
 			}
-		}
 
-		if (minBuffer != null) {
 			// need to scale its counter since we are sending a cell
-			double scaleRemainder = millis % Configuration.EWMA_INTERVAL;
-			double scaleFraction = 0 - (scaleRemainder/Configuration.EWMA_INTERVAL);
-			double scaleIncrement = Math.pow(Configuration.EWMA_SCALE_FACTOR, scaleFraction);
-			minBuffer.setEwma(minBuffer.getEwma() + scaleIncrement);
+			double scaleIncrement = growth[(int) ticks]
+					* fraction[(int) (elapsed % Configuration.EWMA_INTERVAL)];
+			heap.update(minBuffer, heap.peekKey() + scaleIncrement);
 		}
 
 		trySend(time, minBuffer);
@@ -46,7 +46,7 @@ public class FirstComeFirstServedScheduler extends Scheduler {
 			buffer = ring.advance();
 			// nextbuffer should never be null, else we have problems
 			if (!buffer.isEmpty()) {
-				long temp = buffer.peekFirst().getQueueArrivalTime();
+				long temp = buffer.peekFirstArrivalTime();
 				if (temp < minTime) {
 					minTime = temp;
 					firstBuffer = buffer;
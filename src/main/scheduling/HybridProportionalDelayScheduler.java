@@ -21,7 +21,7 @@
 package main.scheduling;
 
 import main.network.Buffer;
-import main.network.Datagram;
+import main.network.HpdBuffer;
 import main.network.SchedulingRing;
 import main.resource.Configuration;
 
@@ -47,15 +47,14 @@ public class HybridProportionalDelayScheduler extends Scheduler {
 	 *            the buffer whose head we will compute priority
 	 * @return the priority of the datagram at the head of the buffer
 	 */
-	private long computeNormalizedHeadWaitingTime(long time, Buffer buffer) {
+	protected long computeNormalizedHeadWaitingTime(long time, Buffer buffer) {
 		// priority(t) = waitTime(t)/DDP
 		int ddp = 0;
-		Datagram d = buffer.peekFirst();
-		if (d == null) {
+		if (buffer.isEmpty()) {
 			return 0;
 		}
 		ddp = getDelayDifferentiationParameter(buffer.getPriority());
-		return (time - d.getQueueArrivalTime()) / ddp;
+		return (time - buffer.peekFirstArrivalTime()) / ddp;
 	}
 
 	/**
@@ -67,15 +66,50 @@ public class HybridProportionalDelayScheduler extends Scheduler {
 	 *            the buffer whose head we will compute priority
 	 * @return the priority of the buffer
 	 */
-	private long computeNormalizedAverageDelay(Buffer buffer) {
+	protected long computeNormalizedAverageDelay(Buffer buffer) {
 		// priority(t) = (SumDelaySent/TotalSent)/ddp
-		long delayMillis = (buffer.getHpdTotalSentPacketDelay() / buffer
+		HpdBuffer hpdBuffer = (HpdBuffer) buffer;
+		long delayMillis = (hpdBuffer.getHpdTotalSentPacketDelay() / hpdBuffer
 				.getHpdTotalSentPackets())
 				/ getDelayDifferentiationParameter(buffer.getPriority());
 		// convert to nanos to match WTP
 		return delayMillis * 1000000;
 	}
 
+	/**
+	 * Computes the hybrid priority of the head of the given buffer, mixing its
+	 * waiting time and the proportional average delay of the buffer using the
+	 * configured fraction.
+	 * 
+	 * @param buffer
+	 *            the buffer whose head we will compute priority
+	 * @return the priority of the datagram at the head of the buffer
+	 */
+	protected long computePriority(long time, Buffer buffer) {
+		// WTP scheduling
+		long wtpTemp = computeNormalizedHeadWaitingTime(time, buffer);
+		// PAD scheduling
+		long padTemp = computeNormalizedAverageDelay(buffer);
+		// Hybrid mixture, using fractional hybrid parameter
+		return combine(padTemp, wtpTemp);
+	}
+
+	/**
+	 * Mixes a proportional average delay and a waiting time priority using the
+	 * configured fraction. The result never decreases if either argument
+	 * increases.
+	 * 
+	 * @param pad
+	 *            the normalized proportional average delay
+	 * @param wtp
+	 *            the normalized waiting time
+	 * @return the hybrid priority
+	 */
+	protected long combine(long pad, long wtp) {
+		double percent = Configuration.HPD_FRACTION;
+		return (long) ((percent * pad) + ((1 - percent) * wtp));
+	}
+
 	/**
 	 * Retrieve the correct parameter from the configuration file.
 	 * 
@@ -96,6 +130,17 @@ public class HybridProportionalDelayScheduler extends Scheduler {
 		}
 	}
 
+	/**
+	 * Counts the sent packet for the proportional average delay of the given
+	 * buffer.
+	 * 
+	 * @see main.scheduling.Scheduler#notifyDequeued(long, Buffer)
+	 */
+	@Override
+	protected void notifyDequeued(long time, Buffer buffer) {
+		((HpdBuffer) buffer).hpdSentPacket(time);
+	}
+
 	/**
 	 * Compute the WTP of each buffer in the given ring, and attempt to send
 	 * data from the buffer with the highest priority.
@@ -115,13 +160,7 @@ public class HybridProportionalDelayScheduler extends Scheduler {
 			buffer = ring.advance();
 			// nextbuffer should never be null, else we have problems
 			if (!buffer.isEmpty()) {
-				// WTP scheduling
-				long wtpTemp = computeNormalizedHeadWaitingTime(time, buffer);
-				// PAD scheduling
-				long padTemp = computeNormalizedAverageDelay(buffer);
-				// Hybrid mixture, using fractional hybrid parameter
-				double percent = Configuration.HPD_FRACTION;
-				long hpdTemp = (long) ((percent * padTemp) + ((1 - percent) * wtpTemp));
+				long hpdTemp = computePriority(time, buffer);
 				if (hpdTemp > max) {
 					max = hpdTemp;
 					maxBuffer = buffer;
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.scheduling;
+
+import main.network.Buffer;
+import main.network.BufferHeap;
+import main.network.SchedulingRing;
+
+/**
+ * A hybrid proportional delay scheduler for a service class per circuit that
+ * does not compute the priority of every buffer for every decision. The
+ * non-empty buffers of the node are kept in one heap of the scheduler ordered
+ * by the arrival time of their head and in another ordered by their
+ * normalized proportional average delay. Since all classes share the same delay differentiation
+ * parameter, the earliest head has the largest waiting time.
+ * <p>
+ * A decision walks both orders in parallel and computes the priority of the
+ * buffers it visits. The buffers not visited yet can not have a larger
+ * waiting time or average delay than the ones visited last, so their priority
+ * is bounded by the mixture of those two. The walk stops as soon as the best
+ * priority found reaches that bound, and after at most MAX_CANDIDATES steps
+ * otherwise. Since the average delay of a buffer only changes when it sends,
+ * the bound is usually reached after very few steps, independent of the
+ * number of circuits.
+ * 
+ * @see main.resource.Configuration#HPD_INDEXED
+ * 
+ * @author agent
+ */
+public class IndexedHybridProportionalDelayScheduler extends
+		HybridProportionalDelayScheduler {
+	/**
+	 * The heap slot of the buffers used to order them by head arrival time
+	 */
+	private static final int ARRIVAL_HEAP = 0;
+
+	/**
+	 * The heap slot of the buffers used to order them by descending average
+	 * delay
+	 */
+	private static final int DELAY_HEAP = 1;
+
+	/**
+	 * The largest number of steps in both orders per decision
+	 */
+	private static final int MAX_CANDIDATES = 32;
+
+	/**
+	 * The non-empty buffers ordered by head arrival time, or null until the
+	 * first buffer becomes active
+	 */
+	private BufferHeap arrivals;
+
+	/**
+	 * The non-empty buffers ordered by descending average delay, or null until
+	 * the first buffer becomes active
+	 */
+	private BufferHeap delays;
+
+
+	/**
+	 * Drops both empty heaps.
+	 * 
+	 * @see main.scheduling.Scheduler#compact()
+	 */
+	@Override
+	public void compact() {
+		arrivals = null;
+		delays = null;
+	}
+
+	/**
+	 * Adds the buffer to both heaps.
+	 * 
+	 * @see main.scheduling.Scheduler#notifyBufferActivated(long,
+	 *      main.network.Buffer)
+	 */
+	@Override
+	public void notifyBufferActivated(long time, Buffer buffer) {
+		if (arrivals == null) {
+			arrivals = new BufferHeap(ARRIVAL_HEAP);
+			delays = new BufferHeap(DELAY_HEAP);
+		}
+		arrivals.add(buffer, buffer.peekFirstArrivalTime());
+		delays.add(buffer, -computeNormalizedAverageDelay(buffer));
+	}
+
+	/**
+	 * Removes the buffer from both heaps.
+	 * 
+	 * @see main.scheduling.Scheduler#notifyBufferDeactivated(long,
+	 *      main.network.Buffer)
+	 */
+	@Override
+	public void notifyBufferDeactivated(long time, Buffer buffer) {
+		arrivals.remove(buffer);
+		delays.remove(buffer);
+	}
+
+	/**
+	 * Finds the buffer with the highest priority through a bounded walk of
+	 * both orders, and attempts to send data from it. The sending buffer is
+	 * reordered afterwards, since both its head and its average delay changed.
+	 * 
+	 * @see main.scheduling.Scheduler#schedule(SchedulingRing)
+	 */
+	@Override
+	public void schedule(long time, SchedulingRing ring) {
+		if (ring.hasNoData()) {
+			return;
+		}
+
+		arrivals.startWalk();
+		delays.startWalk();
+
+		Buffer maxBuffer = null;
+		long max = Long.MIN_VALUE;
+		for (int i = 0; i < MAX_CANDIDATES; i++) {
+			Buffer earliest = arrivals.nextInWalk();
+			Buffer slowest = delays.nextInWalk();
+			if (earliest == null) {
+				// both heaps hold the same buffers
+				break;
+			}
+			long wtp = computeNormalizedHeadWaitingTime(time, earliest);
+			long pad = computeNormalizedAverageDelay(slowest);
+			for (int j = 0; j < 2; j++) {
+				Buffer buffer = (j == 0) ? earliest : slowest;
+				long hpdTemp = computePriority(time, buffer);
+				if ((hpdTemp > max)
+						|| ((hpdTemp == max) && (buffer.getId() < maxBuffer
+								.getId()))) {
+					max = hpdTemp;
+					maxBuffer = buffer;
+				}
+			}
+			// no buffer not visited yet can do better
+			if (max >= combine(pad, wtp)) {
+				break;
+			}
+		}
+
+		trySend(time, maxBuffer);
+
+		if ((maxBuffer != null) && arrivals.contains(maxBuffer)) {
+			arrivals.update(maxBuffer, maxBuffer.peekFirstArrivalTime());
+			delays.update(maxBuffer, -computeNormalizedAverageDelay(maxBuffer));
+		}
+	}
+
+}
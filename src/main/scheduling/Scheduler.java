@@ -21,6 +21,7 @@
 package main.scheduling;
 
 import main.network.Buffer;
+import main.network.Datagram;
 import main.network.SchedulingRing;
 
 /**
@@ -46,7 +47,49 @@ public abstract class Scheduler {
 	 * @author Rob Jansen
 	 */
 	public enum SchedulingAlgorithm {
-		FIRST_COME_FIRST_SERVED, ROUND_ROBIN, HYBRID_PROPORTIONAL_DELAY, EXPONENTIAL_WEIGHTED_MOVING_AVERAGE, WEIGHTED_FAIR_QUEUEING;
+		FIRST_COME_FIRST_SERVED, ROUND_ROBIN, HYBRID_PROPORTIONAL_DELAY, EXPONENTIAL_WEIGHTED_MOVING_AVERAGE, WEIGHTED_FAIR_QUEUEING, DEFICIT_ROUND_ROBIN;
+	}
+
+	/**
+	 * Called while the node of this scheduler holds no data, to drop the
+	 * indexes of buffers with data, which are created again when a buffer
+	 * becomes active. Any state kept between activations is kept. By default,
+	 * nothing happens.
+	 */
+	public void compact() {
+	}
+
+	/**
+	 * Called when the given buffer becomes non-empty. Schedulers that keep
+	 * their own index of buffers with data override this, by default nothing
+	 * happens.
+	 * 
+	 * @param buffer
+	 *            the buffer that became non-empty
+	 */
+	public void notifyBufferActivated(long time, Buffer buffer) {
+	}
+
+	/**
+	 * Called when the given buffer becomes empty. Schedulers that keep their
+	 * own index of buffers with data override this, by default nothing
+	 * happens.
+	 * 
+	 * @param buffer
+	 *            the buffer that became empty
+	 */
+	public void notifyBufferDeactivated(long time, Buffer buffer) {
+	}
+
+	/**
+	 * Called when a datagram was dequeued from the given buffer, before it is
+	 * sent. Schedulers that keep per-buffer statistics of sent data override
+	 * this, by default nothing happens.
+	 * 
+	 * @param buffer
+	 *            the buffer the datagram was dequeued from
+	 */
+	protected void notifyDequeued(long time, Buffer buffer) {
 	}
 
 	/**
@@ -69,7 +112,9 @@ public abstract class Scheduler {
 	protected void trySend(long time, Buffer buffer) {
 		// if we found a buffer with data, tell the network to send
 		if ((buffer != null) && !buffer.isEmpty()) {
-			buffer.getNetwork().send(time, buffer.dequeue(time));
+			Datagram data = buffer.dequeue(time);
+			notifyDequeued(time, buffer);
+			buffer.getNetwork().send(time, buffer, data);
 		}
 	}
 }
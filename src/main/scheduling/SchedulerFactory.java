@@ -0,0 +1,210 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.scheduling;
+
+import java.util.HashMap;
+
+import main.network.BufferFactory;
+import main.network.DrrBuffer;
+import main.network.EwmaBuffer;
+import main.network.HpdBuffer;
+import main.network.RingBuffer;
+import main.network.WfqBuffer;
+import main.node.BufferPolicy;
+import main.node.CircuitBufferPolicy;
+import main.node.CircuitBufferPolicy.RingMembership;
+import main.node.ServiceClassBufferPolicy;
+import main.node.SingleBufferPolicy;
+import main.resource.Configuration;
+
+/**
+ * Creates the scheduler instances of a scheduling algorithm. Every node gets
+ * its own scheduler, so scheduling state is confined to the node and the
+ * worker executing its events. The factory also creates the buffer policy of
+ * the algorithm, which decides the buffers of each Tor node. Factories are
+ * registered by the name used for the algorithm in the configuration file, so
+ * new algorithms may be added with register() instead of changing the
+ * directory.
+ * 
+ * @see main.resource.Configuration#SCHEDULER_NAME
+ * 
+ * @author agent
+ */
+public abstract class SchedulerFactory {
+	/**
+	 * The registered factories, by name of their algorithm
+	 */
+	private static HashMap<String, SchedulerFactory> factories = new HashMap<String, SchedulerFactory>();
+
+	static {
+		register("FCFS", new SchedulerFactory() {
+			@Override
+			public BufferPolicy createBufferPolicy() {
+				return new SingleBufferPolicy(RingBuffer.FACTORY);
+			}
+
+			@Override
+			public Scheduler createScheduler() {
+				return new FirstComeFirstServedScheduler();
+			}
+		});
+		register("RR", new SchedulerFactory() {
+			@Override
+			public BufferPolicy createBufferPolicy() {
+				return createCircuitBufferPolicy(RingBuffer.FACTORY, true);
+			}
+
+			@Override
+			public Scheduler createScheduler() {
+				return new RoundRobinScheduler();
+			}
+		});
+		register("HPD", new SchedulerFactory() {
+			@Override
+			public BufferPolicy createBufferPolicy() {
+				if (Configuration.NETWORK_PRIORITY) {
+					// each priority is a service class
+					return new ServiceClassBufferPolicy(HpdBuffer.FACTORY);
+				}
+				// each circuit is its own service class
+				return createCircuitBufferPolicy(HpdBuffer.FACTORY,
+						!Configuration.HPD_INDEXED);
+			}
+
+			@Override
+			public Scheduler createScheduler() {
+				if (Configuration.HPD_INDEXED) {
+					return new IndexedHybridProportionalDelayScheduler();
+				}
+				return new HybridProportionalDelayScheduler();
+			}
+		});
+		register("EWMA", new SchedulerFactory() {
+			/**
+			 * Holds the lookup tables shared by all instances
+			 */
+			private ExponentialWeightedMovingAverageScheduler tables;
+
+			@Override
+			public BufferPolicy createBufferPolicy() {
+				return createCircuitBufferPolicy(EwmaBuffer.FACTORY, false);
+			}
+
+			@Override
+			public Scheduler createScheduler() {
+				if (tables == null) {
+					tables = new ExponentialWeightedMovingAverageScheduler();
+					return tables;
+				}
+				return new ExponentialWeightedMovingAverageScheduler(tables);
+			}
+		});
+		register("WFQ", new SchedulerFactory() {
+			@Override
+			public BufferPolicy createBufferPolicy() {
+				return createCircuitBufferPolicy(WfqBuffer.FACTORY, false);
+			}
+
+			@Override
+			public Scheduler createScheduler() {
+				return new WeightedFairQueueingScheduler();
+			}
+		});
+		register("DRR", new SchedulerFactory() {
+			@Override
+			public BufferPolicy createBufferPolicy() {
+				return createCircuitBufferPolicy(DrrBuffer.FACTORY, false);
+			}
+
+			@Override
+			public Scheduler createScheduler() {
+				return new DeficitRoundRobinScheduler();
+			}
+		});
+	}
+
+	/**
+	 * Creates a policy with a buffer for each circuit. Schedulers that scan
+	 * the ring need the buffers in the ring, which is either dynamic or static
+	 * as configured. Schedulers that keep their own index of buffers with data
+	 * are notified when buffers become active, so the buffers are never in the
+	 * ring. With dynamic buffers, drained buffers are dropped unless they keep
+	 * scheduler state while empty.
+	 * 
+	 * @param bufferFactory
+	 *            creates the buffers with the state of the scheduler
+	 * @param scansRing
+	 *            true if the scheduler scans the buffers in the ring
+	 * @return a new policy with a buffer for each circuit
+	 * @see main.resource.Configuration#NETWORK_DYNAMIC_BUFFERS
+	 */
+	protected static BufferPolicy createCircuitBufferPolicy(
+			BufferFactory bufferFactory, boolean scansRing) {
+		boolean releaseDrained = Configuration.NETWORK_DYNAMIC_BUFFERS
+				&& !bufferFactory.keepsStateWhileEmpty();
+		if (!scansRing) {
+			return new CircuitBufferPolicy(bufferFactory, RingMembership.NONE,
+					releaseDrained);
+		} else if (Configuration.NETWORK_DYNAMIC_BUFFERS) {
+			return new CircuitBufferPolicy(bufferFactory,
+					RingMembership.DYNAMIC, releaseDrained);
+		} else {
+			return new CircuitBufferPolicy(bufferFactory,
+					RingMembership.STATIC, releaseDrained);
+		}
+	}
+
+	/**
+	 * @param name
+	 *            the name of a scheduling algorithm in the configuration file
+	 * @return the factory registered for the given name, or null if there is
+	 *         none
+	 */
+	public static SchedulerFactory getFactory(String name) {
+		return factories.get(name);
+	}
+
+	/**
+	 * Registers a factory for the given algorithm name, replacing any factory
+	 * registered for the same name before. Factories must be registered before
+	 * the directory creates the nodes.
+	 * 
+	 * @param name
+	 *            the name of the scheduling algorithm in the configuration
+	 *            file
+	 * @param factory
+	 *            the factory creating schedulers of the algorithm
+	 */
+	public static void register(String name, SchedulerFactory factory) {
+		factories.put(name, factory);
+	}
+
+	/**
+	 * @return a new buffer policy, which is shared by all Tor nodes
+	 */
+	public abstract BufferPolicy createBufferPolicy();
+
+	/**
+	 * @return a new scheduler for a single node
+	 */
+	public abstract Scheduler createScheduler();
+
+}
@@ -21,75 +21,211 @@
 package main.scheduling;
 
 import main.network.Buffer;
+import main.network.BufferHeap;
+import main.network.Message;
 import main.network.SchedulingRing;
+import main.network.WfqBuffer;
 import main.resource.Configuration;
 
 /**
- * An extremely inefficient and VERY rough approximation of
- * weightedFairQueueing. This should not be used anywhere.
+ * A worst-case fair weighted fair queueing (WF2Q+) scheduler, following Bennett
+ * and Zhang. Each buffer is a flow. The head of a buffer gets a virtual start
+ * time, the maximum of the virtual finish time of the previous datagram of the
+ * buffer and the system virtual time, and a virtual finish time, its start
+ * time plus its size divided by its weight. A head is eligible once its start
+ * time is not later than the system virtual time, and the eligible head with
+ * the earliest finish time is sent. The system virtual time advances by the
+ * size of each sent datagram divided by the sum of the weights of the
+ * non-empty buffers, but never falls behind the earliest start time.
+ * <p>
+ * The non-empty buffers of the node are kept in two heaps of the scheduler,
+ * the eligible ones ordered by finish time and the others by start time, so
+ * each decision costs O(log n). In priority mode a datagram is weighted with
+ * the inverse of the delay differentiation parameter of its service class,
+ * otherwise all circuits have the same weight.
  * 
  * @author Rob Jansen
  * 
  */
 public class WeightedFairQueueingScheduler extends Scheduler {
+	/**
+	 * The heap slot of the buffers used to order eligible buffers by finish
+	 * time
+	 */
+	private static final int ELIGIBLE_HEAP = 0;
 
-	private long lastUpdate;
+	/**
+	 * The heap slot of the buffers used to order other buffers by start time
+	 */
+	private static final int WAITING_HEAP = 1;
 
+	/**
+	 * The sum of the weights of the non-empty buffers
+	 */
+	private double activeWeight;
+
+	/**
+	 * The eligible buffers ordered by finish time, or null until the first
+	 * buffer becomes active
+	 */
+	private BufferHeap eligible;
+
+	/**
+	 * The system virtual time
+	 */
+	private double virtualTime;
+
+	/**
+	 * The non-empty buffers that are not eligible yet, ordered by start time,
+	 * or null until the first buffer becomes active
+	 */
+	private BufferHeap waiting;
+
+	/**
+	 * Create a scheduler with no active buffers.
+	 */
+	public WeightedFairQueueingScheduler() {
+		activeWeight = 0;
+		virtualTime = 0;
+	}
+
+	/**
+	 * Computes the weight of a datagram from the service class of its message.
+	 * 
+	 * @param message
+	 *            the message of the datagram at the head of a buffer
+	 * @return the weight of the datagram
+	 */
+	private double getWeight(Message message) {
+		if (!Configuration.NETWORK_PRIORITY) {
+			return 1.0;
+		}
+		int ddp;
+		switch (message.getPriority()) {
+		case LOW_LATENCY:
+			ddp = Configuration.LOW_LATENCY_DDP;
+			break;
+		case HIGH_THROUGHPUT:
+			ddp = Configuration.HIGH_THROUGHPUT_DDP;
+			break;
+		default:
+			ddp = Configuration.NORMAL_DDP;
+			break;
+		}
+		return ddp > 0 ? 1.0 / ddp : 1.0;
+	}
+
+	/**
+	 * Stamps the new head of the given buffer with a start time and finish
+	 * time, and places the buffer in the heap matching its eligibility.
+	 * 
+	 * @param buffer
+	 *            the non-empty buffer, which is in no heap
+	 * @param start
+	 *            the virtual start time of the head
+	 */
+	private void stampHead(WfqBuffer buffer, double start) {
+		double weight = getWeight(buffer.peekMessage(0));
+		activeWeight += weight;
+		double finish = start + (buffer.peekSize(0) / weight);
+		buffer.setWfqTags(start, finish, weight);
+		if (start <= virtualTime) {
+			eligible.add(buffer, finish);
+		} else {
+			waiting.add(buffer, start);
+		}
+	}
+
+	/**
+	 * Removes the buffer from the heap it is in and its weight from the
+	 * active weight.
+	 */
+	private void unstampHead(WfqBuffer buffer) {
+		if (eligible.contains(buffer)) {
+			eligible.remove(buffer);
+		} else {
+			waiting.remove(buffer);
+		}
+		activeWeight -= buffer.getWfqWeight();
+	}
+
+	/**
+	 * Drops both empty heaps. The virtual time is kept, since the finish tags
+	 * of the empty buffers are relative to it.
+	 * 
+	 * @see main.scheduling.Scheduler#compact()
+	 */
+	@Override
+	public void compact() {
+		eligible = null;
+		waiting = null;
+	}
+
+	/**
+	 * A buffer that becomes non-empty starts no earlier than the system
+	 * virtual time, and no earlier than its last datagram finished.
+	 * 
+	 * @see main.scheduling.Scheduler#notifyBufferActivated(long,
+	 *      main.network.Buffer)
+	 */
+	@Override
+	public void notifyBufferActivated(long time, Buffer buffer) {
+		if (eligible == null) {
+			eligible = new BufferHeap(ELIGIBLE_HEAP);
+			waiting = new BufferHeap(WAITING_HEAP);
+		}
+		WfqBuffer wfqBuffer = (WfqBuffer) buffer;
+		stampHead(wfqBuffer, Math.max(wfqBuffer.getWfqFinish(), virtualTime));
+	}
+
+	/**
+	 * @see main.scheduling.Scheduler#notifyBufferDeactivated(long,
+	 *      main.network.Buffer)
+	 */
+	@Override
+	public void notifyBufferDeactivated(long time, Buffer buffer) {
+		unstampHead((WfqBuffer) buffer);
+	}
+
+	/**
+	 * Sends the head with the earliest finish time among the eligible heads,
+	 * then advances the system virtual time and stamps the next head of the
+	 * buffer.
+	 * 
+	 * @see main.scheduling.Scheduler#schedule(SchedulingRing)
+	 */
 	@Override
 	public void schedule(long time, SchedulingRing ring) {
 		if (ring.hasNoData()) {
 			return;
 		}
 
-		if (time > lastUpdate + (Configuration.WFQ_INTERVAL * 1000000)) {
-			updateDynamicWeights(ring);
-			lastUpdate = time;
-		}
-
-		Buffer buffer, maxBuffer = null;
-		double max = -1;
-		long totalSent = ring.getWfqTotal();
-		for (int i = 0; i < ring.size(); i++) {
-			buffer = ring.advance();
-			if(buffer.isEmpty()){
-				continue;
-			}
-			double actual = 0.0;
-			if(totalSent != 0){
-				actual = buffer.getWfqWeight() * (buffer.getWfqSent() / totalSent);
-			}
-			if(actual > max){
-				max = actual;
-				maxBuffer = buffer;
-			}
+		// the virtual time never falls behind the earliest start time
+		if (eligible.isEmpty() && !waiting.isEmpty()) {
+			virtualTime = Math.max(virtualTime, waiting.peekKey());
 		}
-		
-		if(maxBuffer != null && !maxBuffer.isEmpty()){
-			maxBuffer.setWfqSent(maxBuffer.getWfqSent() + 1);
-			ring.setWfqTotal(ring.getWfqTotal() + 1);
-			trySend(time, maxBuffer);
+		while (!waiting.isEmpty() && (waiting.peekKey() <= virtualTime)) {
+			WfqBuffer buffer = (WfqBuffer) waiting.peek();
+			waiting.remove(buffer);
+			eligible.add(buffer, buffer.getWfqFinish());
 		}
-	}
 
-	private void updateDynamicWeights(SchedulingRing ring) {
-		long totalSent = ring.getWfqTotal();
-		Buffer buffer;
-		double expectedSent = 1.0 / ring.size();
-		for (int i = 0; i < ring.size(); i++) {
-			double actualSent = 0.0;
-			buffer = ring.advance();
-			if(totalSent != 0){
-				actualSent = buffer.getWfqSent() / totalSent;
-			}
-			if (actualSent > expectedSent) {
-				buffer.setWfqWeight(0.1 * expectedSent);
-			} else {
-				buffer.setWfqWeight(2.0 * expectedSent);
-			}
-			buffer.setWfqSent(0);
+		WfqBuffer minBuffer = (WfqBuffer) eligible.peek();
+		if (minBuffer == null) {
+			return;
 		}
-		ring.setWfqTotal(0);
+		int size = minBuffer.peekSize(0);
+		double weight = activeWeight;
+		double finish = minBuffer.getWfqFinish();
 
+		trySend(time, minBuffer);
+
+		virtualTime += size / weight;
+		if (eligible.contains(minBuffer)) {
+			// the next head starts when the previous one finished
+			unstampHead(minBuffer);
+			stampHead(minBuffer, finish);
+		}
 	}
 
 }
@@ -21,6 +21,7 @@
 package main.system;
 
 import java.io.FileInputStream;
+import java.util.LinkedHashSet;
 import java.util.PriorityQueue;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
@@ -29,8 +30,12 @@ import java.util.logging.Logger;
 import main.concurrent.Master;
 import main.event.Event;
 import main.event.Heartbeat;
+import main.network.Circuit;
 import main.node.Directory;
+import main.node.Node;
+import main.node.NodeRegistry;
 import main.resource.Configuration;
+import main.resource.Consensus;
 import main.resource.Distribution;
 import main.scheduling.Scheduler.Priority;
 import main.util.Generator;
@@ -87,6 +92,23 @@ public class Driver {
 	 * level.
 	 */
 	private long[] outstandingMessageCounters;
+	/**
+	 * The zombie circuits waiting for outstanding data, in the order they
+	 * became zombies.
+	 */
+	private LinkedHashSet<Circuit> zombieCircuits;
+	/**
+	 * The number of zombie circuits reclaimed by force.
+	 */
+	private long reclaimedZombieCount;
+	/**
+	 * The number of clients hibernating now.
+	 */
+	private long hibernatingCount;
+	/**
+	 * The number of times any client hibernated.
+	 */
+	private long hibernationCount;
 	/**
 	 * The main event queue. Prioritizes events based on time.
 	 */
@@ -111,9 +133,22 @@ public class Driver {
 	 * The system, containing all nodes and facilitating relay and server
 	 * selection.
 	 */
-	@SuppressWarnings("unused")
 	private Directory system;
 
+	/**
+	 * Creates the driver with empty counters and the simulation clock, so
+	 * nodes and circuits may count their data before the simulation is
+	 * initialized. Until then, the clock ends at time 0, so any event added
+	 * later than that is dropped.
+	 */
+	private Driver() {
+		outstandingDataCounters = new long[Priority.values().length];
+		outstandingMessageCounters = new long[Priority.values().length];
+		zombieCircuits = new LinkedHashSet<Circuit>();
+		reclaimedZombieCount = 0;
+		clock = SimulationClock.getInstance();
+	}
+
 	/**
 	 * Adds an event to the main priority queue.
 	 * 
@@ -144,6 +179,62 @@ public class Driver {
 		outstandingDataCounters[p.ordinal()]--;
 	}
 
+	/**
+	 * Starts tracking the given zombie circuit until it is tore-down.
+	 */
+	public synchronized void addZombie(Circuit circuit) {
+		zombieCircuits.add(circuit);
+	}
+
+	/**
+	 * Stops tracking the given zombie circuit.
+	 * 
+	 * @param reclaimed
+	 *            true if the circuit was reclaimed by force
+	 */
+	public synchronized void removeZombie(Circuit circuit, boolean reclaimed) {
+		zombieCircuits.remove(circuit);
+		if (reclaimed) {
+			reclaimedZombieCount++;
+		}
+	}
+
+	/**
+	 * Counts a client that started hibernating.
+	 */
+	public synchronized void addHibernation() {
+		hibernatingCount++;
+		hibernationCount++;
+	}
+
+	/**
+	 * Counts a client that woke from hibernation.
+	 */
+	public synchronized void removeHibernation() {
+		hibernatingCount--;
+	}
+
+	/**
+	 * @return the number of times any client hibernated
+	 */
+	public synchronized long getHibernationCount() {
+		return hibernationCount;
+	}
+
+	/**
+	 * @return the number of datagrams of the given priority in transit
+	 */
+	public synchronized long getDataCount(Priority p) {
+		return outstandingDataCounters[p.ordinal()];
+	}
+
+	/**
+	 * @return the number of messages of the given priority in transit
+	 */
+	public synchronized long getMessageCount(Priority p) {
+		return outstandingMessageCounters[p.ordinal()];
+	}
+
 	/**
 	 * Decrements the message counter.
 	 */
@@ -174,11 +265,34 @@ public class Driver {
 	}
 
 	/**
-	 * Logs a final summary of simulation time and wall-clock time.
+	 * Logs a final summary of simulation time and wall-clock time, the peak
+	 * number of datagrams each node held in its buffers, the number of client
+	 * hibernations, and the heap of the node registry.
 	 */
 	private void generateSummary() {
 		log.config(webConnectionsCount + " total web and " + fsConnectionsCount
 				+ " total filesharing connections");
+		Node peakNode = null;
+		for (Node node : system.getNodes()) {
+			int peak = node.getSchedulingRing().getPeakDataCount();
+			log.config(node.toString() + " peak buffer occupancy: " + peak
+					+ " datagrams");
+			if ((peakNode == null)
+					|| (peak > peakNode.getSchedulingRing().getPeakDataCount())) {
+				peakNode = node;
+			}
+		}
+		if (peakNode != null) {
+			log.info("Peak buffer occupancy = "
+					+ peakNode.getSchedulingRing().getPeakDataCount()
+					+ " datagrams at " + peakNode.toString());
+		}
+		if (Configuration.HIBERNATE_CLIENTS) {
+			log.info(hibernationCount + " client hibernations");
+		}
+		NodeRegistry registry = NodeRegistry.getInstance();
+		log.info("Node registry of " + registry.getMaxId() + " nodes = "
+				+ (registry.getFootprint() / 1024) + " KB");
 		log.info("Total simulation time = "
 				+ SimulationClock.getInstance().getTimeAsMinutes() + " of "
 				+ Configuration.ENDTIME + " minutes");
@@ -190,7 +304,8 @@ public class Driver {
 	/**
 	 * Computes and prints status information about the current amount of memory
 	 * used by the VM, and the current number of messages and datagrams in the
-	 * network for each priority level, and number of events in the queue.
+	 * network for each priority level, the zombie circuits waiting for their
+	 * data, the hibernating clients, and number of events in the queue.
 	 * Schedules another heartbeat in one minute.
 	 */
 	public synchronized void generateStatus(long time) {
@@ -206,11 +321,31 @@ public class Driver {
 				+ Configuration.ENDTIME + " minutes " + memory + "MB "
 				+ getCounterString(outstandingMessageCounters, " messages ")
 				+ getCounterString(outstandingDataCounters, " datagrams ")
+				+ getZombieString(time) + hibernatingCount + " hibernating "
 				+ size + " events ");
 		long oneMinute = SimulationClock.getInstance().getOneMinute();
 		addEvent(new Heartbeat(time + oneMinute));
 	}
 
+	/**
+	 * Compute a string that contains the number of zombie circuits, the bytes
+	 * in flight they wait for, the age of the oldest zombie, and the number
+	 * of zombies reclaimed by force.
+	 */
+	private String getZombieString(long time) {
+		long bytes = 0;
+		for (Circuit circuit : zombieCircuits) {
+			bytes += circuit.getBytesInFlight();
+		}
+		long age = 0;
+		if (!zombieCircuits.isEmpty()) {
+			age = (time - zombieCircuits.iterator().next().getZombieTime())
+					/ SimulationClock.getInstance().getOneSecond();
+		}
+		return zombieCircuits.size() + " zombies " + bytes + " bytes " + age
+				+ " seconds oldest " + reclaimedZombieCount + " reclaimed ";
+	}
+
 	/**
 	 * Compute a string that contains the cumulative total of all values of
 	 * counters in the given array.
@@ -286,8 +421,17 @@ public class Driver {
 			return false;
 		}
 
-		outstandingDataCounters = new long[Priority.values().length];
-		outstandingMessageCounters = new long[Priority.values().length];
+		if (Configuration.CONSENSUS.length() > 0) {
+			try {
+				Consensus.initialize(Configuration.CONSENSUS,
+						Configuration.CONSENSUS_CACHE);
+			} catch (Exception e) {
+				log.severe(e.toString());
+				log.severe("Unable to initialize consensus resource");
+				return false;
+			}
+		}
+
 		if (Configuration.NUM_WORKERS > 1) {
 			master = new Master(Configuration.NUM_WORKERS,
 					Configuration.NETWORK_LATENCY);
@@ -295,7 +439,6 @@ public class Driver {
 			pendingEvents = new PriorityQueue<Event>();
 		}
 
-		clock = SimulationClock.getInstance();
 		clock.setEndTime(Configuration.ENDTIME);
 		startingWallClock = System.currentTimeMillis();
 
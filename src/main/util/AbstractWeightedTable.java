@@ -0,0 +1,154 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A base class for weighted tables that store each object at an index and can
+ * find the object whose interval of the prefix sums of the weights contains a
+ * draw. Draws excluding objects are shared by all such tables: an unexcluded
+ * draw from the full table is already a draw from the renormalized
+ * distribution, so it is accepted. Otherwise, a single draw is made over the
+ * remaining weight and mapped to the full weight by skipping the intervals of
+ * the excluded objects. There is no rejection loop, so a few dominating
+ * excluded objects can not stall selection.
+ * 
+ * @author agent
+ * 
+ * @param <T>
+ *            the type of object stored in the table
+ */
+public abstract class AbstractWeightedTable<T> implements WeightedTable<T> {
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.util.WeightedTable#sampleExcluding(java.util.Random,
+	 * java.lang.Object, java.lang.Object, java.lang.Object)
+	 */
+	@Override
+	public T sampleExcluding(Random prng, T first, T second, T third) {
+		T choice = sample(prng);
+		if (choice == null) {
+			return null;
+		}
+		if (choice != first && choice != second && choice != third) {
+			return choice;
+		}
+		return sampleRenormalized(prng, first, second, third);
+	}
+
+	/**
+	 * Draws from the prefix sums of the weights with the intervals of the
+	 * excluded objects removed.
+	 * 
+	 * @see main.util.AbstractWeightedTable#sampleExcluding(Random, Object,
+	 *      Object, Object)
+	 */
+	private T sampleRenormalized(Random prng, T first, T second, T third) {
+		// the distinct excluded indices in increasing order
+		int[] excluded = new int[3];
+		int count = 0;
+		count = addIndex(excluded, count, first);
+		count = addIndex(excluded, count, second);
+		count = addIndex(excluded, count, third);
+		Arrays.sort(excluded, 0, count);
+
+		double remaining = getTotalWeight();
+		for (int i = 0; i < count; i++) {
+			remaining -= getWeightAt(excluded[i]);
+		}
+		if (remaining <= 0) {
+			return null;
+		}
+
+		// map the draw over the remaining weight to the full weight by
+		// skipping each excluded interval at or before it
+		double draw = prng.nextDouble() * remaining;
+		for (int i = 0; i < count; i++) {
+			int index = excluded[i];
+			if (draw < getWeightBelow(index)) {
+				break;
+			}
+			draw += getWeightAt(index);
+		}
+		return find(draw);
+	}
+
+	/**
+	 * Adds the index of the given object to the given indices, unless the
+	 * object is null, not in this table, or already added.
+	 * 
+	 * @return the new number of indices
+	 */
+	private int addIndex(int[] excluded, int count, T object) {
+		if (object == null) {
+			return count;
+		}
+		int index = indexOf(object);
+		if (index < 0) {
+			return count;
+		}
+		for (int i = 0; i < count; i++) {
+			if (excluded[i] == index) {
+				return count;
+			}
+		}
+		excluded[count] = index;
+		return count + 1;
+	}
+
+	/**
+	 * @param draw
+	 *            a value between zero and the total weight
+	 * @return the object whose interval of the prefix sums contains the draw
+	 */
+	protected abstract T find(double draw);
+
+	/**
+	 * @return the sum of all weights
+	 */
+	public abstract double getTotalWeight();
+
+	/**
+	 * @param index
+	 *            the index of an object in this table
+	 * @return the weight of the object at the given index
+	 */
+	protected abstract double getWeightAt(int index);
+
+	/**
+	 * @param index
+	 *            the index of an object in this table
+	 * @return the sum of the weights of the objects below the given index
+	 */
+	protected abstract double getWeightBelow(int index);
+
+	/**
+	 * @param object
+	 *            the object to look up
+	 * @return the index of the given object, or -1 if it is not in this table
+	 */
+	protected abstract int indexOf(T object);
+
+}
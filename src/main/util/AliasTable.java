@@ -0,0 +1,238 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.util;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A table for sampling objects with probability proportional to their
+ * weight, using the alias method of Walker as constructed by Vose. Each draw
+ * picks a column uniformly and then either the object of the column or its
+ * alias, so it costs O(1) regardless of the number of objects or how skewed
+ * the weights are.
+ * <p>
+ * Draws may exclude up to three objects. A draw that hits an excluded object
+ * is made again from the prefix sums of the weights with the excluded
+ * intervals skipped, which costs O(log n).
+ * 
+ * @see main.util.AbstractWeightedTable
+ * 
+ * @author agent
+ * 
+ * @param <T>
+ *            the type of object stored in the table
+ */
+public class AliasTable<T> extends AbstractWeightedTable<T> {
+	/**
+	 * The objects in the table, one per column
+	 */
+	private Object[] objects;
+
+	/**
+	 * The probability of picking the object of a column instead of its alias
+	 */
+	private double[] probabilities;
+
+	/**
+	 * The column of the alias of each column
+	 */
+	private int[] aliases;
+
+	/**
+	 * The weight of each object
+	 */
+	private double[] weights;
+
+	/**
+	 * The sum of the weights of the objects up to and including each column
+	 */
+	private double[] cumulativeWeights;
+
+	/**
+	 * The sum of all weights
+	 */
+	private double totalWeight;
+
+	/**
+	 * The column of each object, used to find excluded objects
+	 */
+	private IdentityHashMap<T, Integer> columns;
+
+	/**
+	 * Builds the table in O(n). Weights must not be negative, and at least one
+	 * weight must be positive.
+	 * 
+	 * @param objects
+	 *            the objects to sample, without duplicates
+	 * @param weights
+	 *            the weight of each object, in the same order
+	 */
+	public AliasTable(List<T> objects, double[] weights) {
+		int n = objects.size();
+		this.objects = objects.toArray();
+		this.weights = weights.clone();
+		probabilities = new double[n];
+		aliases = new int[n];
+		cumulativeWeights = new double[n];
+		columns = new IdentityHashMap<T, Integer>(n);
+
+		totalWeight = 0;
+		for (int i = 0; i < n; i++) {
+			totalWeight += weights[i];
+			cumulativeWeights[i] = totalWeight;
+			columns.put(objects.get(i), i);
+		}
+
+		// scale so the average column holds a probability of 1
+		double[] scaled = new double[n];
+		int[] small = new int[n];
+		int[] large = new int[n];
+		int smallCount = 0;
+		int largeCount = 0;
+		for (int i = 0; i < n; i++) {
+			scaled[i] = weights[i] * n / totalWeight;
+			if (scaled[i] < 1.0) {
+				small[smallCount++] = i;
+			} else {
+				large[largeCount++] = i;
+			}
+		}
+
+		// fill each small column with part of a large one
+		while (smallCount > 0 && largeCount > 0) {
+			int less = small[--smallCount];
+			int more = large[--largeCount];
+			probabilities[less] = scaled[less];
+			aliases[less] = more;
+			scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+			if (scaled[more] < 1.0) {
+				small[smallCount++] = more;
+			} else {
+				large[largeCount++] = more;
+			}
+		}
+
+		// what remains is full, up to rounding errors
+		while (largeCount > 0) {
+			int i = large[--largeCount];
+			probabilities[i] = 1.0;
+			aliases[i] = i;
+		}
+		while (smallCount > 0) {
+			int i = small[--smallCount];
+			probabilities[i] = 1.0;
+			aliases[i] = i;
+		}
+	}
+
+	/**
+	 * Draws an object with probability proportional to its weight.
+	 * 
+	 * @param prng
+	 *            the source of randomness
+	 * @return the sampled object
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public T sample(Random prng) {
+		// the integer part picks the column, the fraction flips its coin
+		double draw = prng.nextDouble() * objects.length;
+		int column = (int) draw;
+		if (draw - column < probabilities[column]) {
+			return (T) objects[column];
+		}
+		return (T) objects[aliases[column]];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.util.AbstractWeightedTable#find(double)
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	protected T find(double draw) {
+		// the first column whose prefix sum exceeds the draw
+		int low = 0;
+		int high = objects.length - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (cumulativeWeights[middle] > draw) {
+				high = middle;
+			} else {
+				low = middle + 1;
+			}
+		}
+		return (T) objects[low];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.util.AbstractWeightedTable#getTotalWeight()
+	 */
+	@Override
+	public double getTotalWeight() {
+		return totalWeight;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.util.AbstractWeightedTable#getWeightAt(int)
+	 */
+	@Override
+	protected double getWeightAt(int index) {
+		return weights[index];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.util.AbstractWeightedTable#getWeightBelow(int)
+	 */
+	@Override
+	protected double getWeightBelow(int index) {
+		return cumulativeWeights[index] - weights[index];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.util.AbstractWeightedTable#indexOf(java.lang.Object)
+	 */
+	@Override
+	protected int indexOf(T object) {
+		Integer column = columns.get(object);
+		return column == null ? -1 : column;
+	}
+
+	/**
+	 * @return the number of objects in the table
+	 */
+	@Override
+	public int size() {
+		return objects.length;
+	}
+
+}
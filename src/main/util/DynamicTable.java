@@ -0,0 +1,328 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.util;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A table for sampling objects with probability proportional to their weight,
+ * where objects may be added and removed and weights may change at any time.
+ * The weights are kept in a Fenwick tree of prefix sums, so draws and updates
+ * both cost O(log n).
+ * <p>
+ * Draws excluding objects are inherited from the base class, with the prefix
+ * sums taken from the tree.
+ * <p>
+ * Updates add and subtract weights in the tree, which accumulates rounding
+ * errors, so the tree is rebuilt from the weights after as many updates as
+ * the table has slots.
+ * 
+ * @see main.util.AbstractWeightedTable
+ * @see main.util.AliasTable
+ * 
+ * @author agent
+ * 
+ * @param <T>
+ *            the type of object stored in the table
+ */
+public class DynamicTable<T> extends AbstractWeightedTable<T> {
+	/**
+	 * The smallest number of slots a table has
+	 */
+	private static final int MIN_CAPACITY = 16;
+
+	/**
+	 * The object in each slot, or null if the slot is free
+	 */
+	private Object[] objects;
+
+	/**
+	 * The weight of each slot, zero if the slot is free
+	 */
+	private double[] weights;
+
+	/**
+	 * The Fenwick tree over the slot weights, indexed from 1. Each entry holds
+	 * the sum of the weights of the slots in the range it is responsible for.
+	 */
+	private double[] tree;
+
+	/**
+	 * The number of slots that were ever used, free slots included
+	 */
+	private int usedSlots;
+
+	/**
+	 * The free slots below usedSlots, reused before new slots are used
+	 */
+	private int[] freeSlots;
+
+	/**
+	 * The number of free slots
+	 */
+	private int freeCount;
+
+	/**
+	 * The number of updates since the tree was last rebuilt
+	 */
+	private int updates;
+
+	/**
+	 * The slot of each object
+	 */
+	private IdentityHashMap<T, Integer> slots;
+
+	/**
+	 * Builds the table in O(n). Weights must not be negative.
+	 * 
+	 * @param objects
+	 *            the objects to sample, without duplicates
+	 * @param weights
+	 *            the weight of each object, in the same order
+	 */
+	public DynamicTable(List<T> objects, double[] weights) {
+		int n = objects.size();
+		int capacity = Math.max(n, MIN_CAPACITY);
+		this.objects = new Object[capacity];
+		this.weights = new double[capacity];
+		freeSlots = new int[capacity];
+		slots = new IdentityHashMap<T, Integer>(capacity);
+		for (int i = 0; i < n; i++) {
+			this.objects[i] = objects.get(i);
+			this.weights[i] = weights[i];
+			slots.put(objects.get(i), i);
+		}
+		usedSlots = n;
+		rebuild();
+	}
+
+	/**
+	 * Sets the weight of the given object, adding the object to the table if
+	 * it is not in it yet.
+	 * 
+	 * @param object
+	 *            the object to update
+	 * @param weight
+	 *            the new weight of the object, not negative
+	 */
+	public void setWeight(T object, double weight) {
+		Integer slot = slots.get(object);
+		if (slot == null) {
+			slot = allocate();
+			objects[slot] = object;
+			slots.put(object, slot);
+		}
+		update(slot, weight);
+	}
+
+	/**
+	 * Removes the given object from the table, if it is in it.
+	 * 
+	 * @param object
+	 *            the object to remove
+	 */
+	public void remove(T object) {
+		Integer slot = slots.remove(object);
+		if (slot != null) {
+			update(slot, 0.0);
+			objects[slot] = null;
+			freeSlots[freeCount++] = slot;
+		}
+	}
+
+	/**
+	 * @param object
+	 *            the object to look up
+	 * @return the weight of the given object, or zero if it is not in the
+	 *         table
+	 */
+	public double getWeight(T object) {
+		Integer slot = slots.get(object);
+		return slot == null ? 0.0 : weights[slot];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.util.AbstractWeightedTable#getTotalWeight()
+	 */
+	@Override
+	public double getTotalWeight() {
+		return prefix(usedSlots);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.util.WeightedTable#sample(java.util.Random)
+	 */
+	@Override
+	public T sample(Random prng) {
+		double total = getTotalWeight();
+		if (total <= 0) {
+			return null;
+		}
+		return find(prng.nextDouble() * total);
+	}
+
+	/**
+	 * @return the number of objects in the table
+	 */
+	@Override
+	public int size() {
+		return slots.size();
+	}
+
+	/**
+	 * @return a free slot, growing the table if there is none
+	 */
+	private int allocate() {
+		if (freeCount > 0) {
+			return freeSlots[--freeCount];
+		}
+		if (usedSlots == objects.length) {
+			int capacity = objects.length * 2;
+			objects = Arrays.copyOf(objects, capacity);
+			weights = Arrays.copyOf(weights, capacity);
+			freeSlots = Arrays.copyOf(freeSlots, capacity);
+			rebuild();
+		}
+		return usedSlots++;
+	}
+
+	/**
+	 * Sets the weight of the given slot and updates the tree.
+	 */
+	private void update(int slot, double weight) {
+		double delta = weight - weights[slot];
+		weights[slot] = weight;
+		if (++updates >= objects.length) {
+			rebuild();
+			return;
+		}
+		for (int i = slot + 1; i < tree.length; i += i & -i) {
+			tree[i] += delta;
+		}
+	}
+
+	/**
+	 * Builds the tree from the slot weights in O(n).
+	 */
+	private void rebuild() {
+		tree = new double[objects.length + 1];
+		for (int i = 1; i < tree.length; i++) {
+			tree[i] += weights[i - 1];
+			int parent = i + (i & -i);
+			if (parent < tree.length) {
+				tree[parent] += tree[i];
+			}
+		}
+		updates = 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.util.AbstractWeightedTable#find(double)
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	protected T find(double draw) {
+		return (T) objects[findSlot(draw)];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.util.AbstractWeightedTable#getWeightAt(int)
+	 */
+	@Override
+	protected double getWeightAt(int index) {
+		return weights[index];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.util.AbstractWeightedTable#getWeightBelow(int)
+	 */
+	@Override
+	protected double getWeightBelow(int index) {
+		return prefix(index);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see main.util.AbstractWeightedTable#indexOf(java.lang.Object)
+	 */
+	@Override
+	protected int indexOf(T object) {
+		Integer slot = slots.get(object);
+		return slot == null ? -1 : slot;
+	}
+
+	/**
+	 * @return the sum of the weights of the slots below the given slot
+	 */
+	private double prefix(int slot) {
+		double sum = 0.0;
+		for (int i = slot; i > 0; i -= i & -i) {
+			sum += tree[i];
+		}
+		return sum;
+	}
+
+	/**
+	 * Finds the slot whose weight interval contains the given draw, by
+	 * descending the tree. A draw that rounding errors put past the last
+	 * weight, or into a free slot, goes to the nearest slot with weight below
+	 * it, or above it if there is none below.
+	 * 
+	 * @param draw
+	 *            a value between zero and the total weight
+	 * @return the slot containing the draw
+	 */
+	private int findSlot(double draw) {
+		int position = 0;
+		for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+			int next = position + step;
+			if (next < tree.length && tree[next] <= draw) {
+				position = next;
+				draw -= tree[next];
+			}
+		}
+		// position is the number of slots whose weights are all at or below
+		// the draw, so it is the slot containing the draw
+		int slot = Math.min(position, usedSlots - 1);
+		while (slot > 0 && weights[slot] <= 0) {
+			slot--;
+		}
+		while (slot < usedSlots - 1 && weights[slot] <= 0) {
+			slot++;
+		}
+		return slot;
+	}
+
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package main.util;
+
+import java.util.Random;
+
+/**
+ * A table for sampling objects with probability proportional to their weight.
+ * 
+ * @author agent
+ * 
+ * @param <T>
+ *            the type of object stored in the table
+ */
+public interface WeightedTable<T> {
+
+	/**
+	 * Draws an object with probability proportional to its weight.
+	 * 
+	 * @param prng
+	 *            the source of randomness
+	 * @return the sampled object
+	 */
+	public T sample(Random prng);
+
+	/**
+	 * Draws an object that is none of the given ones, with probability
+	 * proportional to its weight among the remaining objects.
+	 * 
+	 * @param prng
+	 *            the source of randomness
+	 * @param first
+	 *            an object to exclude, or null
+	 * @param second
+	 *            an object to exclude, or null
+	 * @param third
+	 *            an object to exclude, or null
+	 * @return the sampled object, or null if no object with a positive weight
+	 *         remains
+	 */
+	public T sampleExcluding(Random prng, T first, T second, T third);
+
+	/**
+	 * @return the number of objects in the table
+	 */
+	public int size();
+
+}
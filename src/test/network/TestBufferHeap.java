@@ -0,0 +1,131 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package test.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import main.network.Buffer;
+import main.network.BufferHeap;
+import main.network.SchedulingRing;
+import main.network.WfqBuffer;
+import main.node.Server;
+import main.scheduling.FirstComeFirstServedScheduler;
+import main.scheduling.Scheduler.Priority;
+
+import org.junit.Test;
+
+/**
+ * @author agent
+ */
+public class TestBufferHeap {
+
+	private Server node = new Server(null,
+			new FirstComeFirstServedScheduler(), 1000, 1000);
+	private SchedulingRing ring = new SchedulingRing();
+
+	/**
+	 * Removes all buffers from the heap, checking they come out in order of
+	 * key and ID.
+	 */
+	private int drain(BufferHeap heap) {
+		int count = 0;
+		double lastKey = Double.NEGATIVE_INFINITY;
+		int lastId = -1;
+		while (!heap.isEmpty()) {
+			Buffer b = heap.peek();
+			double key = heap.peekKey();
+			assertTrue(key > lastKey || (key == lastKey && b.getId() > lastId));
+			assertEquals(key, heap.remove(b), 0);
+			assertFalse(heap.contains(b));
+			lastKey = key;
+			lastId = b.getId();
+			count++;
+		}
+		assertSame(null, heap.peek());
+		return count;
+	}
+
+	/**
+	 * Test method for {@link main.network.BufferHeap}.
+	 */
+	@Test
+	public void testOrder() {
+		Random random = new Random(1);
+		BufferHeap heap = new BufferHeap(0);
+		ArrayList<Buffer> buffers = new ArrayList<Buffer>();
+		for (int i = 0; i < 200; i++) {
+			Buffer b = new WfqBuffer(Buffer.nextId(), Priority.NORMAL, node,
+					ring);
+			buffers.add(b);
+			// few distinct keys so that ties occur
+			heap.add(b, random.nextInt(20));
+		}
+		assertEquals(200, heap.size());
+
+		// remove and update arbitrary buffers
+		for (int i = 0; i < 50; i++) {
+			heap.remove(buffers.get(i * 4));
+			heap.update(buffers.get(i * 4 + 1), random.nextInt(40) - 10);
+		}
+		heap.scaleKeys(0.5);
+		assertTrue(heap.contains(buffers.get(1)));
+		assertFalse(heap.contains(buffers.get(0)));
+
+		// a walk visits the buffers in the order they are removed
+		ArrayList<Buffer> walked = new ArrayList<Buffer>();
+		heap.startWalk();
+		for (Buffer b = heap.nextInWalk(); b != null; b = heap.nextInWalk()) {
+			walked.add(b);
+		}
+		assertEquals(150, walked.size());
+		for (Buffer b : walked) {
+			assertSame(b, heap.peek());
+			heap.remove(b);
+		}
+		assertEquals(0, drain(heap));
+	}
+
+	/**
+	 * Test method for {@link main.network.BufferHeap} with a buffer in two
+	 * heaps.
+	 */
+	@Test
+	public void testSlots() {
+		BufferHeap first = new BufferHeap(0);
+		BufferHeap second = new BufferHeap(1);
+		for (int i = 0; i < 50; i++) {
+			Buffer b = new WfqBuffer(Buffer.nextId(), Priority.NORMAL, node,
+					ring);
+			first.add(b, i);
+			second.add(b, -i);
+		}
+		assertEquals(-49, second.peekKey(), 0);
+		assertEquals(50, drain(first));
+		assertEquals(50, drain(second));
+	}
+
+}
@@ -0,0 +1,309 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package test.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import main.network.Circuit;
+import main.network.Datagram;
+import main.network.Reply;
+import main.network.Request;
+import main.network.Datagram.SendmeType;
+import main.node.BufferPolicy;
+import main.node.Client;
+import main.node.Directory;
+import main.node.Node;
+import main.node.Relay;
+import main.node.Server;
+import main.resource.Configuration;
+import main.resource.Consensus;
+import main.resource.Distribution;
+import main.scheduling.DeficitRoundRobinScheduler;
+import main.scheduling.ExponentialWeightedMovingAverageScheduler;
+import main.scheduling.Scheduler;
+import main.scheduling.SchedulerFactory;
+import main.scheduling.WeightedFairQueueingScheduler;
+import main.scheduling.Scheduler.Priority;
+import main.system.Driver;
+import main.util.Generator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author agent
+ */
+public class TestCircuit {
+
+	/**
+	 * The time of the test, after the end of the simulation clock, so the
+	 * events of sent datagrams are dropped
+	 */
+	private static final long TIME = 1;
+
+	/**
+	 * The directory of the relays of the circuits
+	 */
+	private Directory directory;
+
+	@Before
+	public void setUp() throws Exception {
+		String filename = "config_default.properties";
+		Configuration.Configure(Configuration.class
+				.getResourceAsStream(filename), filename);
+		Configuration.SERVERS = 1;
+		Configuration.NORMAL_RELAYS = 4;
+		Configuration.EXIT_RELAYS = 4;
+		Configuration.WEB_CLIENTS = 0;
+		Configuration.WEB_RELAYS = 0;
+		Configuration.WEB_EXIT_RELAYS = 0;
+		Configuration.FS_CLIENTS = 0;
+		Configuration.FS_RELAYS = 0;
+		Configuration.FS_EXIT_RELAYS = 0;
+		Consensus.reset();
+		Distribution.initialize();
+		Generator.getInstance().init(1);
+	}
+
+	/**
+	 * Creates a directory with a web client, whose relays and client use the
+	 * buffer policy of the given algorithm and a scheduler created by the
+	 * given factory. The scheduler factory is registered under a test name.
+	 * 
+	 * @return the web client
+	 */
+	private Client createClient(final String algorithm,
+			final SchedulerFactory schedulers) {
+		SchedulerFactory.register("TEST-" + algorithm, new SchedulerFactory() {
+			@Override
+			public BufferPolicy createBufferPolicy() {
+				return SchedulerFactory.getFactory(algorithm)
+						.createBufferPolicy();
+			}
+
+			@Override
+			public Scheduler createScheduler() {
+				return schedulers.createScheduler();
+			}
+		});
+		Configuration.SCHEDULER_NAME = "TEST-" + algorithm;
+		Configuration.WEB_CLIENTS = 1;
+		directory = new Directory();
+		for (Node node : directory.getNodes()) {
+			if (node instanceof Client) {
+				return (Client) node;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Sends a cell of the given circuit from the given client, counting it in
+	 * the Driver as the client does.
+	 */
+	private void sendCell(Client client, Circuit circuit) {
+		Request request = new Request(0, null, null, 1000, 1000, false);
+		request.setCircuit(circuit);
+		Datagram cell = new Datagram(request, true, 498);
+		cell.setHop(Circuit.ENTRY_HOP);
+		Driver.getInstance().incrementDataCount(Priority.NORMAL);
+		client.send(TIME, cell);
+	}
+
+	/**
+	 * Queues cells of two circuits at a client, reclaims one of them, and
+	 * drains the other with the given scheduler. The nodes share the
+	 * scheduler, but only the client uses it, since the relays never receive
+	 * the cells. Each scheduling decision must send a cell of the remaining
+	 * circuit, and the counters of the ring and the Driver must not count the
+	 * dropped cells twice.
+	 */
+	private void assertReclaimQueued(String algorithm,
+			final Scheduler scheduler) {
+		Client client = createClient(algorithm, new SchedulerFactory() {
+			@Override
+			public BufferPolicy createBufferPolicy() {
+				return null;
+			}
+
+			@Override
+			public Scheduler createScheduler() {
+				return scheduler;
+			}
+		});
+		Circuit reclaimed = new Circuit(client, directory);
+		Circuit remaining = new Circuit(client, directory);
+		long count = Driver.getInstance().getDataCount(Priority.NORMAL);
+
+		// the first cell keeps the network busy, so the others are queued
+		sendCell(client, remaining);
+		for (int i = 0; i < 3; i++) {
+			sendCell(client, reclaimed);
+		}
+		for (int i = 0; i < 2; i++) {
+			sendCell(client, remaining);
+		}
+		assertEquals(5, client.getSchedulingRing().getDataCount());
+
+		reclaimed.reclaim(TIME);
+		assertEquals(2, client.getSchedulingRing().getDataCount());
+		assertEquals(count + 3, Driver.getInstance().getDataCount(
+				Priority.NORMAL));
+
+		// no decision is spent on the buffer of the reclaimed circuit
+		for (int i = 1; i >= 0; i--) {
+			scheduler.schedule(TIME, client.getSchedulingRing());
+			assertEquals(i, client.getSchedulingRing().getDataCount());
+		}
+
+		// the next hop counts off each datagram sent
+		for (int i = 0; i < 3; i++) {
+			Driver.getInstance().decrementDataCount(Priority.NORMAL);
+		}
+		assertEquals(count, Driver.getInstance().getDataCount(Priority.NORMAL));
+	}
+
+	/**
+	 * Test method for {@link main.network.Circuit#reclaim(long)}.
+	 */
+	@Test
+	public void testReclaim() {
+		Client client = createClient("EWMA", SchedulerFactory
+				.getFactory("EWMA"));
+		Circuit circuit = new Circuit(client, directory);
+		Request request = new Request(0, null, null, 1000, 1000, false);
+		request.setCircuit(circuit);
+		request.setPriority(Priority.LOW_LATENCY);
+		long count = Driver.getInstance().getMessageCount(
+				Priority.LOW_LATENCY);
+		long normal = Driver.getInstance().getMessageCount(Priority.NORMAL);
+		Driver.getInstance().incrementMessageCount(Priority.LOW_LATENCY);
+		circuit.clientAddedRequest(request);
+		circuit.setZombie(TIME, true);
+		assertTrue(circuit.hasOutstandingData());
+		assertEquals(2000, circuit.getBytesInFlight());
+
+		circuit.reclaim(TIME);
+		assertTrue(circuit.isReclaimed());
+		assertFalse(circuit.hasOutstandingData());
+		assertEquals(0, circuit.getBytesInFlight());
+		assertEquals(count, Driver.getInstance().getMessageCount(
+				Priority.LOW_LATENCY));
+		assertEquals(normal, Driver.getInstance().getMessageCount(
+				Priority.NORMAL));
+	}
+
+	/**
+	 * Test method for {@link main.network.Circuit#reclaim(long)} with queued
+	 * cells under EWMA.
+	 */
+	@Test
+	public void testReclaimQueuedEwma() {
+		assertReclaimQueued("EWMA",
+				new ExponentialWeightedMovingAverageScheduler());
+	}
+
+	/**
+	 * Test method for {@link main.network.Circuit#reclaim(long)} with queued
+	 * cells under WFQ.
+	 */
+	@Test
+	public void testReclaimQueuedWfq() {
+		assertReclaimQueued("WFQ", new WeightedFairQueueingScheduler());
+	}
+
+	/**
+	 * Test method for {@link main.network.Circuit#reclaim(long)} with queued
+	 * cells under DRR.
+	 */
+	@Test
+	public void testReclaimQueuedDrr() {
+		assertReclaimQueued("DRR", new DeficitRoundRobinScheduler());
+	}
+
+	/**
+	 * Sends a SENDME cell of the given type from the client of the given
+	 * circuit to its exit, counting it in the Driver as the client does.
+	 */
+	private void sendSendme(Circuit circuit, Reply reply, SendmeType type) {
+		Datagram sendme = circuit.createClientSendme(reply, type);
+		sendme.setHop(Circuit.TO_EXIT_HOP);
+		Driver.getInstance().incrementDataCount(Priority.NORMAL);
+		((Relay) circuit.getNode(Circuit.TO_EXIT_HOP + 1)).receive(TIME,
+				sendme);
+	}
+
+	/**
+	 * Test method for {@link main.node.Server#packageReplies(long, Circuit)}
+	 * and the SENDME handling of the exit. The server stops providing reply
+	 * data when the circuit window closes, and provides more once the exit
+	 * consumes a circuit SENDME. Stream SENDMEs open the stream window.
+	 */
+	@Test
+	public void testSendme() {
+		Configuration.NETWORK_FLOW_CONTROL = true;
+		Configuration.CIRCUIT_WINDOW = 4;
+		Configuration.CIRCUIT_SENDME_INCREMENT = 2;
+		Client client = createClient("RR", SchedulerFactory.getFactory("RR"));
+		Server server = null;
+		for (Node node : directory.getNodes()) {
+			if (node instanceof Server) {
+				server = (Server) node;
+			}
+		}
+		Circuit circuit = new Circuit(client, server, directory);
+		Request request = new Request(0, null, server, 1000,
+				10 * Datagram.MAX_PAYLOAD_LENGTH, false);
+		request.setCircuit(circuit);
+		Reply reply = new Reply(0, request);
+		circuit.addUnpackagedReply(reply);
+		long count = Driver.getInstance().getDataCount(Priority.NORMAL);
+
+		// the server provides data as its network sends it, so the Driver
+		// counts what it provided
+		server.packageReplies(TIME, circuit);
+		assertEquals(count + 4, Driver.getInstance().getDataCount(
+				Priority.NORMAL));
+		assertFalse(circuit.getDownstreamWindow().canPackage());
+
+		// the exit consumes the circuit SENDME and the server resumes
+		sendSendme(circuit, reply, SendmeType.CIRCUIT);
+		assertEquals(count + 6, Driver.getInstance().getDataCount(
+				Priority.NORMAL));
+		assertFalse(circuit.getDownstreamWindow().canPackage());
+		Relay exit = (Relay) circuit.getNode(Circuit.TO_EXIT_HOP + 1);
+		assertTrue(exit.getSchedulingRing().hasNoData());
+		assertFalse(circuit.hasOutstandingData());
+
+		// the exit consumes the stream SENDME, which opens the stream window
+		int window = reply.getStreamWindow().getPackageWindow();
+		sendSendme(circuit, reply, SendmeType.STREAM);
+		assertEquals(window + Configuration.STREAM_SENDME_INCREMENT, reply
+				.getStreamWindow().getPackageWindow());
+		assertTrue(exit.getSchedulingRing().hasNoData());
+		assertFalse(circuit.hasOutstandingData());
+		assertEquals(count + 6, Driver.getInstance().getDataCount(
+				Priority.NORMAL));
+	}
+
+}
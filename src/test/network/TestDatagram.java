@@ -0,0 +1,92 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package test.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import main.network.Datagram;
+import main.network.Datagram.SendmeType;
+import main.network.Reply;
+import main.network.Request;
+
+import org.junit.Test;
+
+/**
+ * @author agent
+ */
+public class TestDatagram {
+
+	private Request request = new Request(0, null, null, 1000, 1000, false);
+	private Reply reply = new Reply(0, request);
+
+	/**
+	 * Test method for the packed flags, hop index and piece size of
+	 * {@link main.network.Datagram}.
+	 */
+	@Test
+	public void testPackedFields() {
+		Datagram d = new Datagram(request, reply, false,
+				Datagram.MAX_PAYLOAD_LENGTH);
+		assertEquals(Datagram.MAX_PAYLOAD_LENGTH, d.getSize());
+		assertFalse(d.isCell());
+		assertFalse(d.isPhantom());
+		assertFalse(d.isSendme());
+		assertEquals(0, d.getHop());
+
+		for (int hop = 0; hop < 8; hop++) {
+			d.setHop(hop);
+			d.setCell(hop % 2 == 0);
+			assertEquals(hop, d.getHop());
+			assertEquals(hop % 2 == 0, d.isCell());
+			assertEquals(Datagram.MAX_PAYLOAD_LENGTH, d.getPieceSize());
+		}
+		d.setPhantom();
+		assertTrue(d.isPhantom());
+		assertEquals(7, d.getHop());
+		assertEquals(Datagram.MAX_PAYLOAD_LENGTH, d.getSize());
+	}
+
+	/**
+	 * Test method for the message of {@link main.network.Datagram}.
+	 */
+	@Test
+	public void testMessage() {
+		Datagram d = new Datagram(request, true, 10);
+		assertSame(request, d.getMessage());
+		assertSame(request, d.getRequest());
+		assertSame(null, d.getReply());
+		assertEquals(Datagram.CELL_LENGTH, d.getSize());
+
+		d = new Datagram(request, reply, true, 10);
+		assertSame(reply, d.getMessage());
+		assertSame(request, d.getRequest());
+		assertSame(reply, d.getReply());
+
+		d = new Datagram(request, null, SendmeType.CIRCUIT);
+		assertSame(request, d.getMessage());
+		assertEquals(SendmeType.CIRCUIT, d.getSendme());
+		assertEquals(0, d.getPieceSize());
+		assertEquals(Datagram.CELL_LENGTH, d.getSize());
+	}
+
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package test.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import main.network.Datagram;
+import main.network.Datagram.SendmeType;
+import main.network.DatagramQueue;
+import main.network.DatagramRing;
+import main.network.OffHeapDatagramQueue;
+import main.network.Reply;
+import main.network.Request;
+
+import org.junit.Test;
+
+/**
+ * @author agent
+ */
+public class TestDatagramQueue {
+
+	private Request request = new Request(0, null, null, 1000, 1000, false);
+	private Reply reply = new Reply(0, request);
+
+	private Datagram createDatagram(int pieceSize, long arrival) {
+		Datagram d = new Datagram(request, reply, pieceSize % 2 == 0, pieceSize);
+		d.setHop(3);
+		d.setQueueArrivalTime(arrival);
+		return d;
+	}
+
+	/**
+	 * Adds and removes datagrams so the queue wraps around, grows and shrinks,
+	 * checking order and arrival times.
+	 */
+	private void checkFifo(DatagramQueue queue) {
+		int added = 0, removed = 0;
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 37; i++, added++) {
+				queue.addLast(createDatagram(added % 400, 1000L * added));
+			}
+			for (int i = 0; i < 30; i++, removed++) {
+				assertEquals(1000L * removed, queue.peekFirstArrivalTime());
+				Datagram d = queue.removeFirst();
+				assertEquals(removed % 400, d.getPieceSize());
+				assertEquals(1000L * removed, d.getQueueArrivalTime());
+			}
+			assertEquals(added - removed, queue.size());
+			assertEquals((added - 1) % 400, queue.peek(added - removed - 1)
+					.getPieceSize());
+		}
+		while (!queue.isEmpty()) {
+			assertEquals(removed++ % 400, queue.removeFirst().getPieceSize());
+		}
+		assertEquals(added, removed);
+		assertTrue(queue.peekFirst() == null);
+	}
+
+	/**
+	 * Test method for {@link main.network.DatagramRing}.
+	 */
+	@Test
+	public void testDatagramRing() {
+		DatagramRing ring = new DatagramRing();
+		checkFifo(ring);
+		assertEquals(8, ring.getCapacity());
+
+		Datagram d = createDatagram(10, 5);
+		ring.addLast(d);
+		assertSame(d, ring.peekFirst());
+		assertSame(d, ring.removeFirst());
+	}
+
+	/**
+	 * Test method for {@link main.network.OffHeapDatagramQueue}.
+	 */
+	@Test
+	public void testOffHeapDatagramQueue() {
+		OffHeapDatagramQueue queue = new OffHeapDatagramQueue();
+		checkFifo(queue);
+
+		// a drained queue returns its memory to the pool, and the next queue
+		// reuses it
+		assertEquals(0, queue.getCapacity());
+		checkFifo(new OffHeapDatagramQueue());
+
+		// rebuilt datagrams keep all their fields
+		Datagram data = new Datagram(request, false, 100);
+		data.setHop(6);
+		data.setPhantom();
+		Datagram sendme = new Datagram(request, reply, SendmeType.STREAM);
+		queue.addLast(data);
+		queue.addLast(sendme);
+
+		// single fields are peeked from the records
+		assertSame(request, queue.peekMessage(0));
+		assertSame(reply, queue.peekMessage(1));
+		assertEquals(6, queue.peekHop(0));
+		assertEquals(100, queue.peekSize(0));
+		assertEquals(Datagram.CELL_LENGTH, queue.peekSize(1));
+		assertTrue(queue.peekPhantom(0));
+		assertTrue(!queue.peekPhantom(1));
+
+		Datagram d = queue.removeFirst();
+		assertSame(request, d.getRequest());
+		assertSame(request, d.getMessage());
+		assertEquals(6, d.getHop());
+		assertEquals(100, d.getSize());
+		assertTrue(d.isPhantom());
+		assertTrue(!d.isSendme());
+
+		d = queue.removeFirst();
+		assertSame(reply, d.getReply());
+		assertEquals(SendmeType.STREAM, d.getSendme());
+		assertEquals(Datagram.CELL_LENGTH, d.getSize());
+		assertEquals(0, d.getHop());
+	}
+
+}
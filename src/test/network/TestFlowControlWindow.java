@@ -0,0 +1,80 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package test.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import main.network.FlowControlWindow;
+
+import org.junit.Test;
+
+/**
+ * @author agent
+ */
+public class TestFlowControlWindow {
+
+	/**
+	 * Test method for {@link main.network.FlowControlWindow#delivered()}.
+	 */
+	@Test
+	public void testDelivered() {
+		FlowControlWindow window = new FlowControlWindow(1000, 100);
+		for (int i = 1; i <= 2000; i++) {
+			assertEquals(i % 100 == 0, window.delivered());
+		}
+
+		// the window is independent of its increment
+		window = new FlowControlWindow(500, 50);
+		int sendmes = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (window.delivered()) {
+				sendmes++;
+			}
+		}
+		assertEquals(20, sendmes);
+	}
+
+	/**
+	 * Test method for {@link main.network.FlowControlWindow#canPackage()}.
+	 */
+	@Test
+	public void testPackaging() {
+		FlowControlWindow window = new FlowControlWindow(1000, 100);
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(window.canPackage());
+			window.packaged();
+		}
+		assertFalse(window.canPackage());
+		assertEquals(0, window.getPackageWindow());
+
+		// each SENDME lets the edge package one more increment
+		for (int sendme = 0; sendme < 3; sendme++) {
+			window.receivedSendme();
+			for (int i = 0; i < 100; i++) {
+				assertTrue(window.canPackage());
+				window.packaged();
+			}
+			assertFalse(window.canPackage());
+		}
+	}
+
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package test.network;
+
+import static org.junit.Assert.assertTrue;
+import main.network.Buffer;
+import main.network.BufferFactory;
+import main.network.Datagram;
+import main.network.DrrBuffer;
+import main.network.EwmaBuffer;
+import main.network.HpdBuffer;
+import main.network.Reply;
+import main.network.Request;
+import main.network.RingBuffer;
+import main.network.SchedulingRing;
+import main.network.WfqBuffer;
+import main.node.Server;
+import main.scheduling.FirstComeFirstServedScheduler;
+import main.scheduling.Scheduler.Priority;
+
+import org.junit.Test;
+
+/**
+ * Measures the heap taken by simulator objects, by allocating many of them
+ * and comparing the heap used before and after.
+ * 
+ * @author agent
+ */
+public class TestFootprint {
+
+	/**
+	 * The number of objects allocated for each measurement
+	 */
+	private static final int COUNT = 1000000;
+
+	private Request request = new Request(0, null, null, 1000, 1000, false);
+	private Reply reply = new Reply(0, request);
+	private Server node = new Server(null,
+			new FirstComeFirstServedScheduler(), 1000, 1000);
+	private SchedulingRing ring = new SchedulingRing();
+
+	/**
+	 * The fields of a datagram before they were packed into a compact layout
+	 */
+	@SuppressWarnings("unused")
+	private static class LegacyDatagram {
+		private Object channel;
+		private boolean isCell;
+		private int pieceSize;
+		private long queueArrivalTime;
+		private Reply reply;
+		private Request request;
+		private boolean isPhantom;
+
+		private LegacyDatagram(Request request, Reply reply, boolean isCell,
+				int pieceSize) {
+			this.request = request;
+			this.reply = reply;
+			this.isCell = isCell;
+			this.pieceSize = pieceSize;
+		}
+	}
+
+	/**
+	 * The fields of a buffer when it held the state of every scheduler
+	 */
+	@SuppressWarnings("unused")
+	private static class LegacyBuffer {
+		private Object data;
+		private int id;
+		private Object network;
+		private Priority priority;
+		private SchedulingRing ring;
+		private LegacyBuffer ringNext;
+		private LegacyBuffer ringPrevious;
+		private boolean dynamic;
+		private int firstHeapIndex;
+		private int secondHeapIndex;
+		private double ewma;
+		private long ewmaLastAdjustedInterval;
+		private long hpdTotalSentPacketDelay;
+		private long hpdTotalSentPackets;
+		private int drrDeficit;
+		private double wfqFinish;
+		private double wfqStart;
+		private double wfqWeight;
+
+		private LegacyBuffer(int id, Priority priority, SchedulingRing ring) {
+			this.id = id;
+			this.priority = priority;
+			this.ring = ring;
+			firstHeapIndex = -1;
+			secondHeapIndex = -1;
+		}
+	}
+
+	/**
+	 * Creates an object to measure.
+	 */
+	private interface Allocator {
+		Object allocate(int i);
+	}
+
+	/**
+	 * @return the bytes of heap in use after collecting garbage
+	 */
+	private static long getUsedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * @return the average number of bytes of heap taken by each of COUNT
+	 *         objects created by the given allocator
+	 */
+	private static double measure(Allocator allocator) {
+		Object[] objects = new Object[COUNT];
+		long before = getUsedHeap();
+		for (int i = 0; i < COUNT; i++) {
+			objects[i] = allocator.allocate(i);
+		}
+		long after = getUsedHeap();
+		assertTrue(objects[COUNT - 1] != null);
+		return (double) (after - before) / COUNT;
+	}
+
+	/**
+	 * Test method for the layout of {@link main.network.Datagram}. The compact
+	 * layout must take less heap than the legacy layout.
+	 */
+	@Test
+	public void testDatagram() {
+		double legacy = measure(new Allocator() {
+			public Object allocate(int i) {
+				return new LegacyDatagram(request, reply, true, 498);
+			}
+		});
+		double compact = measure(new Allocator() {
+			public Object allocate(int i) {
+				return new Datagram(request, reply, true, 498);
+			}
+		});
+		assertTrue(compact < legacy);
+	}
+
+	/**
+	 * @return the average number of bytes of heap taken by each of COUNT
+	 *         empty buffers created by the given factory, without their
+	 *         queues
+	 */
+	private double measure(final BufferFactory factory) {
+		return measure(new Allocator() {
+			public Object allocate(int i) {
+				Buffer buffer = factory.createBuffer(i, Priority.NORMAL, node,
+						ring, false);
+				buffer.releaseStorage();
+				return buffer;
+			}
+		});
+	}
+
+	/**
+	 * Test method for the buffers of each scheduling algorithm. Every buffer
+	 * must take less heap than a buffer holding the state of all schedulers.
+	 */
+	@Test
+	public void testBuffer() {
+		double legacy = measure(new Allocator() {
+			public Object allocate(int i) {
+				return new LegacyBuffer(i, Priority.NORMAL, ring);
+			}
+		});
+		BufferFactory[] factories = { RingBuffer.FACTORY, EwmaBuffer.FACTORY,
+				WfqBuffer.FACTORY, DrrBuffer.FACTORY, HpdBuffer.FACTORY };
+		for (BufferFactory factory : factories) {
+			double slim = measure(factory);
+			assertTrue(slim + " >= " + legacy, slim < legacy);
+		}
+	}
+
+}
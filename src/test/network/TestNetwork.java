@@ -0,0 +1,114 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package test.network;
+
+import static org.junit.Assert.assertEquals;
+import main.network.Buffer;
+import main.network.CellTrain;
+import main.network.Datagram;
+import main.network.Request;
+import main.network.RingBuffer;
+import main.node.Server;
+import main.scheduling.FirstComeFirstServedScheduler;
+import main.scheduling.Scheduler.Priority;
+
+import org.junit.Test;
+
+/**
+ * @author agent
+ */
+public class TestNetwork {
+
+	/**
+	 * The network latency in nanoseconds
+	 */
+	private static final long LATENCY = 100000000L;
+
+	private Request request = new Request(0, null, null, 1000, 1000, false);
+
+	/**
+	 * Sends a train of the given length from a sender with the given upstream
+	 * bandwidth to a receiver with the given downstream bandwidth, and
+	 * compares the delivery times to those of the single datagram path.
+	 */
+	private void assertSameDeliveries(int length, int upstream, int downstream) {
+		Server sender = new Server(null, new FirstComeFirstServedScheduler(),
+				upstream, upstream);
+		Server receiver = new Server(null,
+				new FirstComeFirstServedScheduler(), downstream, downstream);
+		int timeToSendOneByte = 8000000 / upstream;
+		int timeToReceiveOneByte = 8000000 / downstream;
+
+		// the buffer is uncontended, so the train departs back-to-back
+		Buffer buffer = new RingBuffer(Priority.NORMAL, sender, sender
+				.getSchedulingRing());
+		for (int i = 0; i < length; i++) {
+			buffer.enqueue(0, new Datagram(request, true, 10));
+		}
+		CellTrain train = new CellTrain(sender.getNetwork(), buffer, buffer
+				.dequeue(0), 0, timeToSendOneByte, LATENCY, length);
+		while (train.hasPlannedDepartures()) {
+			train.add(buffer.dequeue(train.getNextDepartureTime()));
+		}
+		long[] deliveries = receiver.getNetwork().getDeliveryTimes(LATENCY,
+				train);
+		assertEquals(train.size(), deliveries.length);
+
+		// each datagram is received on its own, counting the bytes of
+		// earlier datagrams that have not been delivered when it arrives
+		long[] expected = new long[train.size()];
+		for (int i = 0; i < expected.length; i++) {
+			Datagram data = train.getCells().get(i);
+			long arrival = LATENCY + train.getDepartureTime(i);
+			int incomming = data.getSize();
+			for (int j = 0; j < i; j++) {
+				if (expected[j] > arrival) {
+					incomming += train.getCells().get(j).getSize();
+				}
+			}
+			long senderDelay = data.getSize() * timeToSendOneByte;
+			long receiverDelay = incomming * timeToReceiveOneByte;
+			expected[i] = arrival + Math.max(senderDelay, receiverDelay);
+			assertEquals(expected[i], deliveries[i]);
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link main.network.Network#getDeliveryTimes(long, CellTrain)} with a
+	 * receiver that is slower than the sender.
+	 */
+	@Test
+	public void testSlowReceiver() {
+		assertSameDeliveries(16, 1000, 300);
+	}
+
+	/**
+	 * Test method for
+	 * {@link main.network.Network#getDeliveryTimes(long, CellTrain)} with a
+	 * receiver that is faster than the sender.
+	 */
+	@Test
+	public void testFastReceiver() {
+		assertSameDeliveries(16, 1000, 5000);
+	}
+
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package test.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeSet;
+
+import main.network.Buffer;
+import main.network.RingBuffer;
+import main.network.SchedulingRing;
+import main.node.Server;
+import main.scheduling.FirstComeFirstServedScheduler;
+import main.scheduling.Scheduler.Priority;
+
+import org.junit.Test;
+
+/**
+ * @author agent
+ */
+public class TestSchedulingRing {
+
+	private Server node = new Server(null,
+			new FirstComeFirstServedScheduler(), 1000, 1000);
+
+	/**
+	 * Checks that the ring holds the buffers with the given IDs in circular
+	 * order of IDs, starting after the given CURRENT buffer.
+	 */
+	private void assertSameRing(TreeSet<Integer> ids,
+			ArrayList<Buffer> buffers, Buffer current, SchedulingRing ring) {
+		assertEquals(ids.size(), ring.size());
+		assertEquals(ids.isEmpty(), ring.isEmpty());
+		assertSame(current, ring.current());
+		for (int i = 0; i < ids.size(); i++) {
+			current = buffers.get(next(ids, current.getId()));
+			assertSame(current, ring.advance());
+		}
+	}
+
+	/**
+	 * @return the ID following the given ID in circular order
+	 */
+	private int next(TreeSet<Integer> ids, int id) {
+		Integer next = ids.higher(id);
+		return next == null ? ids.first() : next;
+	}
+
+	/**
+	 * Test method for {@link main.network.SchedulingRing}.
+	 */
+	@Test
+	public void testOrder() {
+		SchedulingRing ring = new SchedulingRing();
+		ArrayList<Buffer> buffers = new ArrayList<Buffer>();
+		for (int i = 0; i < 10; i++) {
+			buffers.add(new RingBuffer(Priority.NORMAL, node, ring));
+		}
+		ring.addInOrder(buffers.get(5));
+		ring.addInOrder(buffers.get(2));
+		ring.addInOrder(buffers.get(8));
+		ring.addInOrder(buffers.get(0));
+		ring.addInOrder(buffers.get(9));
+		ring.addInOrder(buffers.get(6));
+		assertSame(buffers.get(5), ring.current());
+		int[] order = { 6, 8, 9, 0, 2, 5 };
+		for (int i : order) {
+			assertSame(buffers.get(i), ring.advance());
+		}
+
+		// removing the current buffer advances the pointer
+		ring.remove(buffers.get(5));
+		assertSame(buffers.get(6), ring.current());
+		assertTrue(!ring.contains(buffers.get(5)));
+		assertEquals(5, ring.size());
+
+		// removing a buffer that is not in the ring has no effect
+		ring.remove(buffers.get(5));
+		assertEquals(5, ring.size());
+		assertSame(buffers.get(6), ring.current());
+	}
+
+	/**
+	 * Test method for {@link main.network.SchedulingRing}, comparing random
+	 * operations to a sorted set of IDs.
+	 */
+	@Test
+	public void testRandom() {
+		Random random = new Random(1);
+		SchedulingRing ring = new SchedulingRing();
+		TreeSet<Integer> ids = new TreeSet<Integer>();
+		ArrayList<Buffer> buffers = new ArrayList<Buffer>();
+		Buffer current = null;
+		for (int i = 0; i < 50; i++) {
+			buffers.add(new RingBuffer(Priority.NORMAL, node, ring));
+		}
+		// buffer IDs are global, so index the buffers by ID
+		int offset = buffers.get(0).getId();
+		ArrayList<Buffer> byId = new ArrayList<Buffer>();
+		for (int i = 0; i < offset; i++) {
+			byId.add(null);
+		}
+		byId.addAll(buffers);
+
+		for (int i = 0; i < 10000; i++) {
+			Buffer b = buffers.get(random.nextInt(buffers.size()));
+			int op = random.nextInt(3);
+			if (op == 0) {
+				if (current != null) {
+					current = byId.get(next(ids, current.getId()));
+				}
+				assertSame(current, ring.advance());
+			} else if (!ring.contains(b)) {
+				ring.addInOrder(b);
+				ids.add(b.getId());
+				if (current == null) {
+					current = b;
+				}
+			} else {
+				ring.remove(b);
+				if (current == b) {
+					current = ids.size() == 1 ? null : byId.get(next(ids,
+							b.getId()));
+				}
+				ids.remove(b.getId());
+			}
+			if (current != null) {
+				assertSameRing(ids, byId, current, ring);
+			}
+		}
+	}
+
+}
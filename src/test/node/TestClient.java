@@ -0,0 +1,132 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package test.node;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import main.network.Buffer;
+import main.network.Datagram;
+import main.network.Request;
+import main.network.RingBuffer;
+import main.node.Client;
+import main.resource.Configuration;
+import main.scheduling.SchedulerFactory;
+import main.scheduling.Scheduler.Priority;
+import main.system.Driver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author agent
+ */
+public class TestClient {
+
+	/**
+	 * The bandwidth of the clients, in kbps
+	 */
+	private static final int BANDWIDTH = 1000;
+
+	private Request request = new Request(0, null, null, 1000, 1000, false);
+
+	@Before
+	public void setUp() {
+		Configuration.HIBERNATE_CLIENTS = true;
+	}
+
+	@After
+	public void tearDown() {
+		Configuration.HIBERNATE_CLIENTS = false;
+		Configuration.NETWORK_HOP_TRANSFERS = false;
+	}
+
+	/**
+	 * Creates a client using the scheduler and buffer policy of the given
+	 * algorithm.
+	 */
+	private Client createClient(String algorithm) {
+		SchedulerFactory factory = SchedulerFactory.getFactory(algorithm);
+		return new Client(null, factory.createScheduler(), factory
+				.createBufferPolicy(), BANDWIDTH, BANDWIDTH, null);
+	}
+
+	/**
+	 * Test method for {@link main.node.Client#hibernate(long)} with the
+	 * default HPD scheduler, whose buffers keep state while empty.
+	 */
+	@Test
+	public void testHibernate() {
+		Client client = createClient("HPD");
+		long count = Driver.getInstance().getHibernationCount();
+		client.hibernate(0);
+		assertTrue(client.isHibernating());
+		assertEquals(count + 1, Driver.getInstance().getHibernationCount());
+
+		// a hibernating client is not counted again
+		client.hibernate(0);
+		assertEquals(count + 1, Driver.getInstance().getHibernationCount());
+	}
+
+	/**
+	 * Test method for {@link main.node.Client#hibernate(long)} with data
+	 * waiting in a buffer of the client.
+	 */
+	@Test
+	public void testHibernateBusy() {
+		Client client = createClient("FCFS");
+		Buffer buffer = new RingBuffer(Priority.NORMAL, client, client
+				.getSchedulingRing());
+		buffer.enqueue(0, new Datagram(request, true, 10));
+		client.hibernate(0);
+		assertFalse(client.isHibernating());
+
+		buffer.dequeue(0);
+		client.hibernate(0);
+		assertTrue(client.isHibernating());
+	}
+
+	/**
+	 * Test method for {@link main.node.Client#hibernate(long)} in hop
+	 * transfer mode, where the last datagram sent is only finished by the next
+	 * enqueue or by hibernating after it was sent completely.
+	 */
+	@Test
+	public void testHibernateHopTransfer() {
+		Configuration.NETWORK_HOP_TRANSFERS = true;
+		Client client = createClient("FCFS");
+		Buffer buffer = new RingBuffer(Priority.NORMAL, client, client
+				.getSchedulingRing());
+		buffer.enqueue(0, new Datagram(request, true, 10));
+		Datagram data = buffer.dequeue(0);
+		// phantom data is received by no one
+		data.setPhantom();
+		client.getNetwork().send(0, buffer, data);
+
+		long end = (long) data.getSize() * (8000000 / BANDWIDTH);
+		client.hibernate(end - 1);
+		assertFalse(client.isHibernating());
+		client.hibernate(end);
+		assertTrue(client.isHibernating());
+	}
+
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package test.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import main.resource.Consensus;
+import main.resource.Consensus.Position;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author agent
+ */
+public class TestConsensus {
+
+	/**
+	 * The modification time of consensus files, in milliseconds
+	 */
+	private static final long MTIME = 1000000000000L;
+
+	private static final String HEADER = "network-status-version 3\n"
+			+ "vote-status consensus\n";
+
+	private static final String ROUTERS = "r guard AAAA BBBB 2010-10-12 00:00:00 10.0.0.1 9001 0\n"
+			+ "s Fast Guard Running Stable Valid\n"
+			+ "w Bandwidth=200\n"
+			+ "r exit AAAB BBBC 2010-10-12 00:00:00 10.0.0.2 9001 0\n"
+			+ "s Exit Fast Running Valid\n"
+			+ "w Bandwidth=200\n"
+			+ "r badexit AAAC BBBD 2010-10-12 00:00:00 10.0.0.3 9001 0\n"
+			+ "s BadExit Exit Fast Running Valid\n"
+			+ "w Bandwidth=50\n"
+			+ "r middle AAAD BBBE 2010-10-12 00:00:00 10.0.0.4 9001 0\n"
+			+ "s Fast Running Valid\n"
+			+ "w Bandwidth=100 Measured=120\n"
+			+ "r down AAAE BBBF 2010-10-12 00:00:00 10.0.0.5 9001 0\n"
+			+ "s Fast Guard Valid\n"
+			+ "w Bandwidth=1000\n"
+			+ "r invalid AAAF BBBG 2010-10-12 00:00:00 10.0.0.6 9001 0\n"
+			+ "s Exit Fast Running\n"
+			+ "w Bandwidth=1000\n"
+			+ "r slow AAAG BBBH 2010-10-12 00:00:00 10.0.0.7 9001 0\n"
+			+ "s Running Valid\n"
+			+ "w Bandwidth=10\n";
+
+	private static final String FOOTER = "directory-footer\n";
+
+	private static final String WEIGHTS = "bandwidth-weights Wbd=0 Wbe=0 Wbg=400 Wbm=1000 Wdb=1000 Web=1000 Wed=300 Wee=1000 Weg=300 Wem=1000 Wgb=1000 Wgd=200 Wgg=600 Wgm=600 Wmb=1000 Wmd=500 Wme=100 Wmg=400 Wmm=1000\n";
+
+	private static final String SIGNATURE = "directory-signature AAAA BBBB\n";
+
+	private File file;
+
+	private File cache;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("consensus", ".txt");
+		cache = new File(file.getPath() + ".cache");
+		Consensus.reset();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+		cache.delete();
+		Consensus.reset();
+	}
+
+	/**
+	 * Writes the given consensus to the test file, optionally gzipped, and
+	 * sets its modification time.
+	 */
+	private void write(String consensus, boolean gzip, long mtime)
+			throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		if (gzip) {
+			out = new GZIPOutputStream(out);
+		}
+		out.write(consensus.getBytes("US-ASCII"));
+		out.close();
+		assertTrue(file.setLastModified(mtime));
+	}
+
+	/**
+	 * Imports the test file again.
+	 */
+	private void load(boolean useCache) throws IOException {
+		Consensus.reset();
+		Consensus.initialize(file.getPath(), useCache);
+	}
+
+	/**
+	 * Checks the relays of ROUTERS, which skip the relays that are not
+	 * running or not valid.
+	 */
+	private void assertRouters() {
+		assertEquals(5, Consensus.size());
+		assertEquals(Consensus.FLAG_GUARD | Consensus.FLAG_FAST, Consensus
+				.getFlags(0));
+		assertEquals(Consensus.FLAG_EXIT | Consensus.FLAG_FAST, Consensus
+				.getFlags(1));
+		// bad exits lose their exit flag
+		assertEquals(Consensus.FLAG_FAST, Consensus.getFlags(2));
+		assertEquals(Consensus.FLAG_FAST, Consensus.getFlags(3));
+		assertEquals(0, Consensus.getFlags(4));
+
+		// kilobytes per second are converted to bytes per second
+		assertEquals(200 * 1024, Consensus.getBandwidth(0));
+		assertEquals(200 * 1024, Consensus.getBandwidth(1));
+		assertEquals(50 * 1024, Consensus.getBandwidth(2));
+		assertEquals(100 * 1024, Consensus.getBandwidth(3));
+		assertEquals(10 * 1024, Consensus.getBandwidth(4));
+	}
+
+	/**
+	 * Test method for {@link main.resource.Consensus} with bandwidth weights
+	 * in the footer, scaled by the bwweightscale parameter.
+	 */
+	@Test
+	public void testConsensusWeights() throws IOException {
+		write(HEADER + "params bwweightscale=1000 circwindow=1000\n"
+				+ ROUTERS + FOOTER + WEIGHTS + SIGNATURE, false, MTIME);
+		load(false);
+		assertRouters();
+
+		int guard = Consensus.FLAG_GUARD | Consensus.FLAG_FAST;
+		int exit = Consensus.FLAG_EXIT | Consensus.FLAG_FAST;
+		int both = guard | exit;
+		assertEquals(0.6, Consensus.getWeight(Position.GUARD, guard), 1e-9);
+		assertEquals(0.2, Consensus.getWeight(Position.GUARD, both), 1e-9);
+		assertEquals(0.4, Consensus.getWeight(Position.MIDDLE, guard), 1e-9);
+		assertEquals(1.0, Consensus.getWeight(Position.MIDDLE,
+				Consensus.FLAG_FAST), 1e-9);
+		assertEquals(0.1, Consensus.getWeight(Position.MIDDLE, exit), 1e-9);
+		assertEquals(0.5, Consensus.getWeight(Position.MIDDLE, both), 1e-9);
+		assertEquals(1.0, Consensus.getWeight(Position.EXIT, exit), 1e-9);
+		assertEquals(0.3, Consensus.getWeight(Position.EXIT, both), 1e-9);
+
+		// relays are only used in the positions their flags allow
+		assertEquals(0.0, Consensus.getWeight(Position.GUARD, exit), 0);
+		assertEquals(0.0, Consensus.getWeight(Position.EXIT, guard), 0);
+		assertEquals(0.0, Consensus.getWeight(Position.MIDDLE,
+				Consensus.FLAG_GUARD), 0);
+	}
+
+	/**
+	 * Test method for {@link main.resource.Consensus} without bandwidth
+	 * weights, which are computed from the bandwidth of guards and exits.
+	 */
+	@Test
+	public void testComputedWeights() throws IOException {
+		write(HEADER + ROUTERS + FOOTER + SIGNATURE, false, MTIME);
+		load(false);
+		assertRouters();
+
+		// guards and exits each have 200 of 560 kilobytes per second
+		double factor = (200 - 560 / 3.0) / 200;
+		int guard = Consensus.FLAG_GUARD | Consensus.FLAG_FAST;
+		int exit = Consensus.FLAG_EXIT | Consensus.FLAG_FAST;
+		int both = guard | exit;
+		assertEquals(1.0, Consensus.getWeight(Position.GUARD, guard), 1e-9);
+		assertEquals(factor, Consensus.getWeight(Position.GUARD, both), 1e-9);
+		assertEquals(factor, Consensus.getWeight(Position.MIDDLE, guard), 1e-9);
+		assertEquals(factor, Consensus.getWeight(Position.MIDDLE, exit), 1e-9);
+		assertEquals(factor * factor, Consensus.getWeight(Position.MIDDLE,
+				both), 1e-9);
+		assertEquals(1.0, Consensus.getWeight(Position.EXIT, exit), 1e-9);
+		assertEquals(factor, Consensus.getWeight(Position.EXIT, both), 1e-9);
+	}
+
+	/**
+	 * Test method for {@link main.resource.Consensus} with a gzipped
+	 * consensus file.
+	 */
+	@Test
+	public void testGzip() throws IOException {
+		write(HEADER + ROUTERS + FOOTER + WEIGHTS + SIGNATURE, true, MTIME);
+		load(false);
+		assertRouters();
+		// the default scale applies without the bwweightscale parameter
+		assertEquals(0.06, Consensus.getWeight(Position.GUARD,
+				Consensus.FLAG_GUARD | Consensus.FLAG_FAST), 1e-9);
+	}
+
+	/**
+	 * Test method for the cache of {@link main.resource.Consensus}, which is
+	 * read while the length and modification time of the consensus file are
+	 * unchanged.
+	 */
+	@Test
+	public void testCache() throws IOException {
+		String before = HEADER + ROUTERS + FOOTER + SIGNATURE;
+		write(before, false, MTIME);
+		load(true);
+		assertTrue(cache.isFile());
+		assertRouters();
+
+		// same length and time, so the cache is read instead
+		String after = before.replace("Bandwidth=200", "Bandwidth=300");
+		assertEquals(before.length(), after.length());
+		write(after, false, MTIME);
+		load(true);
+		assertRouters();
+
+		// the cache is not used if disabled
+		load(false);
+		assertEquals(300 * 1024, Consensus.getBandwidth(0));
+
+		// a new modification time invalidates the cache
+		write(after, false, MTIME + 2000);
+		load(true);
+		assertEquals(300 * 1024, Consensus.getBandwidth(0));
+		load(true);
+		assertEquals(300 * 1024, Consensus.getBandwidth(0));
+
+		// so does a new length
+		write(before.replace("Bandwidth=200", "Bandwidth=2000"), false,
+				MTIME + 2000);
+		load(true);
+		assertEquals(2000 * 1024, Consensus.getBandwidth(0));
+	}
+
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package test.scheduling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+
+import main.network.Buffer;
+import main.network.Datagram;
+import main.network.DrrBuffer;
+import main.network.Request;
+import main.network.SchedulingRing;
+import main.node.Server;
+import main.resource.Configuration;
+import main.scheduling.DeficitRoundRobinScheduler;
+import main.scheduling.Scheduler.Priority;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author agent
+ */
+public class TestDeficitRoundRobinScheduler {
+
+	/**
+	 * The buffers the scheduler sent from, in order
+	 */
+	private ArrayList<Buffer> sent = new ArrayList<Buffer>();
+
+	private SchedulingRing ring = new SchedulingRing();
+
+	private Request request = new Request(0, null, null, 1000, 1000, false);
+
+	private Server node;
+
+	@Before
+	public void setUp() throws Exception {
+		String filename = "config_default.properties";
+		Configuration.Configure(Configuration.class
+				.getResourceAsStream(filename), filename);
+		Configuration.DRR_QUANTUM = Datagram.CELL_LENGTH;
+
+		// record the decisions instead of sending on the network
+		node = new Server(null, new DeficitRoundRobinScheduler() {
+			@Override
+			protected void trySend(long time, Buffer buffer) {
+				sent.add(buffer);
+				buffer.dequeue(time);
+			}
+		}, 1000, 1000);
+	}
+
+	/**
+	 * Adds the given number of datagrams to the buffer, which are full cells
+	 * if the size is the cell length, and pieces of the given size otherwise.
+	 */
+	private void enqueue(Buffer buffer, int size, int count) {
+		boolean isCell = size == Datagram.CELL_LENGTH;
+		int pieceSize = isCell ? Datagram.MAX_PAYLOAD_LENGTH : size;
+		for (int i = 0; i < count; i++) {
+			buffer.enqueue(0, new Datagram(request, isCell, pieceSize));
+		}
+	}
+
+	/**
+	 * @return the number of bytes sent from the given buffer
+	 */
+	private int getBytesSent(Buffer buffer, int size) {
+		int bytes = 0;
+		for (Buffer b : sent) {
+			if (b == buffer) {
+				bytes += size;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Test method for
+	 * {@link main.scheduling.DeficitRoundRobinScheduler#schedule(long, SchedulingRing)}
+	 * . A buffer of cells and a buffer of smaller pieces send the same number
+	 * of bytes rather than the same number of datagrams.
+	 */
+	@Test
+	public void testByteShares() {
+		Buffer cells = new DrrBuffer(Buffer.nextId(), Priority.NORMAL, node,
+				ring);
+		Buffer pieces = new DrrBuffer(Buffer.nextId(), Priority.NORMAL, node,
+				ring);
+		enqueue(cells, Datagram.CELL_LENGTH, 1000);
+		enqueue(pieces, 100, 5000);
+		for (int i = 0; i < 600; i++) {
+			node.getScheduler().schedule(0, ring);
+		}
+
+		// the shares differ by at most a quantum and a datagram
+		int cellBytes = getBytesSent(cells, Datagram.CELL_LENGTH);
+		int pieceBytes = getBytesSent(pieces, 100);
+		assertEquals(cellBytes, pieceBytes, Configuration.DRR_QUANTUM
+				+ Datagram.CELL_LENGTH);
+		assertEquals(600, (cellBytes / Datagram.CELL_LENGTH)
+				+ (pieceBytes / 100));
+	}
+
+	/**
+	 * Test method for
+	 * {@link main.scheduling.DeficitRoundRobinScheduler#notifyBufferDeactivated(long, Buffer)}
+	 * . A buffer that drains loses the rest of its deficit, so it gets a
+	 * single quantum in its next turn.
+	 */
+	@Test
+	public void testDeficitReset() {
+		DrrBuffer pieces = new DrrBuffer(Buffer.nextId(), Priority.NORMAL,
+				node, ring);
+		Buffer cells = new DrrBuffer(Buffer.nextId(), Priority.NORMAL, node,
+				ring);
+		enqueue(pieces, 100, 1);
+		enqueue(cells, Datagram.CELL_LENGTH, 10);
+
+		// the piece leaves 412 bytes of its quantum, which are dropped
+		node.getScheduler().schedule(0, ring);
+		assertSame(pieces, sent.get(0));
+		assertEquals(0, pieces.getDrrDeficit());
+
+		// the cells take their turn, then the pieces send one quantum
+		enqueue(pieces, 100, 9);
+		for (int i = 0; i < 7; i++) {
+			node.getScheduler().schedule(0, ring);
+		}
+		assertSame(cells, sent.get(1));
+		for (int i = 2; i < 7; i++) {
+			assertSame(pieces, sent.get(i));
+		}
+		assertSame(cells, sent.get(7));
+	}
+
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package test.scheduling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+
+import main.network.Buffer;
+import main.network.Datagram;
+import main.network.Request;
+import main.network.SchedulingRing;
+import main.network.WfqBuffer;
+import main.node.Server;
+import main.resource.Configuration;
+import main.scheduling.WeightedFairQueueingScheduler;
+import main.scheduling.Scheduler.Priority;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author agent
+ */
+public class TestWeightedFairQueueingScheduler {
+
+	/**
+	 * The buffers the scheduler sent from, in order
+	 */
+	private ArrayList<Buffer> sent = new ArrayList<Buffer>();
+
+	private SchedulingRing ring = new SchedulingRing();
+
+	private Server node;
+
+	@Before
+	public void setUp() throws Exception {
+		String filename = "config_default.properties";
+		Configuration.Configure(Configuration.class
+				.getResourceAsStream(filename), filename);
+
+		// record the decisions instead of sending on the network
+		node = new Server(null, new WeightedFairQueueingScheduler() {
+			@Override
+			protected void trySend(long time, Buffer buffer) {
+				sent.add(buffer);
+				buffer.dequeue(time);
+			}
+		}, 1000, 1000);
+	}
+
+	/**
+	 * @return a new buffer of the node holding the given number of datagrams
+	 *         of the given priority, which are full cells if the size is the
+	 *         cell length, and pieces of the given size otherwise
+	 */
+	private Buffer createBuffer(Priority priority, int size, int count) {
+		boolean isCell = size == Datagram.CELL_LENGTH;
+		int pieceSize = isCell ? Datagram.MAX_PAYLOAD_LENGTH : size;
+		Request request = new Request(0, null, null, 1000, 1000, false);
+		request.setPriority(priority);
+		Buffer buffer = new WfqBuffer(Buffer.nextId(), Priority.NORMAL, node,
+				ring);
+		for (int i = 0; i < count; i++) {
+			buffer.enqueue(0, new Datagram(request, isCell, pieceSize));
+		}
+		return buffer;
+	}
+
+	/**
+	 * Test method for
+	 * {@link main.scheduling.WeightedFairQueueingScheduler#schedule(long, SchedulingRing)}
+	 * . Small datagrams finish early, but a head whose start time is later
+	 * than the system virtual time is not eligible, so the buffer of cells is
+	 * served in between.
+	 */
+	@Test
+	public void testEligibility() {
+		Buffer pieces = createBuffer(Priority.NORMAL, 100, 10);
+		Buffer cells = createBuffer(Priority.NORMAL, Datagram.CELL_LENGTH, 10);
+
+		// both start at 0, and the first piece finishes at 100, so it is sent
+		// first and the virtual time advances by 100 / 2 to 50. The next
+		// piece starts at 100 and finishes at 200, before the first cell at
+		// 512, but it is not eligible yet.
+		node.getScheduler().schedule(0, ring);
+		node.getScheduler().schedule(0, ring);
+		assertSame(pieces, sent.get(0));
+		assertSame(cells, sent.get(1));
+
+		// the virtual time is 306, so the next two pieces are eligible and
+		// finish before the next cell at 1024
+		node.getScheduler().schedule(0, ring);
+		node.getScheduler().schedule(0, ring);
+		assertSame(pieces, sent.get(2));
+		assertSame(pieces, sent.get(3));
+	}
+
+	/**
+	 * Test method for
+	 * {@link main.scheduling.WeightedFairQueueingScheduler#schedule(long, SchedulingRing)}
+	 * in priority mode. Backlogged buffers share the node in proportion to
+	 * the inverse delay differentiation parameters of their service classes.
+	 */
+	@Test
+	public void testWeightedShares() {
+		Configuration.NETWORK_PRIORITY = true;
+		Configuration.LOW_LATENCY_DDP = 1;
+		Configuration.HIGH_THROUGHPUT_DDP = 4;
+		Buffer lowLatency = createBuffer(Priority.LOW_LATENCY,
+				Datagram.CELL_LENGTH, 1000);
+		Buffer highThroughput = createBuffer(Priority.HIGH_THROUGHPUT,
+				Datagram.CELL_LENGTH, 1000);
+		for (int i = 0; i < 500; i++) {
+			node.getScheduler().schedule(0, ring);
+		}
+
+		int lowLatencyCount = 0;
+		for (Buffer buffer : sent) {
+			if (buffer == lowLatency) {
+				lowLatencyCount++;
+			} else {
+				assertSame(highThroughput, buffer);
+			}
+		}
+		assertEquals(400, lowLatencyCount, 1);
+	}
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package test.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.Random;
+
+import main.util.DynamicTable;
+import main.util.WeightedTable;
+
+import org.junit.Test;
+
+/**
+ * @author agent
+ */
+public class TestDynamicTable extends TestWeightedTable {
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see test.util.TestWeightedTable#createTable(java.util.List, double[])
+	 */
+	@Override
+	protected WeightedTable<Integer> createTable(List<Integer> objects,
+			double[] weights) {
+		return new DynamicTable<Integer>(objects, weights);
+	}
+
+	/**
+	 * Creates a dynamic table of the integers 0 to weights.length-1 with the
+	 * given weights.
+	 */
+	private DynamicTable<Integer> createDynamicTable(double[] weights) {
+		return (DynamicTable<Integer>) createTable(weights);
+	}
+
+	/**
+	 * Draws from the given table and checks the frequency of each of the
+	 * integers 0 to expected.length-1 against its expected weight.
+	 */
+	private void assertFrequencies(DynamicTable<Integer> table,
+			double[] expected) {
+		double total = 0;
+		for (double weight : expected) {
+			total += weight;
+		}
+		assertEquals(total, table.getTotalWeight(), 1e-9);
+		Random prng = new Random(1);
+		int[] counts = new int[expected.length];
+		for (int i = 0; i < DRAWS; i++) {
+			counts[table.sample(prng)]++;
+		}
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i] / total, (double) counts[i] / DRAWS, 0.01);
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link main.util.DynamicTable#setWeight(Object, double)} and
+	 * {@link main.util.DynamicTable#remove(Object)}.
+	 */
+	@Test
+	public void testUpdates() {
+		DynamicTable<Integer> table = createDynamicTable(new double[] { 1, 0,
+				2, 7, 10 });
+		table.setWeight(1, 5);
+		table.setWeight(3, 0);
+		table.remove(4);
+		assertEquals(4, table.size());
+		assertEquals(0.0, table.getWeight(4), 0.0);
+		assertFrequencies(table, new double[] { 1, 5, 2, 0, 0 });
+
+		// new objects reuse the free slot and grow the table
+		for (int i = 5; i < 40; i++) {
+			table.setWeight(i, 1);
+		}
+		table.setWeight(4, 3);
+		assertEquals(40, table.size());
+		double[] expected = new double[40];
+		expected[0] = 1;
+		expected[1] = 5;
+		expected[2] = 2;
+		expected[4] = 3;
+		for (int i = 5; i < 40; i++) {
+			expected[i] = 1;
+		}
+		assertFrequencies(table, expected);
+	}
+
+	/**
+	 * Test method for
+	 * {@link main.util.DynamicTable#sampleExcluding(Random, Object, Object, Object)}
+	 * after the remaining objects are removed or lose their weight.
+	 */
+	@Test
+	public void testSampleExcludingAfterUpdates() {
+		DynamicTable<Integer> table = createDynamicTable(new double[] { 1000,
+				2, 1, 1000, 1, 1000 });
+		Integer first = 0;
+		Integer second = 3;
+		Integer third = 5;
+		table.remove(1);
+		table.remove(2);
+		table.setWeight(4, 0);
+		assertNull(table.sampleExcluding(new Random(1), first, second, third));
+	}
+
+}
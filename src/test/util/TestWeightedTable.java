@@ -0,0 +1,132 @@
+/**
+ * Copyright 2010 Rob Jansen
+ * 
+ * This file is part of braids-tor-simulator.
+ * 
+ * braids-tor-simulator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * braids-tor-simulator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with braids-tor-simulator.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * $Id$
+ */
+package test.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import main.util.WeightedTable;
+
+import org.junit.Test;
+
+/**
+ * Tests shared by every implementation of {@link main.util.WeightedTable}.
+ * Subclasses create the table under test.
+ * 
+ * @author agent
+ */
+public abstract class TestWeightedTable {
+
+	/**
+	 * The number of draws used to estimate frequencies
+	 */
+	protected static final int DRAWS = 200000;
+
+	/**
+	 * Creates the table under test from the given objects and weights.
+	 */
+	protected abstract WeightedTable<Integer> createTable(
+			List<Integer> objects, double[] weights);
+
+	/**
+	 * Creates a table of the integers 0 to weights.length-1 with the given
+	 * weights.
+	 */
+	protected WeightedTable<Integer> createTable(double[] weights) {
+		ArrayList<Integer> objects = new ArrayList<Integer>();
+		for (int i = 0; i < weights.length; i++) {
+			objects.add(i);
+		}
+		return createTable(objects, weights);
+	}
+
+	/**
+	 * Test method for {@link main.util.WeightedTable#sample(Random)}.
+	 */
+	@Test
+	public void testSample() {
+		double[] weights = { 1, 0, 2, 7, 10 };
+		WeightedTable<Integer> table = createTable(weights);
+		Random prng = new Random(1);
+		int[] counts = new int[weights.length];
+		for (int i = 0; i < DRAWS; i++) {
+			counts[table.sample(prng)]++;
+		}
+		for (int i = 0; i < weights.length; i++) {
+			assertEquals(weights[i] / 20, (double) counts[i] / DRAWS, 0.01);
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link main.util.WeightedTable#sampleExcluding(Random, Object, Object, Object)}
+	 * .
+	 */
+	@Test
+	public void testSampleExcluding() {
+		// the excluded objects dominate the weight
+		double[] weights = { 1000, 2, 1, 1000, 1, 1000 };
+		WeightedTable<Integer> table = createTable(weights);
+		Random prng = new Random(1);
+		Integer first = 0;
+		Integer second = 3;
+		Integer third = 5;
+		int[] counts = new int[weights.length];
+		for (int i = 0; i < DRAWS; i++) {
+			Integer choice = table.sampleExcluding(prng, first, second, third);
+			assertNotSame(first, choice);
+			assertNotSame(second, choice);
+			assertNotSame(third, choice);
+			counts[choice]++;
+		}
+		assertEquals(0.5, (double) counts[1] / DRAWS, 0.01);
+		assertEquals(0.25, (double) counts[2] / DRAWS, 0.01);
+		assertEquals(0.25, (double) counts[4] / DRAWS, 0.01);
+
+		// duplicates and nulls are ignored
+		counts = new int[weights.length];
+		for (int i = 0; i < DRAWS; i++) {
+			counts[table.sampleExcluding(prng, second, null, second)]++;
+		}
+		assertEquals(0, counts[3]);
+		assertEquals(1000.0 / 2004, (double) counts[0] / DRAWS, 0.01);
+	}
+
+	/**
+	 * Test method for
+	 * {@link main.util.WeightedTable#sampleExcluding(Random, Object, Object, Object)}
+	 * when every object is excluded.
+	 */
+	@Test
+	public void testSampleExcludingAll() {
+		double[] weights = { 1, 1 };
+		WeightedTable<Integer> table = createTable(weights);
+		Integer first = 0;
+		Integer second = 1;
+		assertNull(table.sampleExcluding(new Random(1), first, second, null));
+	}
+
+}